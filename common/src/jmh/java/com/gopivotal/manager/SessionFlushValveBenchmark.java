@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager;
+
+import org.apache.catalina.Valve;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead {@link SessionFlushValve#invoke(Request, Response)} adds in front of the rest of the pipeline,
+ * which is a valve that does nothing, for a request without a session.  {@link #baseline()} invokes that valve
+ * directly.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+public class SessionFlushValveBenchmark {
+
+    private final SessionFlushValve valve = new SessionFlushValve();
+
+    private final Valve next = new ValveBase() {
+
+        @Override
+        public void invoke(Request request, Response response) {
+        }
+
+    };
+
+    private final Request request = new Request();
+
+    private final Response response = new Response();
+
+    @Setup
+    public void setUp() {
+        this.request.setCoyoteRequest(new org.apache.coyote.Request());
+        this.valve.setNext(this.next);
+    }
+
+    @Benchmark
+    public void baseline() throws IOException, ServletException {
+        this.next.invoke(this.request, this.response);
+    }
+
+    @Benchmark
+    public void invoke() throws IOException, ServletException {
+        this.valve.invoke(this.request, this.response);
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves the classes named in serialized sessions through a class loader, caching the results so that repeated
+ * lookups neither search the class loader hierarchy nor contend for class loader locks.
+ * <p>
+ * There is one resolver per class loader, weakly keyed so that the resolvers of undeployed web applications are
+ * collected with their class loaders.  Resolvers are looked up on every deserialization, so they are held in a
+ * concurrent map rather than a synchronized one, and the entries of collected class loaders are purged whenever a new
+ * resolver is added.  Resolved classes are also weakly referenced, since they hold their class loader
+ * strongly.  Common JDK types are resolved from a shared registry without consulting any class loader.
+ */
+final class ClassResolver {
+
+    private static final Map<String, Class<?>> COMMON = common(String.class, Boolean.class, Byte.class,
+            Character.class, Short.class, Integer.class, Long.class, Float.class, Double.class, Number.class,
+            Enum.class, BigDecimal.class, BigInteger.class, Date.class, Locale.class, ArrayList.class,
+            LinkedList.class, HashMap.class, LinkedHashMap.class, TreeMap.class, HashSet.class, LinkedHashSet.class,
+            TreeSet.class, ConcurrentHashMap.class, boolean[].class, byte[].class, char[].class, short[].class,
+            int[].class, long[].class, float[].class, double[].class, Object[].class, String[].class);
+
+    private static final ClassResolver BOOTSTRAP = new ClassResolver();
+
+    private static final ConcurrentMap<LoaderKey, ClassResolver> RESOLVERS = new ConcurrentHashMap<>();
+
+    private static final ReferenceQueue<ClassLoader> COLLECTED = new ReferenceQueue<>();
+
+    private final ConcurrentMap<String, WeakReference<Class<?>>> classes = new ConcurrentHashMap<>();
+
+    private ClassResolver() {
+    }
+
+    /**
+     * Returns the resolver for a class loader
+     *
+     * @param classLoader the class loader, or {@code null} for the bootstrap class loader
+     * @return the resolver for the class loader
+     */
+    static ClassResolver forClassLoader(ClassLoader classLoader) {
+        if (classLoader == null) {
+            return BOOTSTRAP;
+        }
+
+        ClassResolver resolver = RESOLVERS.get(new LoaderKey(classLoader, null));
+        if (resolver != null) {
+            return resolver;
+        }
+
+        for (Reference<? extends ClassLoader> collected = COLLECTED.poll(); collected != null;
+             collected = COLLECTED.poll()) {
+            RESOLVERS.remove(collected);
+        }
+
+        resolver = new ClassResolver();
+        ClassResolver existing = RESOLVERS.putIfAbsent(new LoaderKey(classLoader, COLLECTED), resolver);
+        return existing == null ? resolver : existing;
+    }
+
+    /**
+     * Returns the number of class loaders with a resolver
+     *
+     * @return the number of class loaders with a resolver
+     */
+    static int resolvers() {
+        return RESOLVERS.size();
+    }
+
+    /**
+     * Resolves a class.  Failed resolutions are not cached, so that a class that becomes available later is found.
+     *
+     * @param name        the name of the class
+     * @param classLoader the class loader this resolver belongs to
+     * @return the class
+     * @throws ClassNotFoundException if the class cannot be found
+     */
+    Class<?> resolve(String name, ClassLoader classLoader) throws ClassNotFoundException {
+        Class<?> type = COMMON.get(name);
+        if (type != null) {
+            return type;
+        }
+
+        WeakReference<Class<?>> cached = this.classes.get(name);
+        type = cached == null ? null : cached.get();
+        if (type != null) {
+            return type;
+        }
+
+        type = Class.forName(name, false, classLoader);
+        this.classes.put(name, new WeakReference<Class<?>>(type));
+        return type;
+    }
+
+    /**
+     * Returns the number of classes this resolver has cached
+     *
+     * @return the number of classes this resolver has cached
+     */
+    int size() {
+        return this.classes.size();
+    }
+
+    private static Map<String, Class<?>> common(Class<?>... types) {
+        Map<String, Class<?>> common = new HashMap<>();
+        for (Class<?> type : types) {
+            common.put(type.getName(), type);
+        }
+        return Collections.unmodifiableMap(common);
+    }
+
+    /**
+     * A weak reference to a class loader that is equal to any other reference to the same class loader, so that it can
+     * key a map by identity.  A key whose class loader has been collected is only equal to itself.
+     */
+    private static final class LoaderKey extends WeakReference<ClassLoader> {
+
+        private final int hash;
+
+        private LoaderKey(ClassLoader classLoader, ReferenceQueue<ClassLoader> queue) {
+            super(classLoader, queue);
+            this.hash = System.identityHashCode(classLoader);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof LoaderKey)) {
+                return false;
+            }
+
+            ClassLoader classLoader = get();
+            return classLoader != null && classLoader == ((LoaderKey) o).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+    }
+
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gopivotal.manager;
+
+import org.apache.catalina.Globals;
+import org.apache.catalina.session.StandardSession;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.io.WriteAbortedException;
+import java.nio.charset.Charset;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Arrays;
+
+/**
+ * A {@link SessionSerializer} with a compact binary format.  Session metadata, strings, boxed primitives and byte
+ * arrays are written as tagged binary values; only other attribute values fall back to Java serialization.  The values
+ * that fall back share a single Java serialization stream, so that class descriptors and objects referred to by several
+ * attributes are written once, as they are by {@link JdkSessionSerializer}.
+ * <p>
+ * Payloads start with a magic byte that cannot start a Java serialization stream, so payloads written by {@link
+ * JdkSessionSerializer} are still read, which allows switching serializers on a running deployment.  Payloads written
+ * by the first version of the format, which serialized each value on its own stream, are read as well.
+ * <p>
+ * The format is written and read through subclasses of {@link ObjectOutputStream} and {@link ObjectInputStream} that
+ * replace their implementation, which a {@link SecurityManager} only allows with the {@code
+ * enableSubclassImplementation} {@link java.io.SerializablePermission}.  The streams are created in a privileged block,
+ * so it is this library that must be granted the permission, as Tomcat's default policy does for the jars in its
+ * {@code lib} directory, rather than every web application.
+ */
+public final class CompactSessionSerializer implements SessionSerializer {
+
+    static final int MAGIC = 0xC5;
+
+    static final int VERSION = 2;
+
+    private static final int UNSHARED_VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int NULL = 0;
+
+    private static final int STRING = 1;
+
+    private static final int INTEGER = 2;
+
+    private static final int LONG = 3;
+
+    private static final int BOOLEAN = 4;
+
+    private static final int DOUBLE = 5;
+
+    private static final int FLOAT = 6;
+
+    private static final int SHORT = 7;
+
+    private static final int BYTE = 8;
+
+    private static final int CHARACTER = 9;
+
+    private static final int BYTE_ARRAY = 10;
+
+    private static final int SERIALIZED = 11;
+
+    private static final int NOT_SERIALIZED = 12;
+
+    private final JdkSessionSerializer legacy = new JdkSessionSerializer();
+
+    @Override
+    public void serialize(StandardSession session, OutputStream out) throws IOException {
+        final DataOutputStream data = new DataOutputStream(out);
+        data.writeByte(MAGIC);
+        data.writeByte(VERSION);
+
+        ObjectOutputStream stream = privileged(new PrivilegedExceptionAction<ObjectOutputStream>() {
+
+            @Override
+            public ObjectOutputStream run() throws IOException {
+                return new CompactOutputStream(data);
+            }
+
+        });
+        session.writeObjectData(stream);
+        stream.flush();
+    }
+
+    @Override
+    public void deserialize(StandardSession session, InputStream in) throws ClassNotFoundException, IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 1);
+
+        int magic = pushback.read();
+        if (magic == -1) {
+            throw new EOFException();
+        }
+        if (magic != MAGIC) {
+            pushback.unread(magic);
+            this.legacy.deserialize(session, pushback);
+            return;
+        }
+
+        final int version = pushback.read();
+        if (version != VERSION && version != UNSHARED_VERSION) {
+            throw new StreamCorruptedException(String.format("Unsupported compact session version %d", version));
+        }
+
+        final DataInputStream data = new DataInputStream(pushback);
+        session.readObjectData(privileged(new PrivilegedExceptionAction<ObjectInputStream>() {
+
+            @Override
+            public ObjectInputStream run() throws IOException {
+                return new CompactInputStream(data, version == VERSION);
+            }
+
+        }));
+    }
+
+    private static <T> T privileged(PrivilegedExceptionAction<T> action) throws IOException {
+        try {
+            return Globals.IS_SECURITY_ENABLED ? AccessController.doPrivileged(action) : action.run();
+        } catch (PrivilegedActionException e) {
+            throw (IOException) e.getException();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class CompactOutputStream extends ObjectOutputStream {
+
+        private final DataOutputStream out;
+
+        private SerializationBuffer serializedBytes;
+
+        private ObjectOutputStream serialized;
+
+        private CompactOutputStream(DataOutputStream out) throws IOException {
+            super();
+            this.out = out;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.out.close();
+        }
+
+        @Override
+        protected void writeObjectOverride(Object value) throws IOException {
+            if (value == null) {
+                this.out.writeByte(NULL);
+            } else if (value instanceof String) {
+                this.out.writeByte(STRING);
+                writeBytes(((String) value).getBytes(UTF_8));
+            } else if (value instanceof Integer) {
+                this.out.writeByte(INTEGER);
+                this.out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                this.out.writeByte(LONG);
+                this.out.writeLong((Long) value);
+            } else if (value instanceof Boolean) {
+                this.out.writeByte(BOOLEAN);
+                this.out.writeBoolean((Boolean) value);
+            } else if (value instanceof Double) {
+                this.out.writeByte(DOUBLE);
+                this.out.writeDouble((Double) value);
+            } else if (value instanceof Float) {
+                this.out.writeByte(FLOAT);
+                this.out.writeFloat((Float) value);
+            } else if (value instanceof Short) {
+                this.out.writeByte(SHORT);
+                this.out.writeShort((Short) value);
+            } else if (value instanceof Byte) {
+                this.out.writeByte(BYTE);
+                this.out.writeByte((Byte) value);
+            } else if (value instanceof Character) {
+                this.out.writeByte(CHARACTER);
+                this.out.writeChar((Character) value);
+            } else if (value instanceof byte[]) {
+                this.out.writeByte(BYTE_ARRAY);
+                writeBytes((byte[]) value);
+            } else if (value instanceof Serializable) {
+                writeSerialized(value);
+            } else {
+                writeNotSerialized(new NotSerializableException(value.getClass().getName()));
+            }
+        }
+
+        /**
+         * Serializes a value on the shared serialization stream, and writes the part of the stream that holds it as a
+         * single chunk.  The value is serialized completely before anything is written, so that the partial value of
+         * one that turns out not to be serializable can be discarded.  The shared stream is then reset, so that the
+         * reader forgets the same handles as the writer.
+         */
+        private void writeSerialized(Object value) throws IOException {
+            if (this.serialized == null) {
+                this.serializedBytes = new SerializationBuffer(256);
+                this.serialized = new ObjectOutputStream(this.serializedBytes);
+                this.serialized.flush();
+            }
+
+            int mark = this.serializedBytes.size();
+            try {
+                this.serialized.writeObject(value);
+                this.serialized.flush();
+            } catch (NotSerializableException e) {
+                this.serialized.flush();
+                this.serializedBytes.truncate(mark);
+                this.serialized.reset();
+                writeNotSerialized(e);
+            }
+
+            this.out.writeByte(SERIALIZED);
+            this.out.writeInt(this.serializedBytes.size());
+            this.out.write(this.serializedBytes.getBuffer(), 0, this.serializedBytes.size());
+            this.serializedBytes.reset();
+        }
+
+        /**
+         * Writes a marker in place of a value that is not serializable, which the reader reports as a {@link
+         * WriteAbortedException} as Java serialization does, so that the session skips the value on both sides
+         */
+        private void writeNotSerialized(NotSerializableException e) throws IOException {
+            this.out.writeByte(NOT_SERIALIZED);
+            writeBytes(String.valueOf(e.getMessage()).getBytes(UTF_8));
+            throw e;
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            this.out.writeInt(bytes.length);
+            this.out.write(bytes);
+        }
+
+    }
+
+    private static final class CompactInputStream extends ObjectInputStream {
+
+        private final DataInputStream in;
+
+        private final boolean sharedHandles;
+
+        private ChunkInputStream serializedBytes;
+
+        private ObjectInputStream serialized;
+
+        private CompactInputStream(DataInputStream in, boolean sharedHandles) throws IOException {
+            super();
+            this.in = in;
+            this.sharedHandles = sharedHandles;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.in.close();
+        }
+
+        @Override
+        protected Object readObjectOverride() throws ClassNotFoundException, IOException {
+            int tag = this.in.readUnsignedByte();
+
+            switch (tag) {
+                case NULL:
+                    return null;
+                case STRING:
+                    return new String(readBytes(), UTF_8);
+                case INTEGER:
+                    return this.in.readInt();
+                case LONG:
+                    return this.in.readLong();
+                case BOOLEAN:
+                    return this.in.readBoolean();
+                case DOUBLE:
+                    return this.in.readDouble();
+                case FLOAT:
+                    return this.in.readFloat();
+                case SHORT:
+                    return this.in.readShort();
+                case BYTE:
+                    return this.in.readByte();
+                case CHARACTER:
+                    return this.in.readChar();
+                case BYTE_ARRAY:
+                    return readBytes();
+                case SERIALIZED:
+                    return readSerialized();
+                case NOT_SERIALIZED:
+                    NotSerializableException cause = new NotSerializableException(new String(readBytes(), UTF_8));
+                    throw new WriteAbortedException(cause.getMessage(), cause);
+                default:
+                    throw new StreamCorruptedException(String.format("Unknown compact session tag %d", tag));
+            }
+        }
+
+        /**
+         * Reads a chunk of the shared serialization stream and deserializes the value it holds.  The stream is only
+         * created once its first chunk, which starts with the stream header, has been read.
+         */
+        private Object readSerialized() throws ClassNotFoundException, IOException {
+            byte[] chunk = readBytes();
+            if (!this.sharedHandles) {
+                return JdkSessionSerializer.createInputStream(new ChunkInputStream(chunk)).readObject();
+            }
+
+            if (this.serialized == null) {
+                this.serializedBytes = new ChunkInputStream(chunk);
+                this.serialized = JdkSessionSerializer.createInputStream(this.serializedBytes);
+            } else {
+                this.serializedBytes.append(chunk);
+            }
+
+            return this.serialized.readObject();
+        }
+
+        private byte[] readBytes() throws IOException {
+            int length = this.in.readInt();
+            if (length < 0) {
+                throw new StreamCorruptedException(String.format("Negative compact session length %d", length));
+            }
+
+            byte[] bytes = new byte[length];
+            this.in.readFully(bytes);
+            return bytes;
+        }
+
+    }
+
+    /**
+     * The chunks of the shared serialization stream that have been read so far.  A value is deserialized as soon as its
+     * chunk is read, so the stream only ever holds the chunk being deserialized.
+     */
+    private static final class ChunkInputStream extends InputStream {
+
+        private byte[] chunk;
+
+        private int position;
+
+        private ChunkInputStream(byte[] chunk) {
+            this.chunk = chunk;
+        }
+
+        private void append(byte[] next) {
+            int remaining = this.chunk.length - this.position;
+            if (remaining == 0) {
+                this.chunk = next;
+            } else {
+                byte[] joined = Arrays.copyOfRange(this.chunk, this.position, this.chunk.length + next.length);
+                System.arraycopy(next, 0, joined, remaining, next.length);
+                this.chunk = joined;
+            }
+            this.position = 0;
+        }
+
+        @Override
+        public int read() {
+            return this.position < this.chunk.length ? this.chunk[this.position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+
+            int count = Math.min(len, this.chunk.length - this.position);
+            if (count <= 0) {
+                return -1;
+            }
+
+            System.arraycopy(this.chunk, this.position, b, off, count);
+            this.position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return this.chunk.length - this.position;
+        }
+
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gopivotal.manager;
+
+import org.apache.catalina.session.StandardSession;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+
+/**
+ * A {@link SessionSerializer} that uses Java serialization, as Tomcat itself does when persisting sessions
+ */
+public final class JdkSessionSerializer implements SessionSerializer {
+
+    @Override
+    public void serialize(StandardSession session, OutputStream out) throws IOException {
+        ObjectOutputStream stream = new ObjectOutputStream(out);
+        session.writeObjectData(stream);
+        stream.flush();
+    }
+
+    @Override
+    public void deserialize(StandardSession session, InputStream in) throws ClassNotFoundException, IOException {
+        session.readObjectData(createInputStream(in));
+    }
+
+    /**
+     * Creates an {@link ObjectInputStream} that resolves classes through the thread context class loader, falling back
+     * to the default resolution.  Resolved classes are cached per class loader.
+     *
+     * @param in the stream to read from
+     * @return the {@link ObjectInputStream}
+     * @throws IOException
+     */
+    static ObjectInputStream createInputStream(InputStream in) throws IOException {
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        final ClassResolver classResolver = ClassResolver.forClassLoader(classLoader);
+
+        return new ObjectInputStream(in) {
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                try {
+                    return classResolver.resolve(desc.getName(), classLoader);
+                } catch (ClassNotFoundException cnfe) {
+                    return super.resolveClass(desc);
+                }
+            }
+        };
+    }
+
+}
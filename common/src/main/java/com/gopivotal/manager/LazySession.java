@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Globals;
+import org.apache.catalina.Manager;
+import org.apache.catalina.session.StandardSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link StandardSession} whose attributes are kept serialized until they are first read.  Attributes that are never
+ * read are never deserialized, and their serialized form can be stored again as it is.
+ * <p>
+ * The serialized values are held in the session's attribute map itself, which materializes them when they are read,
+ * removed or replaced, so that every path through {@link StandardSession}, including binding events and expiry, sees
+ * deserialized values.  An attribute that cannot be deserialized is logged and dropped.
+ */
+final class LazySession extends StandardSession {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LazySession.class);
+
+    LazySession(Manager manager) {
+        super(manager);
+        this.attributes = new LazyAttributes();
+    }
+
+    /**
+     * Sets an attribute from its serialized value, without deserializing it or firing any events
+     *
+     * @param name  the name of the attribute
+     * @param value the serialized value of the attribute
+     */
+    void setSerializedAttribute(String name, byte[] value) {
+        ((LazyAttributes) this.attributes).putSerialized(name, value);
+    }
+
+    /**
+     * Returns the serialized value of an attribute that has not been read since the session was loaded
+     *
+     * @param name the name of the attribute
+     * @return the serialized value of the attribute, or {@code null} if it has been read or does not exist
+     */
+    byte[] getSerializedAttribute(String name) {
+        return ((LazyAttributes) this.attributes).getSerialized(name);
+    }
+
+    private Object deserialize(String name, byte[] value) {
+        Context context = this.manager.getContext();
+        ClassLoader oldThreadContextCL = context.bind(Globals.IS_SECURITY_ENABLED, null);
+
+        try {
+            return JdkSessionSerializer.createInputStream(new ByteArrayInputStream(value)).readObject();
+        } catch (ClassNotFoundException e) {
+            LOGGER.warn("Unable to deserialize attribute {} of session {}", name, getIdInternal(), e);
+            return null;
+        } catch (IOException e) {
+            LOGGER.warn("Unable to deserialize attribute {} of session {}", name, getIdInternal(), e);
+            return null;
+        } finally {
+            context.unbind(Globals.IS_SECURITY_ENABLED, oldThreadContextCL);
+        }
+    }
+
+    private static final class Serialized {
+
+        private final byte[] value;
+
+        private Serialized(byte[] value) {
+            this.value = value;
+        }
+
+    }
+
+    private final class LazyAttributes extends ConcurrentHashMap<String, Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Object get(Object key) {
+            Object value = super.get(key);
+            if (!(value instanceof Serialized)) {
+                return value;
+            }
+
+            Object deserialized = materialize((String) key, value);
+            if (deserialized == null) {
+                super.remove(key, value);
+                return super.get(key);
+            }
+
+            return super.replace((String) key, value, deserialized) ? deserialized : get(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            return materialize(key, super.put(key, value));
+        }
+
+        @Override
+        public Object remove(Object key) {
+            return materialize((String) key, super.remove(key));
+        }
+
+        private void putSerialized(String key, byte[] value) {
+            super.put(key, new Serialized(value));
+        }
+
+        private byte[] getSerialized(String key) {
+            Object value = super.get(key);
+            return value instanceof Serialized ? ((Serialized) value).value : null;
+        }
+
+        private Object materialize(String key, Object value) {
+            return value instanceof Serialized ? deserialize(key, ((Serialized) value).value) : value;
+        }
+
+    }
+
+}
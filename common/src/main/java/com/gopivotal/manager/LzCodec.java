@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+
+/**
+ * A byte-oriented LZ77 codec in the style of LZ4.  The input is encoded as a series of sequences, each a token byte
+ * whose high and low nibbles hold the literal length and the match length less four, any literal or match length that
+ * does not fit in its nibble as a run of bytes that are added to it, the literals, and the match as a two-byte offset
+ * back into the output.  The last sequence holds only literals.
+ */
+final class LzCodec {
+
+    /**
+     * The most bytes that a single compressed byte can decompress to, which is reached by the bytes that extend the
+     * length of a match
+     */
+    static final int MAX_EXPANSION = 0xFF;
+
+    private static final int HASH_BITS = 12;
+
+    private static final int MAX_OFFSET = 0xFFFF;
+
+    private static final int MIN_MATCH = 4;
+
+    private static final int NIBBLE = 0xF;
+
+    private LzCodec() {
+    }
+
+    /**
+     * Compresses bytes
+     *
+     * @param bytes  the buffer holding the bytes to compress
+     * @param offset the offset of the bytes to compress in the buffer
+     * @param length the number of bytes to compress
+     * @return the compressed bytes
+     */
+    static byte[] compress(byte[] bytes, int offset, int length) {
+        byte[] out = new byte[length + length / 255 + 16];
+        int[] table = new int[1 << HASH_BITS];
+        int end = offset + length;
+
+        int position = 0;
+        int anchor = offset;
+        int i = offset;
+
+        while (i <= end - MIN_MATCH) {
+            int sequence = readInt(bytes, i);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int candidate = table[hash] - 1;
+            table[hash] = i + 1;
+
+            if (candidate < offset || i - candidate > MAX_OFFSET || readInt(bytes, candidate) != sequence) {
+                i++;
+                continue;
+            }
+
+            int match = MIN_MATCH;
+            while (i + match < end && bytes[candidate + match] == bytes[i + match]) {
+                match++;
+            }
+
+            position = writeSequence(out, position, bytes, anchor, i - anchor, i - candidate, match);
+            i += match;
+            anchor = i;
+        }
+
+        position = writeSequence(out, position, bytes, anchor, end - anchor, 0, 0);
+        return Arrays.copyOf(out, position);
+    }
+
+    /**
+     * Decompresses bytes
+     *
+     * @param bytes              the buffer holding the compressed bytes
+     * @param offset             the offset of the compressed bytes in the buffer
+     * @param length             the number of compressed bytes
+     * @param uncompressedLength the number of bytes the compressed bytes decompress to
+     * @return the decompressed bytes
+     * @throws StreamCorruptedException if the compressed bytes cannot decompress to {@code uncompressedLength} bytes
+     * @throws IOException              if the compressed bytes are malformed
+     */
+    static byte[] decompress(byte[] bytes, int offset, int length, int uncompressedLength) throws IOException {
+        if (uncompressedLength < 0 || uncompressedLength > (long) length * MAX_EXPANSION) {
+            throw new StreamCorruptedException(String.format("%d compressed bytes cannot decompress to %d", length,
+                    uncompressedLength));
+        }
+
+        byte[] out = new byte[uncompressedLength];
+        int end = offset + length;
+        int position = 0;
+        int i = offset;
+
+        try {
+            while (true) {
+                int token = bytes[i++] & 0xFF;
+
+                int literals = token >>> 4;
+                if (literals == NIBBLE) {
+                    int b;
+                    do {
+                        b = bytes[i++] & 0xFF;
+                        literals += b;
+                    } while (b == 0xFF);
+                }
+
+                System.arraycopy(bytes, i, out, position, literals);
+                i += literals;
+                position += literals;
+
+                if (i == end) {
+                    break;
+                }
+
+                int matchOffset = (bytes[i++] & 0xFF) | (bytes[i++] & 0xFF) << 8;
+                int matchLength = token & NIBBLE;
+                if (matchLength == NIBBLE) {
+                    int b;
+                    do {
+                        b = bytes[i++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 0xFF);
+                }
+                matchLength += MIN_MATCH;
+
+                int source = position - matchOffset;
+                if (matchOffset == 0 || source < 0) {
+                    throw new IOException(String.format("Invalid match offset %d at %d", matchOffset, position));
+                }
+                for (int j = 0; j < matchLength; j++) {
+                    out[position++] = out[source + j];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated or corrupt compressed session", e);
+        }
+
+        if (position != uncompressedLength) {
+            throw new IOException(String.format("Expected %d bytes of compressed session but decompressed %d",
+                    uncompressedLength, position));
+        }
+
+        return out;
+    }
+
+    private static int readInt(byte[] bytes, int i) {
+        return (bytes[i] & 0xFF) | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF) << 16 | (bytes[i + 3] & 0xFF) << 24;
+    }
+
+    private static int writeSequence(byte[] out, int position, byte[] bytes, int start, int literals, int matchOffset,
+                                     int matchLength) {
+        int token = Math.min(literals, NIBBLE) << 4;
+        if (matchOffset > 0) {
+            token |= Math.min(matchLength - MIN_MATCH, NIBBLE);
+        }
+        out[position++] = (byte) token;
+
+        position = writeLength(out, position, literals);
+        System.arraycopy(bytes, start, out, position, literals);
+        position += literals;
+
+        if (matchOffset > 0) {
+            out[position++] = (byte) matchOffset;
+            out[position++] = (byte) (matchOffset >>> 8);
+            position = writeLength(out, position, matchLength - MIN_MATCH);
+        }
+
+        return position;
+    }
+
+    private static int writeLength(byte[] out, int position, int length) {
+        if (length >= NIBBLE) {
+            int remaining = length - NIBBLE;
+            while (remaining >= 0xFF) {
+                out[position++] = (byte) 0xFF;
+                remaining -= 0xFF;
+            }
+            out[position++] = (byte) remaining;
+        }
+
+        return position;
+    }
+
+}
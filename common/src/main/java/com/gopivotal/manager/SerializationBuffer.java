@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A {@link ByteArrayOutputStream} that exposes its backing array, so that its contents can be read without being
+ * copied.  Instances are reused across serializations by the thread that owns them.
+ */
+final class SerializationBuffer extends ByteArrayOutputStream {
+
+    SerializationBuffer(int size) {
+        super(size);
+    }
+
+    /**
+     * Returns the backing array.  Only the first {@link #size()} bytes are valid, and the array is overwritten when the
+     * buffer is reused.
+     *
+     * @return the backing array
+     */
+    byte[] getBuffer() {
+        return this.buf;
+    }
+
+    /**
+     * Discards the bytes written after a given size
+     *
+     * @param size the number of bytes to keep, which must not exceed {@link #size()}
+     */
+    void truncate(int size) {
+        this.count = size;
+    }
+
+    /**
+     * Returns the size of the backing array
+     *
+     * @return the size of the backing array
+     */
+    int getCapacity() {
+        return this.buf.length;
+    }
+
+}
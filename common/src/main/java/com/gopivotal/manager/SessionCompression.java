@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A codec that serialized sessions can be compressed with.  Enveloped payloads identify their codec by its id.  Raw
+ * compressed payloads start with the codec's header byte, which is distinct from the first byte of every uncompressed
+ * format, so that compressed and uncompressed payloads can be read side by side.
+ * <p>
+ * The uncompressed length of a payload is read from its header, which cannot be trusted, so a payload that declares
+ * more than its codec could possibly expand it to is rejected before any memory is allocated for it.
+ */
+public enum SessionCompression {
+
+    /**
+     * Do not compress sessions
+     */
+    NONE(-1, 0, 1) {
+        @Override
+        byte[] compress(byte[] bytes, int offset, int length) {
+            return Arrays.copyOfRange(bytes, offset, offset + length);
+        }
+
+        @Override
+        byte[] inflate(byte[] bytes, int offset, int length, int uncompressedLength) throws IOException {
+            if (length != uncompressedLength) {
+                throw new StreamCorruptedException(String.format(
+                        "Uncompressed session declares %d bytes but holds %d", uncompressedLength, length));
+            }
+            return Arrays.copyOfRange(bytes, offset, offset + length);
+        }
+    },
+
+    /**
+     * Compress sessions with Deflate, at its fastest level
+     */
+    DEFLATE(0xD0, 1, 1032) {
+        @Override
+        byte[] compress(byte[] bytes, int offset, int length) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+
+            try {
+                deflater.setInput(bytes, offset, length);
+                deflater.finish();
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        byte[] inflate(byte[] bytes, int offset, int length, int uncompressedLength) throws IOException {
+            Inflater inflater = new Inflater(true);
+
+            try {
+                inflater.setInput(bytes, offset, length);
+
+                byte[] uncompressed = new byte[uncompressedLength];
+                int position = 0;
+                while (position < uncompressedLength) {
+                    int inflated = inflater.inflate(uncompressed, position, uncompressedLength - position);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    position += inflated;
+                }
+
+                if (position != uncompressedLength) {
+                    throw new IOException(String.format("Expected %d bytes of compressed session but inflated %d",
+                            uncompressedLength, position));
+                }
+                return uncompressed;
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            } finally {
+                inflater.end();
+            }
+        }
+    },
+
+    /**
+     * Compress sessions with a byte-oriented LZ77 codec, which compresses less than Deflate but is considerably faster
+     */
+    LZ(0xD1, 2, LzCodec.MAX_EXPANSION) {
+        @Override
+        byte[] compress(byte[] bytes, int offset, int length) {
+            return LzCodec.compress(bytes, offset, length);
+        }
+
+        @Override
+        byte[] inflate(byte[] bytes, int offset, int length, int uncompressedLength) throws IOException {
+            return LzCodec.decompress(bytes, offset, length, uncompressedLength);
+        }
+    };
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final int header;
+
+    private final int id;
+
+    /**
+     * The most bytes that a single byte of payload can decompress to
+     */
+    private final int maximumExpansion;
+
+    SessionCompression(int header, int id, int maximumExpansion) {
+        this.header = header;
+        this.id = id;
+        this.maximumExpansion = maximumExpansion;
+    }
+
+    /**
+     * Returns the codec with an id
+     *
+     * @param id the id of the codec
+     * @return the codec, or {@code null} if there is no codec with the id
+     */
+    static SessionCompression forId(int id) {
+        for (SessionCompression compression : values()) {
+            if (compression.id == id) {
+                return compression;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the codec whose header byte a payload starts with
+     *
+     * @param header the first byte of the payload
+     * @return the codec, or {@code null} if the payload is not compressed
+     */
+    static SessionCompression forHeader(int header) {
+        for (SessionCompression compression : values()) {
+            if (compression != NONE && compression.header == (header & 0xFF)) {
+                return compression;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the header byte that payloads compressed with this codec start with
+     *
+     * @return the header byte
+     */
+    int getHeader() {
+        return this.header;
+    }
+
+    /**
+     * Returns the id that identifies this codec in a {@link SessionEnvelope}
+     *
+     * @return the id of the codec
+     */
+    int getId() {
+        return this.id;
+    }
+
+    /**
+     * Decompresses a payload
+     *
+     * @param bytes              the buffer holding the payload
+     * @param offset             the offset of the payload in the buffer
+     * @param length             the length of the payload
+     * @param uncompressedLength the length the payload declares it decompresses to
+     * @return the decompressed payload
+     * @throws StreamCorruptedException if the declared length is negative or more than this codec can expand the
+     *                                  payload to
+     * @throws IOException              if the payload is malformed
+     */
+    final byte[] decompress(byte[] bytes, int offset, int length, int uncompressedLength) throws IOException {
+        if (uncompressedLength < 0 || uncompressedLength > (long) length * this.maximumExpansion) {
+            throw new StreamCorruptedException(String.format(
+                    "Compressed session of %d bytes cannot decompress to the %d bytes it declares", length,
+                    uncompressedLength));
+        }
+
+        return inflate(bytes, offset, length, uncompressedLength);
+    }
+
+    abstract byte[] compress(byte[] bytes, int offset, int length);
+
+    abstract byte[] inflate(byte[] bytes, int offset, int length, int uncompressedLength) throws IOException;
+
+}
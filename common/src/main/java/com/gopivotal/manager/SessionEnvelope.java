@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * A versioned envelope around a serialized session.  The envelope is a fixed header followed by the payload:
+ * <pre>
+ * magic (2 bytes) | version (1 byte) | codec (1 byte) | uncompressed length (4 bytes) | payload length (4 bytes) |
+ * payload CRC32 (4 bytes) | payload
+ * </pre>
+ * The magic number cannot start any of the raw formats that were stored before envelopes, so enveloped and raw
+ * payloads can be read side by side.
+ */
+final class SessionEnvelope {
+
+    static final int MAGIC = 0xE05E;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_LENGTH = 16;
+
+    private SessionEnvelope() {
+    }
+
+    /**
+     * Returns whether a payload is wrapped in an envelope
+     *
+     * @param payload the payload
+     * @return {@code true} if the payload starts with the envelope magic number, otherwise {@code false}
+     */
+    static boolean isEnvelope(byte[] payload) {
+        return payload.length >= 2 && ((payload[0] & 0xFF) << 8 | (payload[1] & 0xFF)) == MAGIC;
+    }
+
+    /**
+     * Wraps a payload in an envelope
+     *
+     * @param codec              the codec the payload is compressed with
+     * @param uncompressedLength the length of the serialized session before compression
+     * @param payload            the buffer holding the payload
+     * @param length             the length of the payload, which starts at the beginning of the buffer
+     * @return the enveloped payload
+     */
+    static byte[] wrap(SessionCompression codec, int uncompressedLength, byte[] payload, int length) {
+        return ByteBuffer.allocate(HEADER_LENGTH + length)
+                .putShort((short) MAGIC)
+                .put((byte) VERSION)
+                .put((byte) codec.getId())
+                .putInt(uncompressedLength)
+                .putInt(length)
+                .putInt(checksum(payload, 0, length))
+                .put(payload, 0, length)
+                .array();
+    }
+
+    /**
+     * Verifies an enveloped payload and returns the serialized session it holds
+     *
+     * @param envelope the enveloped payload
+     * @return the serialized session, decompressed if necessary
+     * @throws IOException if the envelope is truncated, corrupt, or of an unsupported version or codec
+     */
+    static byte[] unwrap(byte[] envelope) throws IOException {
+        if (envelope.length < HEADER_LENGTH) {
+            throw new EOFException("Truncated session envelope");
+        }
+
+        ByteBuffer header = ByteBuffer.wrap(envelope, 0, HEADER_LENGTH);
+        header.getShort();
+
+        int version = header.get() & 0xFF;
+        if (version != VERSION) {
+            throw new StreamCorruptedException(String.format("Unsupported session envelope version %d", version));
+        }
+
+        int id = header.get() & 0xFF;
+        SessionCompression codec = SessionCompression.forId(id);
+        if (codec == null) {
+            throw new StreamCorruptedException(String.format("Unknown session envelope codec %d", id));
+        }
+
+        int uncompressedLength = header.getInt();
+        int length = header.getInt();
+        int checksum = header.getInt();
+
+        if (length != envelope.length - HEADER_LENGTH || uncompressedLength < 0) {
+            throw new StreamCorruptedException(String.format(
+                    "Session envelope declares %d bytes (%d uncompressed) but holds %d", length, uncompressedLength,
+                    envelope.length - HEADER_LENGTH));
+        }
+        if (checksum != checksum(envelope, HEADER_LENGTH, length)) {
+            throw new StreamCorruptedException("Session envelope checksum mismatch");
+        }
+
+        return codec.decompress(envelope, HEADER_LENGTH, length, uncompressedLength);
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+}
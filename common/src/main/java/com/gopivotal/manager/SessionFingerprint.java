@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager;
+
+import org.apache.catalina.Session;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A digest of the persistent state of a {@link Session}, used to detect whether a session has changed since it was
+ * last persisted.  Access times are deliberately excluded so that a read-only request produces the same fingerprint.
+ */
+public final class SessionFingerprint {
+
+    private final byte[] metadata;
+
+    private final Map<String, byte[]> attributes;
+
+    SessionFingerprint(byte[] metadata, Map<String, byte[]> attributes) {
+        this.metadata = metadata;
+        this.attributes = Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * Returns the names of the attributes that were added or modified relative to a previous fingerprint
+     *
+     * @param previous the previous fingerprint, or {@code null} if there is none
+     * @return the names of the attributes that were added or modified
+     */
+    public Set<String> getChangedAttributes(SessionFingerprint previous) {
+        Set<String> changed = new HashSet<>();
+
+        for (Map.Entry<String, byte[]> entry : this.attributes.entrySet()) {
+            byte[] candidate = previous == null ? null : previous.attributes.get(entry.getKey());
+            if (!Arrays.equals(entry.getValue(), candidate)) {
+                changed.add(entry.getKey());
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Returns the names of the attributes that were removed relative to a previous fingerprint
+     *
+     * @param previous the previous fingerprint, or {@code null} if there is none
+     * @return the names of the attributes that were removed
+     */
+    public Set<String> getRemovedAttributes(SessionFingerprint previous) {
+        Set<String> removed = new HashSet<>();
+
+        if (previous != null) {
+            for (String name : previous.attributes.keySet()) {
+                if (!this.attributes.containsKey(name)) {
+                    removed.add(name);
+                }
+            }
+        }
+
+        return removed;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        SessionFingerprint that = (SessionFingerprint) o;
+
+        if (!Arrays.equals(this.metadata, that.metadata) || this.attributes.size() != that.attributes.size()) {
+            return false;
+        }
+
+        for (Map.Entry<String, byte[]> entry : this.attributes.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), that.attributes.get(entry.getKey()))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Arrays.hashCode(this.metadata);
+        for (Map.Entry<String, byte[]> entry : this.attributes.entrySet()) {
+            result += entry.getKey().hashCode() ^ Arrays.hashCode(entry.getValue());
+        }
+        return result;
+    }
+
+}
@@ -18,21 +18,53 @@ package com.gopivotal.manager;
 
 import org.apache.catalina.Contained;
 import org.apache.catalina.Container;
+import org.apache.catalina.Context;
 import org.apache.catalina.Session;
 import org.apache.catalina.Store;
 import org.apache.catalina.Valve;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * An implementation for the {@link Valve} interface that flushes any existing sessions before the response is returned.
+ * <p>
+ * If the store is a {@link SessionLockingStore}, the requested session is locked while the request is processed and
+ * until the session has been flushed.  A request whose session cannot be locked in time is rejected with {@code 503
+ * Service Unavailable}, and the fencing token of an acquired lock is exposed as the {@link #FENCING_TOKEN_ATTRIBUTE}
+ * request attribute.
+ * <p>
+ * If the request goes asynchronous, its lock is released straight away rather than held, without renewal, for as
+ * long as the request runs.  The session is saved by the thread that completes the request, fenced by the released
+ * lock, so that the save is discarded if another request has locked the session in the meantime.  Asynchronous
+ * dispatches of the request pass straight through.
+ * <p>
+ * Requests for URIs, or with HTTP methods, that are configured to be skipped also pass straight through, so that
+ * static resources, health checks and {@code HEAD} requests do not lock or save the session.
+ * <p>
+ * The valve sits in front of every request, so {@link #invoke(Request, Response)} reads the collaborators it is
+ * configured with from volatile fields rather than under a lock, and allocates nothing of its own unless the request
+ * goes asynchronous.
  */
 public final class SessionFlushValve extends AbstractLifecycle implements Contained, SessionFlushValveManagement,
         Valve {
 
+    /**
+     * The request attribute holding the fencing token of the session lock, if the session is locked
+     */
+    public static final String FENCING_TOKEN_ATTRIBUTE = SessionFlushValve.class.getName() + ".FENCING_TOKEN";
+
     private final JmxSupport jmxSupport;
 
     private final LockTemplate lockTemplate = new LockTemplate();
@@ -43,6 +75,12 @@ public final class SessionFlushValve extends AbstractLifecycle implements Contai
 
     private volatile Store store;
 
+    private volatile UriPatterns includedUris = new UriPatterns("");
+
+    private volatile UriPatterns excludedUris = new UriPatterns("");
+
+    private volatile Set<String> skippedMethods = Collections.emptySet();
+
     /**
      * Creates a new instance
      */
@@ -60,23 +98,43 @@ public final class SessionFlushValve extends AbstractLifecycle implements Contai
 
     @Override
     public Container getContainer() {
-        return this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<Container>() {
+        return this.container;
+    }
+
+    @Override
+    public void setContainer(final Container container) {
+        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
 
             @Override
-            public Container invoke() {
-                return SessionFlushValve.this.container;
+            public Void invoke() {
+                SessionFlushValve.this.container = container;
+                return null;
             }
 
         });
     }
 
     @Override
-    public void setContainer(final Container container) {
+    public String getExcludedUris() {
+        return this.excludedUris.toString();
+    }
+
+    /**
+     * Sets the URI patterns of requests whose sessions are not flushed, such as static resources and health checks.
+     * Patterns are comma-separated, have the syntax of servlet mappings ({@code /health}, {@code /static/*} or {@code
+     * *.css}), and are matched against the request URI without the context path.  Excluded requests pass straight
+     * through the valve, without locking or saving their session.
+     *
+     * @param excludedUris the URI patterns of requests whose sessions are not flushed
+     */
+    public void setExcludedUris(final String excludedUris) {
+        final UriPatterns patterns = new UriPatterns(excludedUris);
+
         this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
 
             @Override
             public Void invoke() {
-                SessionFlushValve.this.container = container;
+                SessionFlushValve.this.excludedUris = patterns;
                 return null;
             }
 
@@ -84,17 +142,36 @@ public final class SessionFlushValve extends AbstractLifecycle implements Contai
     }
 
     @Override
-    public Valve getNext() {
-        return this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<Valve>() {
+    public String getIncludedUris() {
+        return this.includedUris.toString();
+    }
+
+    /**
+     * Sets the URI patterns of requests whose sessions are flushed.  Patterns have the same syntax as {@link
+     * #setExcludedUris(String)}, and requests that match no pattern pass straight through the valve.  If empty, all
+     * requests that are not excluded are included.
+     *
+     * @param includedUris the URI patterns of requests whose sessions are flushed
+     */
+    public void setIncludedUris(final String includedUris) {
+        final UriPatterns patterns = new UriPatterns(includedUris);
+
+        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
 
             @Override
-            public Valve invoke() {
-                return SessionFlushValve.this.next;
+            public Void invoke() {
+                SessionFlushValve.this.includedUris = patterns;
+                return null;
             }
 
         });
     }
 
+    @Override
+    public Valve getNext() {
+        return this.next;
+    }
+
     @Override
     public void setNext(final Valve valve) {
         this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
@@ -114,14 +191,7 @@ public final class SessionFlushValve extends AbstractLifecycle implements Contai
      * @return the store used when flushing the session
      */
     public Store getStore() {
-        return this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<Store>() {
-
-            @Override
-            public Store invoke() {
-                return SessionFlushValve.this.store;
-            }
-
-        });
+        return this.store;
     }
 
     /**
@@ -142,30 +212,73 @@ public final class SessionFlushValve extends AbstractLifecycle implements Contai
     }
 
     @Override
-    public void invoke(final Request request, final Response response) {
-        this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<Void>() {
+    public String getSkippedMethods() {
+        StringBuilder skippedMethods = new StringBuilder();
+        for (String method : this.skippedMethods) {
+            skippedMethods.append(skippedMethods.length() == 0 ? "" : ",").append(method);
+        }
+        return skippedMethods.toString();
+    }
 
-            @Override
-            public Void invoke() throws IOException, ServletException {
-                try {
-                    SessionFlushValve.this.next.invoke(request, response);
-                } finally {
-                    Session session = request.getSessionInternal(false);
-                    if (session != null && session.isValid()) {
-                        SessionFlushValve.this.store.save(session);
-                    }
-                }
+    /**
+     * Sets the HTTP methods, such as {@code HEAD} and {@code OPTIONS}, of requests whose sessions are not flushed.
+     * Methods are comma-separated, and requests with one of them pass straight through the valve.
+     *
+     * @param skippedMethods the HTTP methods of requests whose sessions are not flushed
+     */
+    public void setSkippedMethods(String skippedMethods) {
+        final Set<String> methods = new LinkedHashSet<>();
+        for (String method : skippedMethods.split(",")) {
+            if (!method.trim().isEmpty()) {
+                methods.add(method.trim().toUpperCase(Locale.ENGLISH));
+            }
+        }
 
+        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
+
+            @Override
+            public Void invoke() {
+                SessionFlushValve.this.skippedMethods = Collections.unmodifiableSet(methods);
                 return null;
             }
 
         });
+    }
 
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        if (request.getDispatcherType() == DispatcherType.ASYNC || isSkipped(request)) {
+            this.next.invoke(request, response);
+            return;
+        }
+
+        Store store = this.store;
+        SessionLock lock = lock(store, request.getRequestedSessionId());
+        if (lock != null && !lock.isAcquired()) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        if (lock != null) {
+            request.setAttribute(FENCING_TOKEN_ATTRIBUTE, lock.getFencingToken());
+        }
+
+        try {
+            this.next.invoke(request, response);
+        } finally {
+            if (request.isAsync()) {
+                if (lock != null) {
+                    ((SessionLockingStore) store).unlock(lock);
+                }
+                request.getAsyncContext().addListener(new FlushListener(request, store, lock));
+            } else {
+                flush(request, store, lock);
+            }
+        }
     }
 
     @Override
     public boolean isAsyncSupported() {
-        return false;
+        return true;
     }
 
     @Override
@@ -194,6 +307,55 @@ public final class SessionFlushValve extends AbstractLifecycle implements Contai
         });
     }
 
+    private void flush(Request request, Store store, SessionLock lock) throws IOException {
+        try {
+            save(request, store, null);
+        } finally {
+            if (lock != null) {
+                ((SessionLockingStore) store).unlock(lock);
+            }
+        }
+    }
+
+    /**
+     * Saves the session of a request.  A lock is only passed once it has been released, and fences the save.
+     */
+    private void save(Request request, Store store, SessionLock releasedLock) throws IOException {
+        Session session = request.getSessionInternal(false);
+        if (session == null || !session.isValid()) {
+            return;
+        }
+
+        if (releasedLock != null) {
+            ((SessionLockingStore) store).save(session, releasedLock);
+        } else {
+            store.save(session);
+        }
+    }
+
+    private boolean isSkipped(Request request) {
+        Set<String> skippedMethods = this.skippedMethods;
+        if (!skippedMethods.isEmpty() && skippedMethods.contains(request.getMethod())) {
+            return true;
+        }
+
+        UriPatterns includedUris = this.includedUris;
+        UriPatterns excludedUris = this.excludedUris;
+        if (includedUris.isEmpty() && excludedUris.isEmpty()) {
+            return false;
+        }
+
+        String uri = request.getDecodedRequestURI();
+        Context context = request.getContext();
+        int offset = context == null ? 0 : context.getPath().length();
+
+        return !includedUris.isEmpty() && !includedUris.matches(uri, offset) || excludedUris.matches(uri, offset);
+    }
+
+    private SessionLock lock(Store store, String id) {
+        return id != null && store instanceof SessionLockingStore ? ((SessionLockingStore) store).lock(id) : null;
+    }
+
     private String getContext() {
         String name = this.container.getName();
         return name.startsWith("/") ? name : String.format("/%s", name);
@@ -207,4 +369,51 @@ public final class SessionFlushValve extends AbstractLifecycle implements Contai
                 getClass().getSimpleName());
     }
 
+    /**
+     * Flushes the session of an asynchronous request once the request completes, fenced by the lock the request held
+     * before it went asynchronous.  Each time the request goes asynchronous its session is flushed once, when it times
+     * out or, if it does not, when it completes.
+     */
+    private final class FlushListener implements AsyncListener {
+
+        private final Request request;
+
+        private final Store store;
+
+        private final SessionLock lock;
+
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        private FlushListener(Request request, Store store, SessionLock lock) {
+            this.request = request;
+            this.store = store;
+            this.lock = lock;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            if (this.completed.compareAndSet(false, true)) {
+                save(this.request, this.store, this.lock);
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            if (this.completed.compareAndSet(false, true)) {
+                save(this.request, this.store, this.lock);
+            }
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            this.completed.set(false);
+            event.getAsyncContext().addListener(this);
+        }
+
+    }
+
 }
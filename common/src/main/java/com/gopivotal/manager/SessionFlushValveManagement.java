@@ -23,4 +23,26 @@ import javax.management.MXBean;
  */
 @MXBean
 public interface SessionFlushValveManagement {
+
+    /**
+     * Returns the URI patterns of requests whose sessions are flushed.  If empty, all requests are included.
+     *
+     * @return the URI patterns of requests whose sessions are flushed
+     */
+    String getIncludedUris();
+
+    /**
+     * Returns the URI patterns of requests whose sessions are not flushed
+     *
+     * @return the URI patterns of requests whose sessions are not flushed
+     */
+    String getExcludedUris();
+
+    /**
+     * Returns the HTTP methods of requests whose sessions are not flushed
+     *
+     * @return the HTTP methods of requests whose sessions are not flushed
+     */
+    String getSkippedMethods();
+
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager;
+
+/**
+ * A lease on a session, held by the node processing a request for the session so that requests on other nodes cannot
+ * interleave with it
+ */
+public interface SessionLock {
+
+    /**
+     * Returns whether the lock was acquired.  A lock that was not acquired before the wait for it timed out must not be
+     * released.
+     *
+     * @return whether the lock was acquired
+     */
+    boolean isAcquired();
+
+    /**
+     * Returns a token that increases every time the lock of the session is acquired.  Resources that are updated while
+     * the lock is held can reject updates carrying a smaller token than one they have already seen, which protects
+     * them from a holder whose lease expired.
+     *
+     * @return the fencing token, or {@code 0} if the lock was not acquired
+     */
+    long getFencingToken();
+
+}
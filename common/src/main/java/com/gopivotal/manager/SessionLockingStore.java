@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager;
+
+import org.apache.catalina.Session;
+
+import java.io.IOException;
+
+/**
+ * Implemented by {@link org.apache.catalina.Store}s that can lock a session for the duration of a request.  The {@link
+ * SessionFlushValve} locks the requested session before the request is processed and unlocks it once the session has
+ * been saved.
+ */
+public interface SessionLockingStore {
+
+    /**
+     * Locks a session, waiting for a bounded time if another request holds the lock
+     *
+     * @param id the id of the session
+     * @return the lock, which may not have been acquired, or {@code null} if sessions are not locked
+     */
+    SessionLock lock(String id);
+
+    /**
+     * Releases a lock acquired with {@link #lock(String)}.  A lock whose lease has expired, and that may have been
+     * acquired by another request since, is left alone.
+     *
+     * @param lock the lock to release
+     */
+    void unlock(SessionLock lock);
+
+    /**
+     * Saves a session fenced by a lock that has already been released.  Called when an asynchronous request completes,
+     * since its lock is released when the request goes asynchronous.  The save is discarded if the lock of the session
+     * has been acquired by another request since.
+     *
+     * @param session the session to save
+     * @param lock    the released lock that the session was locked with
+     * @throws IOException if the session cannot be saved
+     */
+    void save(Session session, SessionLock lock) throws IOException;
+
+}
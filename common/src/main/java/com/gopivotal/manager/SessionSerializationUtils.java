@@ -18,11 +18,22 @@ package com.gopivotal.manager;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.NotSerializableException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.Principal;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.catalina.Context;
 import org.apache.catalina.Globals;
@@ -35,15 +46,81 @@ import org.apache.catalina.session.StandardSession;
  */
 public final class SessionSerializationUtils {
 
+    private static final int COMPRESSION_HEADER_LENGTH = 5;
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<SerializationBuffer> BUFFERS = new ThreadLocal<>();
+
+    private static final byte[] STREAM_HEADER = ByteBuffer.allocate(4)
+            .putShort(ObjectStreamConstants.STREAM_MAGIC)
+            .putShort(ObjectStreamConstants.STREAM_VERSION)
+            .array();
+
     private final Manager manager;
 
+    private final SessionSerializer serializer;
+
+    private final SessionCompression compression;
+
+    private final int compressionThreshold;
+
+    private final boolean envelope;
+
     /**
-     * Creates a new instance
+     * Creates a new instance that uses Java serialization
      *
      * @param manager the manager to use when recreating sessions
      */
     public SessionSerializationUtils(Manager manager) {
+        this(manager, new JdkSessionSerializer());
+    }
+
+    /**
+     * Creates a new instance
+     *
+     * @param manager    the manager to use when recreating sessions
+     * @param serializer the serializer to write and read sessions with
+     */
+    public SessionSerializationUtils(Manager manager, SessionSerializer serializer) {
+        this(manager, serializer, SessionCompression.NONE, 0);
+    }
+
+    /**
+     * Creates a new instance that compresses serialized sessions.  Sessions smaller than the threshold, and sessions
+     * that do not get smaller when compressed, are stored uncompressed.  Compressed sessions are read regardless of the
+     * compression this instance writes with.
+     *
+     * @param manager              the manager to use when recreating sessions
+     * @param serializer           the serializer to write and read sessions with
+     * @param compression          the codec to compress serialized sessions with
+     * @param compressionThreshold the size, in bytes, from which serialized sessions are compressed
+     */
+    public SessionSerializationUtils(Manager manager, SessionSerializer serializer, SessionCompression compression,
+                                     int compressionThreshold) {
+        this(manager, serializer, compression, compressionThreshold, false);
+    }
+
+    /**
+     * Creates a new instance that optionally wraps serialized sessions in a versioned envelope, which records the
+     * codec the session is compressed with and a checksum of the payload.  Enveloped and raw sessions are read
+     * regardless of whether this instance writes envelopes.
+     *
+     * @param manager              the manager to use when recreating sessions
+     * @param serializer           the serializer to write and read sessions with
+     * @param compression          the codec to compress serialized sessions with
+     * @param compressionThreshold the size, in bytes, from which serialized sessions are compressed
+     * @param envelope             whether to wrap serialized sessions in an envelope
+     */
+    public SessionSerializationUtils(Manager manager, SessionSerializer serializer, SessionCompression compression,
+                                     int compressionThreshold, boolean envelope) {
         this.manager = manager;
+        this.serializer = serializer;
+        this.compression = compression;
+        this.compressionThreshold = compressionThreshold;
+        this.envelope = envelope;
     }
 
     /**
@@ -59,30 +136,17 @@ public final class SessionSerializationUtils {
             return null;
         }
 
-        ByteArrayInputStream bytes = null;
-        ObjectInputStream in = null;
+        ByteArrayInputStream bytes = new ByteArrayInputStream(
+                SessionEnvelope.isEnvelope(session) ? SessionEnvelope.unwrap(session) : decompress(session));
         Context context = this.manager.getContext();
         ClassLoader oldThreadContextCL = context.bind(Globals.IS_SECURITY_ENABLED, null);
 
         try {
-            bytes = new ByteArrayInputStream(session);
-            in = new ObjectInputStream(bytes) {
-                @Override
-                protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
-                    try {
-                        return Class.forName(desc.getName(), false, Thread.currentThread().getContextClassLoader());
-                    } catch (ClassNotFoundException cnfe) {
-                        return super.resolveClass(desc);
-                    }
-                }
-            };
-
             StandardSession standardSession = (StandardSession) this.manager.createEmptySession();
-            standardSession.readObjectData(in);
+            this.serializer.deserialize(standardSession, bytes);
 
             return standardSession;
         } finally {
-            closeQuietly(in, bytes);
             context.unbind(Globals.IS_SECURITY_ENABLED, oldThreadContextCL);
         }
     }
@@ -95,33 +159,427 @@ public final class SessionSerializationUtils {
      * @throws IOException
      */
     public byte[] serialize(Session session) throws IOException {
-        ByteArrayOutputStream bytes = null;
-        ObjectOutputStream out = null;
+        SerializationBuffer buffer = acquireBuffer();
 
         try {
-            bytes = new ByteArrayOutputStream();
-            out = new ObjectOutputStream(bytes);
+            this.serializer.serialize((StandardSession) session, buffer);
+            int length = buffer.size();
 
-            StandardSession standardSession = (StandardSession) session;
-            standardSession.writeObjectData(out);
+            SessionCompression codec = SessionCompression.NONE;
+            byte[] payload = buffer.getBuffer();
+            int payloadLength = length;
 
-            out.flush();
-            bytes.flush();
+            if (this.compression != SessionCompression.NONE && length >= this.compressionThreshold) {
+                byte[] compressed = this.compression.compress(payload, 0, length);
+                if (compressed.length + COMPRESSION_HEADER_LENGTH < length) {
+                    codec = this.compression;
+                    payload = compressed;
+                    payloadLength = compressed.length;
+                }
+            }
+
+            if (this.envelope) {
+                return SessionEnvelope.wrap(codec, length, payload, payloadLength);
+            }
+
+            if (codec == SessionCompression.NONE) {
+                return buffer.toByteArray();
+            }
+
+            return ByteBuffer.allocate(COMPRESSION_HEADER_LENGTH + payloadLength)
+                    .put((byte) codec.getHeader())
+                    .putInt(length)
+                    .put(payload, 0, payloadLength)
+                    .array();
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Serialize the metadata of a {@link Session}: its id, timestamps, expiry settings, authentication type and
+     * principal.  The principal is omitted if it is not serializable.
+     *
+     * @param session the {@link Session} whose metadata to serialize
+     * @return a {@code byte[]} representing the serialized metadata
+     * @throws IOException
+     */
+    public byte[] serializeMetadata(Session session) throws IOException {
+        StandardSession standardSession = (StandardSession) session;
+        Principal principal = standardSession.getPrincipal();
+        boolean valid = standardSession.isValid();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+        // StandardSession's own format with no attributes, so that readObjectData restores the fields it has no setters
+        // for.  The session is written as valid so that its attributes can be restored before its validity is.
+        out.writeObject(standardSession.getCreationTimeInternal());
+        out.writeObject(standardSession.getLastAccessedTimeInternal());
+        out.writeObject(standardSession.getMaxInactiveInterval());
+        out.writeObject(valid && standardSession.isNew());
+        out.writeObject(true);
+        out.writeObject(standardSession.getThisAccessedTimeInternal());
+        out.writeObject(standardSession.getIdInternal());
+        out.writeObject(0);
+        out.writeObject(standardSession.getAuthType());
+        out.writeObject(principal instanceof Serializable ? serializeAttribute(principal) : null);
+        out.writeObject(valid);
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Serialize the attributes of a {@link Session} individually, so that they can be stored and updated
+     * independently.  Attributes whose values are not serializable are omitted.
+     *
+     * @param session the {@link Session} whose attributes to serialize
+     * @return the serialized attribute values, keyed by attribute name
+     * @throws IOException
+     */
+    public Map<String, byte[]> serializeAttributes(Session session) throws IOException {
+        StandardSession standardSession = (StandardSession) session;
+
+        Map<String, byte[]> attributes = new HashMap<>();
+        if (standardSession.isValid()) {
+            for (Enumeration<String> names = standardSession.getAttributeNames(); names.hasMoreElements(); ) {
+                String name = names.nextElement();
+
+                byte[] serialized = getSerializedAttribute(standardSession, name);
+                if (serialized == null) {
+                    Object value = standardSession.getAttribute(name);
+                    serialized = value instanceof Serializable ? serializeAttribute(value) : null;
+                }
+
+                if (serialized != null) {
+                    attributes.put(name, serialized);
+                }
+            }
+        }
+
+        return attributes;
+    }
+
+    /**
+     * Deserialize a {@link Session} from its metadata and individually serialized attributes
+     *
+     * @param metadata   a {@code byte[]} representing the metadata, as returned by {@link #serializeMetadata(Session)}
+     * @param attributes the serialized attribute values, as returned by {@link #serializeAttributes(Session)}
+     * @return the deserialized {@link Session}
+     * @throws ClassNotFoundException
+     * @throws IOException
+     */
+    public Session deserialize(byte[] metadata, Map<String, byte[]> attributes)
+            throws ClassNotFoundException, IOException {
+        return deserialize(metadata, attributes, false);
+    }
+
+    /**
+     * Deserialize a {@link Session} from its metadata and individually serialized attributes, optionally deferring the
+     * deserialization of each attribute until it is first read.  A lazily deserialized session is a {@link
+     * StandardSession} rather than the type of session the manager creates.
+     *
+     * @param metadata   a {@code byte[]} representing the metadata, as returned by {@link #serializeMetadata(Session)}
+     * @param attributes the serialized attribute values, as returned by {@link #serializeAttributes(Session)}
+     * @param lazy       whether to defer the deserialization of attributes until they are first read
+     * @return the deserialized {@link Session}
+     * @throws ClassNotFoundException
+     * @throws IOException
+     */
+    public Session deserialize(byte[] metadata, Map<String, byte[]> attributes, boolean lazy)
+            throws ClassNotFoundException, IOException {
+        Context context = this.manager.getContext();
+        ClassLoader oldThreadContextCL = context.bind(Globals.IS_SECURITY_ENABLED, null);
+
+        try {
+            StandardSession standardSession = lazy ? new LazySession(this.manager) :
+                    (StandardSession) this.manager.createEmptySession();
+
+            ObjectInputStream in = JdkSessionSerializer.createInputStream(new ByteArrayInputStream(metadata));
+            standardSession.readObjectData(in);
+            standardSession.setAuthType((String) in.readObject());
+            byte[] principal = (byte[]) in.readObject();
+            if (principal != null) {
+                standardSession.setPrincipal((Principal) deserializeAttribute(principal));
+            }
+
+            boolean valid = (Boolean) in.readObject();
+
+            for (Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+                if (lazy) {
+                    ((LazySession) standardSession).setSerializedAttribute(attribute.getKey(), attribute.getValue());
+                } else {
+                    standardSession.setAttribute(attribute.getKey(), deserializeAttribute(attribute.getValue()),
+                            false);
+                }
+            }
+            standardSession.setValid(valid);
+
+            return standardSession;
+        } finally {
+            context.unbind(Globals.IS_SECURITY_ENABLED, oldThreadContextCL);
+        }
+    }
+
+    /**
+     * Creates a deep copy of a {@link Session}.  The original's attribute values are copied through serialization, so
+     * that the copy shares no mutable state with the original.  Like a deserialized session, the copy only holds the
+     * original's serializable attributes, and it is not added to the manager.  Its access times are set to the current
+     * time.
+     *
+     * @param session the {@link Session} to copy
+     * @param lazy    whether to defer the deserialization of the copied attributes until they are first read
+     * @return the copy of the {@link Session}
+     * @throws ClassNotFoundException
+     * @throws IOException
+     */
+    public Session copy(Session session, boolean lazy) throws ClassNotFoundException, IOException {
+        if (lazy) {
+            return snapshot(session);
+        }
+
+        Map<String, byte[]> attributes = serializeAttributes(session);
 
-            return bytes.toByteArray();
+        Context context = this.manager.getContext();
+        ClassLoader oldThreadContextCL = context.bind(Globals.IS_SECURITY_ENABLED, null);
+
+        try {
+            StandardSession copy = createCopy((StandardSession) session,
+                    (StandardSession) this.manager.createEmptySession());
+            for (Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+                copy.setAttribute(attribute.getKey(), deserializeAttribute(attribute.getValue()), false);
+            }
+            return copy;
         } finally {
-            closeQuietly(out, bytes);
+            context.unbind(Globals.IS_SECURITY_ENABLED, oldThreadContextCL);
+        }
+    }
+
+    /**
+     * Creates a deep copy of a {@link Session} whose attributes stay serialized until they are first read.  Taking a
+     * snapshot serializes the original's attributes but deserializes nothing, so a snapshot is a cheap way to hold on
+     * to the state of a session that may change afterwards.
+     *
+     * @param session the {@link Session} to copy
+     * @return the copy of the {@link Session}
+     * @throws IOException
+     * @see #copy(Session, boolean)
+     */
+    public Session snapshot(Session session) throws IOException {
+        LazySession copy = (LazySession) createCopy((StandardSession) session, new LazySession(this.manager));
+        for (Map.Entry<String, byte[]> attribute : serializeAttributes(session).entrySet()) {
+            copy.setSerializedAttribute(attribute.getKey(), attribute.getValue());
+        }
+        return copy;
+    }
+
+    /**
+     * Computes a {@link SessionFingerprint} of a {@link Session}.  The fingerprint covers the session's attributes and
+     * expiry settings, but not its access times.  Attributes whose values are not serializable are omitted, as they are
+     * when the session is serialized.
+     *
+     * @param session the {@link Session} to fingerprint
+     * @return the fingerprint of the {@link Session}
+     * @throws IOException
+     */
+    public SessionFingerprint fingerprint(Session session) throws IOException {
+        StandardSession standardSession = (StandardSession) session;
+
+        boolean valid = standardSession.isValid();
+
+        Map<String, byte[]> attributes = new HashMap<>();
+        if (valid) {
+            AttributeDigester digester = new AttributeDigester();
+            for (Enumeration<String> names = standardSession.getAttributeNames(); names.hasMoreElements(); ) {
+                String name = names.nextElement();
+                Object value = standardSession.getAttribute(name);
+
+                byte[] digest = value instanceof Serializable ? digester.digest(value) : null;
+                if (digest != null) {
+                    attributes.put(name, digest);
+                }
+            }
+        }
+
+        return new SessionFingerprint(digestMetadata(standardSession, valid), attributes);
+    }
+
+    /**
+     * Computes a {@link SessionFingerprint} of a {@link Session} from its already serialized attributes.  The result is
+     * the same as {@link #fingerprint(Session)}, without serializing the attributes a second time.
+     *
+     * @param session    the {@link Session} to fingerprint
+     * @param attributes the serialized attribute values, as returned by {@link #serializeAttributes(Session)}
+     * @return the fingerprint of the {@link Session}
+     * @throws IOException
+     */
+    public SessionFingerprint fingerprint(Session session, Map<String, byte[]> attributes) throws IOException {
+        StandardSession standardSession = (StandardSession) session;
+
+        boolean valid = standardSession.isValid();
+
+        Map<String, byte[]> digests = new HashMap<>();
+        if (valid) {
+            MessageDigest digest = createDigest();
+            for (Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+                digests.put(attribute.getKey(), digest.digest(attribute.getValue()));
+            }
         }
 
+        return new SessionFingerprint(digestMetadata(standardSession, valid), digests);
     }
 
-    private void closeQuietly(Closeable... closeables) {
-        for (Closeable closeable : closeables) {
+    /**
+     * Takes the calling thread's serialization buffer, so that a nested serialization on the same thread gets a buffer
+     * of its own
+     */
+    private static SerializationBuffer acquireBuffer() {
+        SerializationBuffer buffer = BUFFERS.get();
+        if (buffer == null) {
+            return new SerializationBuffer(INITIAL_BUFFER_SIZE);
+        }
+
+        BUFFERS.set(null);
+        return buffer;
+    }
+
+    /**
+     * Returns a serialization buffer to the calling thread for reuse, unless an unusually large session has grown it
+     * beyond the size worth keeping
+     */
+    private static void releaseBuffer(SerializationBuffer buffer) {
+        if (buffer.getCapacity() <= MAX_RETAINED_BUFFER_SIZE) {
+            buffer.reset();
+            BUFFERS.set(buffer);
+        }
+    }
+
+    private byte[] decompress(byte[] session) throws IOException {
+        SessionCompression compression = session.length == 0 ? null : SessionCompression.forHeader(session[0]);
+        if (compression == null) {
+            return session;
+        }
+
+        if (session.length < COMPRESSION_HEADER_LENGTH) {
+            throw new EOFException("Truncated compressed session");
+        }
+
+        return compression.decompress(session, COMPRESSION_HEADER_LENGTH, session.length - COMPRESSION_HEADER_LENGTH,
+                ByteBuffer.wrap(session, 1, 4).getInt());
+    }
+
+    private StandardSession createCopy(StandardSession original, StandardSession copy) {
+        copy.setManager(null);
+        copy.setId(original.getIdInternal(), false);
+        copy.setManager(this.manager);
+
+        copy.setCreationTime(original.getCreationTimeInternal());
+        copy.setMaxInactiveInterval(original.getMaxInactiveInterval());
+        copy.setValid(true);
+        copy.access();
+        copy.endAccess();
+        copy.setNew(original.isNew());
+        return copy;
+    }
+
+    private byte[] getSerializedAttribute(StandardSession session, String name) {
+        return session instanceof LazySession ? ((LazySession) session).getSerializedAttribute(name) : null;
+    }
+
+    private byte[] digestMetadata(StandardSession session, boolean valid) throws IOException {
+        MessageDigest digest = createDigest();
+        digest.update(String.format("%d:%b:%b", session.getMaxInactiveInterval(), valid && session.isNew(), valid)
+                .getBytes("UTF-8"));
+        return digest.digest();
+    }
+
+    /**
+     * Serializes a single value, returning {@code null} if something it refers to turns out not to be serializable
+     */
+    private byte[] serializeAttribute(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(value);
+            out.flush();
+        } catch (NotSerializableException e) {
+            return null;
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private Object deserializeAttribute(byte[] value) throws ClassNotFoundException, IOException {
+        return JdkSessionSerializer.createInputStream(new ByteArrayInputStream(value)).readObject();
+    }
+
+    private MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Digests attribute values as if each was serialized on a stream of its own, like {@link
+     * #serializeAttribute(Object)} does, but shares one stream between them.  The stream is reset after every value, so
+     * that no value is written as a reference to an earlier one.
+     */
+    private final class AttributeDigester {
+
+        private final MessageDigest digest = createDigest();
+
+        private DigestOutputStream bytes;
+
+        private ObjectOutputStream out;
+
+        /**
+         * Returns the digest of a value, or {@code null} if something it refers to turns out not to be serializable
+         */
+        private byte[] digest(Object value) throws IOException {
+            if (this.out == null) {
+                this.bytes = new DigestOutputStream(NullOutputStream.INSTANCE, this.digest);
+                this.out = new ObjectOutputStream(this.bytes);
+                this.out.flush();
+            }
+
+            this.digest.reset();
+            this.digest.update(STREAM_HEADER);
+
             try {
-                closeable.close();
-            } catch (Exception e) {
-                // Nothing to do
+                this.out.writeObject(value);
+                this.out.flush();
+            } catch (NotSerializableException e) {
+                this.out = null;
+                return null;
             }
+
+            byte[] result = this.digest.digest();
+
+            this.bytes.on(false);
+            this.out.reset();
+            this.out.flush();
+            this.bytes.on(true);
+
+            return result;
+        }
+
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+
+        private static final NullOutputStream INSTANCE = new NullOutputStream();
+
+        @Override
+        public void write(int b) {
         }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gopivotal.manager;
+
+import org.apache.catalina.session.StandardSession;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes and reads the persistent state of a {@link StandardSession}.  Implementations must be thread-safe.
+ * <p>
+ * {@link #deserialize(StandardSession, InputStream)} is called with the web application's class loader as the thread
+ * context class loader, so implementations should resolve application classes through it.
+ */
+public interface SessionSerializer {
+
+    /**
+     * Writes the state of a session
+     *
+     * @param session the session to write
+     * @param out     the stream to write to
+     * @throws IOException
+     */
+    void serialize(StandardSession session, OutputStream out) throws IOException;
+
+    /**
+     * Reads the state of a session into an empty session
+     *
+     * @param session the empty session to read into
+     * @param in      the stream to read from
+     * @throws ClassNotFoundException
+     * @throws IOException
+     */
+    void deserialize(StandardSession session, InputStream in) throws ClassNotFoundException, IOException;
+
+}
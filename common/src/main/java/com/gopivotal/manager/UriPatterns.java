@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A comma-separated list of URI patterns with the syntax of servlet mappings: exact paths ({@code /health}), path
+ * prefixes ({@code /static/*}) and extensions ({@code *.css}).
+ * <p>
+ * Exact paths and prefixes are compiled into a trie that is walked forwards over the URI, and extensions into one that
+ * is walked backwards from its end, so matching a URI reads each character at most twice, whatever the number of
+ * patterns, and allocates nothing for ASCII URIs.
+ */
+final class UriPatterns {
+
+    private final String patterns;
+
+    private final Node paths = new Node();
+
+    private final Node extensions = new Node();
+
+    private final boolean empty;
+
+    UriPatterns(String patterns) {
+        this.patterns = patterns;
+
+        boolean empty = true;
+        for (String pattern : patterns.split(",")) {
+            pattern = pattern.trim();
+            if (pattern.isEmpty()) {
+                continue;
+            }
+
+            if (pattern.startsWith("*.")) {
+                this.extensions.add(new StringBuilder(pattern.substring(1)).reverse()).terminal = true;
+            } else if (pattern.startsWith("/") && pattern.endsWith("/*")) {
+                this.paths.add(pattern.substring(0, pattern.length() - 2)).prefix = true;
+            } else if (pattern.startsWith("/") && !pattern.contains("*")) {
+                this.paths.add(pattern).terminal = true;
+            } else {
+                throw new IllegalArgumentException(String.format("Invalid URI pattern '%s'", pattern));
+            }
+            empty = false;
+        }
+        this.empty = empty;
+    }
+
+    /**
+     * Returns whether there are no patterns
+     *
+     * @return {@code true} if there are no patterns, {@code false} otherwise
+     */
+    boolean isEmpty() {
+        return this.empty;
+    }
+
+    /**
+     * Returns whether a URI matches any of the patterns
+     *
+     * @param uri    the URI
+     * @param offset the index in the URI of the path to match, after the context path
+     * @return {@code true} if the path matches any of the patterns, {@code false} otherwise
+     */
+    boolean matches(String uri, int offset) {
+        int length = uri.length();
+
+        Node node = this.paths;
+        for (int i = offset; node != null; i++) {
+            if (node.prefix && (i == length || uri.charAt(i) == '/')) {
+                return true;
+            }
+            if (i == length) {
+                if (node.terminal) {
+                    return true;
+                }
+                break;
+            }
+            node = node.get(uri.charAt(i));
+        }
+
+        node = this.extensions;
+        for (int i = length - 1; i >= offset && node != null; i--) {
+            char c = uri.charAt(i);
+            if (c == '/') {
+                break;
+            }
+            node = node.get(c);
+            if (node != null && node.terminal) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return this.patterns;
+    }
+
+    private static final class Node {
+
+        private final Map<Character, Node> children = new HashMap<>();
+
+        private boolean prefix;
+
+        private boolean terminal;
+
+        private Node add(CharSequence path) {
+            Node node = this;
+            for (int i = 0; i < path.length(); i++) {
+                Node child = node.children.get(path.charAt(i));
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(path.charAt(i), child);
+                }
+                node = child;
+            }
+            return node;
+        }
+
+        private Node get(char c) {
+            return this.children.get(c);
+        }
+
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public final class ClassResolverTest {
+
+    private final CountingClassLoader classLoader = new CountingClassLoader();
+
+    private final ClassResolver classResolver = ClassResolver.forClassLoader(this.classLoader);
+
+    @Test
+    public void forClassLoader() {
+        assertSame(this.classResolver, ClassResolver.forClassLoader(this.classLoader));
+        assertNotSame(this.classResolver, ClassResolver.forClassLoader(new CountingClassLoader()));
+        assertSame(ClassResolver.forClassLoader(null), ClassResolver.forClassLoader(null));
+    }
+
+    @Test
+    public void forClassLoaderConcurrently() throws Exception {
+        final CountingClassLoader classLoader = new CountingClassLoader();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            List<Future<ClassResolver>> resolvers = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                resolvers.add(executor.submit(new Callable<ClassResolver>() {
+
+                    @Override
+                    public ClassResolver call() {
+                        return ClassResolver.forClassLoader(classLoader);
+                    }
+
+                }));
+            }
+
+            for (Future<ClassResolver> resolver : resolvers) {
+                assertSame(ClassResolver.forClassLoader(classLoader), resolver.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void collectedClassLoadersPurged() throws InterruptedException {
+        int initial = ClassResolver.resolvers();
+
+        for (int i = 0; i < 20; i++) {
+            ClassResolver.forClassLoader(new CountingClassLoader());
+            System.gc();
+            Thread.sleep(1);
+        }
+
+        assertTrue(ClassResolver.resolvers() < initial + 20);
+    }
+
+    @Test
+    public void common() throws ClassNotFoundException {
+        assertSame(HashMap.class, this.classResolver.resolve(HashMap.class.getName(), this.classLoader));
+        assertSame(byte[].class, this.classResolver.resolve("[B", this.classLoader));
+
+        assertEquals(0, this.classLoader.loads);
+        assertEquals(0, this.classResolver.size());
+    }
+
+    @Test
+    public void cached() throws ClassNotFoundException {
+        String name = SampleSessionObject.class.getName();
+
+        assertSame(SampleSessionObject.class, this.classResolver.resolve(name, this.classLoader));
+        assertSame(SampleSessionObject.class, this.classResolver.resolve(name, this.classLoader));
+
+        assertEquals(1, this.classLoader.loads);
+        assertEquals(1, this.classResolver.size());
+    }
+
+    @Test(expected = ClassNotFoundException.class)
+    public void notFound() throws ClassNotFoundException {
+        try {
+            this.classResolver.resolve("com.example.Unknown", this.classLoader);
+        } finally {
+            assertEquals(0, this.classResolver.size());
+        }
+    }
+
+    private static final class CountingClassLoader extends ClassLoader {
+
+        private int loads;
+
+        private CountingClassLoader() {
+            super(ClassResolverTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            this.loads++;
+            return super.loadClass(name, resolve);
+        }
+
+    }
+
+}
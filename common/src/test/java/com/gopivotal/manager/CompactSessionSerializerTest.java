@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.session.StandardManager;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class CompactSessionSerializerTest {
+
+    private final Context context = new StandardContext();
+
+    private final Manager manager = new StandardManager();
+
+    private final SessionSerializationUtils compact = new SessionSerializationUtils(this.manager,
+            new CompactSessionSerializer());
+
+    private final SessionSerializationUtils jdk = new SessionSerializationUtils(this.manager);
+
+    @Before
+    public void manager() throws Exception {
+        this.manager.setContext(this.context);
+    }
+
+    @Test
+    public void roundTrip() throws IOException, ClassNotFoundException {
+        Session initial = createSession();
+        initial.getSession().setAttribute("string", "test-value");
+        initial.getSession().setAttribute("integer", 42);
+        initial.getSession().setAttribute("long", 42L);
+        initial.getSession().setAttribute("boolean", true);
+        initial.getSession().setAttribute("double", 4.2d);
+        initial.getSession().setAttribute("float", 4.2f);
+        initial.getSession().setAttribute("short", (short) 42);
+        initial.getSession().setAttribute("byte", (byte) 42);
+        initial.getSession().setAttribute("character", 'x');
+        initial.getSession().setAttribute("bytes", new byte[]{1, 2, 3});
+        initial.getSession().setAttribute("list", new ArrayList<>(Arrays.asList("alpha", "bravo")));
+
+        Session result = this.compact.deserialize(this.compact.serialize(initial));
+
+        assertEquals("test-id", result.getId());
+        assertEquals(initial.getCreationTime(), result.getCreationTime());
+        assertEquals(600, result.getMaxInactiveInterval());
+        assertEquals("test-value", result.getSession().getAttribute("string"));
+        assertEquals(42, result.getSession().getAttribute("integer"));
+        assertEquals(42L, result.getSession().getAttribute("long"));
+        assertEquals(true, result.getSession().getAttribute("boolean"));
+        assertEquals(4.2d, result.getSession().getAttribute("double"));
+        assertEquals(4.2f, result.getSession().getAttribute("float"));
+        assertEquals((short) 42, result.getSession().getAttribute("short"));
+        assertEquals((byte) 42, result.getSession().getAttribute("byte"));
+        assertEquals('x', result.getSession().getAttribute("character"));
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) result.getSession().getAttribute("bytes"));
+        assertEquals(Arrays.asList("alpha", "bravo"), result.getSession().getAttribute("list"));
+    }
+
+    @Test
+    public void nonSerializableAttribute() throws IOException, ClassNotFoundException {
+        Session initial = createSession();
+        initial.getSession().setAttribute("test-key", "test-value");
+        initial.getSession().setAttribute("test-key-2", new Object());
+
+        Session result = this.compact.deserialize(this.compact.serialize(initial));
+
+        assertEquals("test-value", result.getSession().getAttribute("test-key"));
+        assertNull(result.getSession().getAttribute("test-key-2"));
+    }
+
+    @Test
+    public void readsJdkPayloads() throws IOException, ClassNotFoundException {
+        Session initial = createSession();
+        initial.getSession().setAttribute("test-key", "test-value");
+
+        Session result = this.compact.deserialize(this.jdk.serialize(initial));
+
+        assertEquals("test-id", result.getId());
+        assertEquals("test-value", result.getSession().getAttribute("test-key"));
+    }
+
+    @Test
+    public void smallerThanJdk() throws IOException {
+        Session initial = createSession();
+        for (int i = 0; i < 10; i++) {
+            initial.getSession().setAttribute("test-key-" + i, i);
+        }
+
+        assertTrue(this.compact.serialize(initial).length < this.jdk.serialize(initial).length);
+    }
+
+    @Test
+    public void smallerThanJdkWithSerializedAttributes() throws IOException {
+        Session initial = createSession();
+        for (int i = 0; i < 10; i++) {
+            SampleSessionObject value = new SampleSessionObject();
+            value.setSampleField("field-" + i);
+            initial.getSession().setAttribute("test-key-" + i, value);
+        }
+
+        assertTrue(this.compact.serialize(initial).length <= this.jdk.serialize(initial).length);
+    }
+
+    @Test
+    public void sharedReferences() throws IOException, ClassNotFoundException {
+        ArrayList<String> shared = new ArrayList<>(Arrays.asList("alpha", "bravo"));
+        Session initial = createSession();
+        initial.getSession().setAttribute("test-key", shared);
+        initial.getSession().setAttribute("test-key-2", Collections.singletonList(shared));
+
+        Session result = this.compact.deserialize(this.compact.serialize(initial));
+
+        Object value = result.getSession().getAttribute("test-key");
+        assertEquals(shared, value);
+        assertSame(value, ((List<?>) result.getSession().getAttribute("test-key-2")).get(0));
+    }
+
+    @Test
+    public void nonSerializableValueBetweenSerializedValues() throws IOException, ClassNotFoundException {
+        Session initial = createSession();
+        for (int i = 0; i < 5; i++) {
+            initial.getSession().setAttribute("test-key-" + i, new ArrayList<>(Arrays.asList("value-" + i)));
+        }
+        initial.getSession().setAttribute("test-key-broken", new ArrayList<>(Arrays.asList("value", new Object())));
+
+        Session result = this.compact.deserialize(this.compact.serialize(initial));
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Arrays.asList("value-" + i), result.getSession().getAttribute("test-key-" + i));
+        }
+        assertNull(result.getSession().getAttribute("test-key-broken"));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void unsupportedVersion() throws IOException, ClassNotFoundException {
+        this.compact.deserialize(new byte[]{(byte) CompactSessionSerializer.MAGIC, 99});
+    }
+
+    private Session createSession() {
+        Session session = this.manager.createEmptySession();
+        session.setValid(true);
+        session.setId("test-id", false);
+        session.setMaxInactiveInterval(600);
+        return session;
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.session.StandardManager;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class LazySessionTest {
+
+    private final Context context = new StandardContext();
+
+    private final Manager manager = new StandardManager();
+
+    private final SessionSerializationUtils sessionSerializationUtils = new SessionSerializationUtils(this.manager);
+
+    @Before
+    public void manager() throws Exception {
+        this.manager.setContext(this.context);
+    }
+
+    @Test
+    public void attributesDeserializedOnRead() throws IOException {
+        LazySession session = createSession();
+        byte[] serialized = serialize("test-value");
+        session.setSerializedAttribute("test-key", serialized);
+
+        assertSame(serialized, session.getSerializedAttribute("test-key"));
+        assertTrue(Collections.list(session.getAttributeNames()).contains("test-key"));
+
+        assertEquals("test-value", session.getAttribute("test-key"));
+        assertNull(session.getSerializedAttribute("test-key"));
+        assertSame(session.getAttribute("test-key"), session.getAttribute("test-key"));
+    }
+
+    @Test
+    public void setAttributeReplacesSerialized() throws IOException {
+        LazySession session = createSession();
+        session.setSerializedAttribute("test-key", serialize("test-value"));
+
+        session.setAttribute("test-key", "other-value");
+
+        assertNull(session.getSerializedAttribute("test-key"));
+        assertEquals("other-value", session.getAttribute("test-key"));
+    }
+
+    @Test
+    public void removeAttribute() throws IOException {
+        LazySession session = createSession();
+        session.setSerializedAttribute("test-key", serialize("test-value"));
+
+        session.removeAttribute("test-key");
+
+        assertNull(session.getAttribute("test-key"));
+        assertFalse(session.getAttributeNames().hasMoreElements());
+    }
+
+    @Test
+    public void undeserializableAttributeDropped() {
+        LazySession session = createSession();
+        session.setSerializedAttribute("test-key", new byte[]{0x01, 0x02, 0x03});
+
+        assertNull(session.getAttribute("test-key"));
+        assertFalse(session.getAttributeNames().hasMoreElements());
+    }
+
+    @Test
+    public void deserializeLazily() throws IOException, ClassNotFoundException {
+        Session initial = this.manager.createEmptySession();
+        initial.setValid(true);
+        initial.getSession().setAttribute("test-key", "test-value");
+        initial.getSession().setAttribute("test-key-2", "test-value-2");
+
+        Map<String, byte[]> attributes = this.sessionSerializationUtils.serializeAttributes(initial);
+        Session result = this.sessionSerializationUtils.deserialize(
+                this.sessionSerializationUtils.serializeMetadata(initial), attributes, true);
+
+        assertTrue(result instanceof LazySession);
+        assertEquals(initial.getId(), result.getId());
+        assertSame(attributes.get("test-key"), ((LazySession) result).getSerializedAttribute("test-key"));
+        assertEquals("test-value-2", result.getSession().getAttribute("test-key-2"));
+
+        Map<String, byte[]> reserialized = this.sessionSerializationUtils.serializeAttributes(result);
+        assertSame(attributes.get("test-key"), reserialized.get("test-key"));
+        assertArrayEquals(attributes.get("test-key-2"), reserialized.get("test-key-2"));
+        assertEquals(this.sessionSerializationUtils.fingerprint(initial, attributes),
+                this.sessionSerializationUtils.fingerprint(result, reserialized));
+    }
+
+    @Test
+    public void copyPreservesSerializedAttributes() throws ClassNotFoundException, IOException {
+        LazySession session = createSession();
+        byte[] serialized = serialize("test-value");
+        session.setSerializedAttribute("test-key", serialized);
+        session.setAttribute("test-key-2", "test-value-2");
+
+        Session copy = this.sessionSerializationUtils.copy(session, true);
+
+        assertTrue(copy instanceof LazySession);
+        assertSame(serialized, ((LazySession) copy).getSerializedAttribute("test-key"));
+        assertEquals("test-value-2", copy.getSession().getAttribute("test-key-2"));
+        assertSame(serialized, session.getSerializedAttribute("test-key"));
+    }
+
+    private LazySession createSession() {
+        LazySession session = new LazySession(this.manager);
+        session.setValid(true);
+        return session;
+    }
+
+    private static byte[] serialize(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+}
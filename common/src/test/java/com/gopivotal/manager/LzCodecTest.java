@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public final class LzCodecTest {
+
+    @Test
+    public void empty() throws IOException {
+        assertRoundTrip(new byte[0]);
+    }
+
+    @Test
+    public void shortInput() throws IOException {
+        assertRoundTrip(new byte[]{1, 2, 3});
+    }
+
+    @Test
+    public void repetitive() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.append("test-key-").append(i % 10).append("=test-value;");
+        }
+        byte[] bytes = builder.toString().getBytes("UTF-8");
+
+        byte[] compressed = assertRoundTrip(bytes);
+        assertTrue(compressed.length < bytes.length / 10);
+    }
+
+    @Test
+    public void run() throws IOException {
+        byte[] bytes = new byte[100000];
+        Arrays.fill(bytes, (byte) 7);
+
+        assertRoundTrip(bytes);
+    }
+
+    @Test
+    public void random() throws IOException {
+        byte[] bytes = new byte[100000];
+        new Random(42).nextBytes(bytes);
+
+        byte[] compressed = assertRoundTrip(bytes);
+        assertTrue(compressed.length <= bytes.length + bytes.length / 255 + 16);
+    }
+
+    @Test
+    public void offset() throws IOException {
+        byte[] bytes = "xxxxtest-value-test-value-test-valueyyyy".getBytes("UTF-8");
+
+        byte[] compressed = LzCodec.compress(bytes, 4, bytes.length - 8);
+
+        assertArrayEquals(Arrays.copyOfRange(bytes, 4, bytes.length - 4),
+                LzCodec.decompress(compressed, 0, compressed.length, bytes.length - 8));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated() throws IOException {
+        byte[] bytes = new byte[1000];
+        Arrays.fill(bytes, (byte) 7);
+        byte[] compressed = LzCodec.compress(bytes, 0, bytes.length);
+
+        LzCodec.decompress(compressed, 0, compressed.length - 1, bytes.length);
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidOffset() throws IOException {
+        LzCodec.decompress(new byte[]{0x10, 1, 5, 0, 0}, 0, 5, 5);
+    }
+
+    @Test
+    public void maximumExpansion() throws IOException {
+        byte[] compressed = assertRoundTrip(new byte[1 << 20]);
+
+        assertTrue(compressed.length * (long) LzCodec.MAX_EXPANSION >= 1 << 20);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void declaredLengthTooLarge() throws IOException {
+        byte[] compressed = LzCodec.compress(new byte[100], 0, 100);
+
+        LzCodec.decompress(compressed, 0, compressed.length, Integer.MAX_VALUE);
+    }
+
+    private static byte[] assertRoundTrip(byte[] bytes) throws IOException {
+        byte[] compressed = LzCodec.compress(bytes, 0, bytes.length);
+        assertArrayEquals(bytes, LzCodec.decompress(compressed, 0, compressed.length, bytes.length));
+        return compressed;
+    }
+
+}
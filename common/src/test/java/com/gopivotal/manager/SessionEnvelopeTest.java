@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public final class SessionEnvelopeTest {
+
+    private final byte[] payload = "test-payload".getBytes();
+
+    @Test
+    public void roundTrip() throws IOException {
+        byte[] envelope = wrap();
+
+        assertTrue(SessionEnvelope.isEnvelope(envelope));
+        assertArrayEquals(this.payload, SessionEnvelope.unwrap(envelope));
+    }
+
+    @Test
+    public void compressed() throws IOException {
+        byte[] serialized = new byte[1000];
+        Arrays.fill(serialized, (byte) 7);
+
+        byte[] compressed = SessionCompression.LZ.compress(serialized, 0, serialized.length);
+        byte[] envelope = SessionEnvelope.wrap(SessionCompression.LZ, serialized.length, compressed, compressed.length);
+
+        assertArrayEquals(serialized, SessionEnvelope.unwrap(envelope));
+    }
+
+    @Test
+    public void rawPayloads() {
+        assertFalse(SessionEnvelope.isEnvelope(new byte[0]));
+        assertFalse(SessionEnvelope.isEnvelope(new byte[]{(byte) 0xAC, (byte) 0xED}));
+        assertFalse(SessionEnvelope.isEnvelope(new byte[]{(byte) CompactSessionSerializer.MAGIC, 1}));
+        assertFalse(SessionEnvelope.isEnvelope(new byte[]{(byte) SessionCompression.DEFLATE.getHeader(), 0}));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void checksumMismatch() throws IOException {
+        byte[] envelope = wrap();
+        envelope[envelope.length - 1] ^= 1;
+
+        SessionEnvelope.unwrap(envelope);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void unsupportedVersion() throws IOException {
+        byte[] envelope = wrap();
+        envelope[2] = (byte) (SessionEnvelope.VERSION + 1);
+
+        SessionEnvelope.unwrap(envelope);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void unknownCodec() throws IOException {
+        byte[] envelope = wrap();
+        envelope[3] = 99;
+
+        SessionEnvelope.unwrap(envelope);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void lengthMismatch() throws IOException {
+        byte[] envelope = wrap();
+
+        SessionEnvelope.unwrap(Arrays.copyOf(envelope, envelope.length - 1));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void uncompressedLengthMismatch() throws IOException {
+        SessionEnvelope.unwrap(SessionEnvelope.wrap(SessionCompression.NONE, this.payload.length + 1, this.payload,
+                this.payload.length));
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedHeader() throws IOException {
+        byte[] envelope = wrap();
+
+        SessionEnvelope.unwrap(Arrays.copyOf(envelope, SessionEnvelope.HEADER_LENGTH - 1));
+    }
+
+    private byte[] wrap() {
+        return SessionEnvelope.wrap(SessionCompression.NONE, this.payload.length, this.payload, this.payload.length);
+    }
+
+}
@@ -25,16 +25,32 @@ import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
-import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
 
 public final class SessionFlushValveTest {
 
@@ -104,9 +120,240 @@ public final class SessionFlushValveTest {
         verify(this.store).save(this.session);
     }
 
+    @Test
+    public void invokeNextFails() throws IOException, ServletException {
+        IOException failure = new IOException();
+        doThrow(failure).when(this.next).invoke(this.request, this.response);
+        when(this.request.getSessionInternal(false)).thenReturn(this.session);
+        when(this.session.isValid()).thenReturn(true);
+
+        try {
+            this.valve.invoke(this.request, this.response);
+            fail();
+        } catch (IOException e) {
+            assertSame(failure, e);
+        }
+
+        verify(this.store).save(this.session);
+    }
+
+    @Test
+    public void invokeAsync() throws IOException, ServletException {
+        Store lockingStore = mock(Store.class, withSettings().extraInterfaces(SessionLockingStore.class));
+        SessionLock lock = mock(SessionLock.class);
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        this.valve.setStore(lockingStore);
+        when(this.request.getRequestedSessionId()).thenReturn("test-id");
+        when(((SessionLockingStore) lockingStore).lock("test-id")).thenReturn(lock);
+        when(lock.isAcquired()).thenReturn(true);
+        when(this.request.isAsync()).thenReturn(true);
+        when(this.request.getAsyncContext()).thenReturn(asyncContext);
+        when(this.request.getSessionInternal(false)).thenReturn(this.session);
+        when(this.session.isValid()).thenReturn(true);
+
+        this.valve.invoke(this.request, this.response);
+
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+        verify((SessionLockingStore) lockingStore).unlock(lock);
+        verify((SessionLockingStore) lockingStore, never()).save(this.session, lock);
+
+        AsyncEvent event = new AsyncEvent(asyncContext);
+        listener.getValue().onTimeout(event);
+        listener.getValue().onComplete(event);
+        listener.getValue().onComplete(event);
+
+        verify((SessionLockingStore) lockingStore, times(1)).save(this.session, lock);
+        verify(lockingStore, never()).save(this.session);
+        verify((SessionLockingStore) lockingStore).unlock(lock);
+    }
+
+    @Test
+    public void invokeAsyncRestarted() throws IOException, ServletException {
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        when(this.request.isAsync()).thenReturn(true);
+        when(this.request.getAsyncContext()).thenReturn(asyncContext);
+
+        this.valve.invoke(this.request, this.response);
+
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+        listener.getValue().onStartAsync(new AsyncEvent(asyncContext));
+        verify(asyncContext, times(2)).addListener(listener.getValue());
+    }
+
+    @Test
+    public void invokeAsyncRestartedCycles() throws IOException, ServletException {
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        when(this.request.isAsync()).thenReturn(true);
+        when(this.request.getAsyncContext()).thenReturn(asyncContext);
+        when(this.request.getSessionInternal(false)).thenReturn(this.session);
+        when(this.session.isValid()).thenReturn(true);
+
+        this.valve.invoke(this.request, this.response);
+
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+        AsyncEvent event = new AsyncEvent(asyncContext);
+
+        when(this.request.getDispatcherType()).thenReturn(DispatcherType.ASYNC);
+        for (int i = 0; i < 2; i++) {
+            listener.getValue().onTimeout(event);
+            this.valve.invoke(this.request, this.response);
+            listener.getValue().onStartAsync(event);
+        }
+        listener.getValue().onComplete(event);
+
+        verify(asyncContext, times(3)).addListener(any(AsyncListener.class));
+        verify(asyncContext, times(3)).addListener(listener.getValue());
+        verify(this.store, times(3)).save(this.session);
+    }
+
+    @Test
+    public void invokeAsyncDispatch() throws IOException, ServletException {
+        Store lockingStore = mock(Store.class, withSettings().extraInterfaces(SessionLockingStore.class));
+        this.valve.setStore(lockingStore);
+        when(this.request.getDispatcherType()).thenReturn(DispatcherType.ASYNC);
+        when(this.request.getRequestedSessionId()).thenReturn("test-id");
+
+        this.valve.invoke(this.request, this.response);
+
+        verify(this.next).invoke(this.request, this.response);
+        verifyZeroInteractions(lockingStore);
+    }
+
+    @Test
+    public void invokeExcluded() throws IOException, ServletException {
+        Context context = mock(Context.class);
+        Store lockingStore = mock(Store.class, withSettings().extraInterfaces(SessionLockingStore.class));
+        this.valve.setStore(lockingStore);
+        this.valve.setExcludedUris("*.css,/health");
+        when(this.request.getContext()).thenReturn(context);
+        when(context.getPath()).thenReturn("/test-context");
+        when(this.request.getDecodedRequestURI()).thenReturn("/test-context/site.css");
+        when(this.request.getRequestedSessionId()).thenReturn("test-id");
+        when(this.request.getSessionInternal(false)).thenReturn(this.session);
+        when(this.session.isValid()).thenReturn(true);
+
+        this.valve.invoke(this.request, this.response);
+
+        verify(this.next).invoke(this.request, this.response);
+        verifyZeroInteractions(lockingStore);
+    }
+
+    @Test
+    public void invokeIncluded() throws IOException, ServletException {
+        Context context = mock(Context.class);
+        this.valve.setIncludedUris("/api/*");
+        when(this.request.getContext()).thenReturn(context);
+        when(context.getPath()).thenReturn("");
+        when(this.request.getDecodedRequestURI()).thenReturn("/api/orders", "/index.html");
+        when(this.request.getSessionInternal(false)).thenReturn(this.session);
+        when(this.session.isValid()).thenReturn(true);
+
+        this.valve.invoke(this.request, this.response);
+        this.valve.invoke(this.request, this.response);
+
+        verify(this.next, times(2)).invoke(this.request, this.response);
+        verify(this.store).save(this.session);
+    }
+
+    @Test
+    public void invokeSkippedMethod() throws IOException, ServletException {
+        this.valve.setSkippedMethods("head, OPTIONS");
+        when(this.request.getMethod()).thenReturn("HEAD");
+        when(this.request.getSessionInternal(false)).thenReturn(this.session);
+        when(this.session.isValid()).thenReturn(true);
+
+        this.valve.invoke(this.request, this.response);
+
+        verify(this.next).invoke(this.request, this.response);
+        verifyZeroInteractions(this.store);
+    }
+
+    @Test
+    public void invokeLocked() throws IOException, ServletException {
+        Store lockingStore = mock(Store.class, withSettings().extraInterfaces(SessionLockingStore.class));
+        SessionLock lock = mock(SessionLock.class);
+        this.valve.setStore(lockingStore);
+        when(this.request.getRequestedSessionId()).thenReturn("test-id");
+        when(((SessionLockingStore) lockingStore).lock("test-id")).thenReturn(lock);
+        when(lock.isAcquired()).thenReturn(true);
+        when(lock.getFencingToken()).thenReturn(42L);
+        when(this.request.getSessionInternal(false)).thenReturn(this.session);
+        when(this.session.isValid()).thenReturn(true);
+
+        this.valve.invoke(this.request, this.response);
+
+        InOrder inOrder = inOrder(lockingStore, this.next);
+        inOrder.verify((SessionLockingStore) lockingStore).lock("test-id");
+        inOrder.verify(this.next).invoke(this.request, this.response);
+        inOrder.verify(lockingStore).save(this.session);
+        inOrder.verify((SessionLockingStore) lockingStore).unlock(lock);
+        verify(this.request).setAttribute(SessionFlushValve.FENCING_TOKEN_ATTRIBUTE, 42L);
+    }
+
+    @Test
+    public void invokeLockTimeout() throws IOException, ServletException {
+        Store lockingStore = mock(Store.class, withSettings().extraInterfaces(SessionLockingStore.class));
+        SessionLock lock = mock(SessionLock.class);
+        this.valve.setStore(lockingStore);
+        when(this.request.getRequestedSessionId()).thenReturn("test-id");
+        when(((SessionLockingStore) lockingStore).lock("test-id")).thenReturn(lock);
+        when(lock.isAcquired()).thenReturn(false);
+
+        this.valve.invoke(this.request, this.response);
+
+        verify(this.response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        verifyZeroInteractions(this.next);
+        verify((SessionLockingStore) lockingStore, never()).unlock(any(SessionLock.class));
+    }
+
+    @Test
+    public void invokeNotLocked() throws IOException, ServletException {
+        Store lockingStore = mock(Store.class, withSettings().extraInterfaces(SessionLockingStore.class));
+        this.valve.setStore(lockingStore);
+        when(this.request.getRequestedSessionId()).thenReturn("test-id");
+        when(this.request.getSessionInternal(false)).thenReturn(this.session);
+        when(this.session.isValid()).thenReturn(true);
+
+        this.valve.invoke(this.request, this.response);
+
+        verify(this.next).invoke(this.request, this.response);
+        verify(lockingStore).save(this.session);
+        verify((SessionLockingStore) lockingStore, never()).unlock(any(SessionLock.class));
+    }
+
+    @Test
+    public void invokeNoRequestedSession() throws IOException, ServletException {
+        Store lockingStore = mock(Store.class, withSettings().extraInterfaces(SessionLockingStore.class));
+        this.valve.setStore(lockingStore);
+
+        this.valve.invoke(this.request, this.response);
+
+        verify(this.next).invoke(this.request, this.response);
+        verify((SessionLockingStore) lockingStore, never()).lock(anyString());
+    }
+
     @Test
     public void isAsyncSupported() {
-        assertFalse(this.valve.isAsyncSupported());
+        assertTrue(this.valve.isAsyncSupported());
+    }
+
+    @Test
+    public void excludedUris() {
+        this.valve.setExcludedUris("*.css,/health");
+
+        assertEquals("*.css,/health", this.valve.getExcludedUris());
+    }
+
+    @Test
+    public void includedUris() {
+        assertEquals("", this.valve.getIncludedUris());
+
+        this.valve.setIncludedUris("/api/*");
+
+        assertEquals("/api/*", this.valve.getIncludedUris());
     }
 
     @Test
@@ -114,6 +361,15 @@ public final class SessionFlushValveTest {
         assertSame(this.next, this.valve.getNext());
     }
 
+    @Test
+    public void skippedMethods() {
+        assertEquals("", this.valve.getSkippedMethods());
+
+        this.valve.setSkippedMethods("head, OPTIONS,");
+
+        assertEquals("HEAD,OPTIONS", this.valve.getSkippedMethods());
+    }
+
     @Test
     public void startInternal() {
         Context context = mock(Context.class);
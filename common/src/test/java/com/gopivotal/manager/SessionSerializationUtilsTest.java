@@ -16,16 +16,29 @@
 
 package com.gopivotal.manager;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.catalina.Context;
 import org.apache.catalina.Manager;
 import org.apache.catalina.Session;
 import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.realm.GenericPrincipal;
 import org.apache.catalina.session.StandardManager;
 import org.junit.Before;
 import org.junit.Test;
@@ -64,8 +77,247 @@ public final class SessionSerializationUtilsTest {
         assertNotEquals(40L, obj2.getNonSerializableField());
     }
 
+    @Test
+    public void serializeReusesBuffer() throws IOException, ClassNotFoundException {
+        Session large = createRepetitiveSession();
+        Session small = this.manager.createEmptySession();
+        small.setValid(true);
+        small.setId("test-id-2", false);
+
+        byte[] first = this.sessionSerializationUtils.serialize(large);
+        byte[] expected = Arrays.copyOf(first, first.length);
+        byte[] second = this.sessionSerializationUtils.serialize(small);
+
+        assertArrayEquals(expected, first);
+        assertTrue(second.length < first.length);
+        assertEquals("test-id-2", this.sessionSerializationUtils.deserialize(second).getId());
+    }
+
+    @Test
+    public void deflate() throws IOException, ClassNotFoundException {
+        assertCompressed(SessionCompression.DEFLATE);
+    }
+
+    @Test
+    public void lz() throws IOException, ClassNotFoundException {
+        assertCompressed(SessionCompression.LZ);
+    }
+
+    @Test
+    public void compressionThreshold() throws IOException {
+        SessionSerializationUtils compressing = new SessionSerializationUtils(this.manager,
+                new JdkSessionSerializer(), SessionCompression.DEFLATE, 1024 * 1024);
+
+        Session session = createRepetitiveSession();
+
+        assertArrayEquals(this.sessionSerializationUtils.serialize(session), compressing.serialize(session));
+    }
+
+    @Test
+    public void compressionReadsUncompressed() throws IOException, ClassNotFoundException {
+        SessionSerializationUtils compressing = new SessionSerializationUtils(this.manager,
+                new JdkSessionSerializer(), SessionCompression.LZ, 0);
+
+        Session result = compressing.deserialize(this.sessionSerializationUtils.serialize(createRepetitiveSession()));
+
+        assertEquals("test-value-0", result.getSession().getAttribute("test-key-0"));
+    }
+
+    @Test
+    public void envelope() throws IOException, ClassNotFoundException {
+        SessionSerializationUtils enveloping = new SessionSerializationUtils(this.manager,
+                new JdkSessionSerializer(), SessionCompression.DEFLATE, 0, true);
+
+        byte[] serialized = enveloping.serialize(createRepetitiveSession());
+        assertTrue(SessionEnvelope.isEnvelope(serialized));
+
+        Session result = this.sessionSerializationUtils.deserialize(serialized);
+        assertEquals("test-value-99", result.getSession().getAttribute("test-key-99"));
+    }
+
+    @Test
+    public void envelopeReadsRaw() throws IOException, ClassNotFoundException {
+        SessionSerializationUtils enveloping = new SessionSerializationUtils(this.manager,
+                new JdkSessionSerializer(), SessionCompression.NONE, 0, true);
+
+        Session result = enveloping.deserialize(this.sessionSerializationUtils.serialize(createRepetitiveSession()));
+        assertEquals("test-value-99", result.getSession().getAttribute("test-key-99"));
+    }
+
+    @Test
+    public void hash() throws IOException, ClassNotFoundException {
+        Session initial = createRepetitiveSession();
+        initial.setMaxInactiveInterval(600);
+        initial.setAuthType("BASIC");
+        initial.setPrincipal(new GenericPrincipal("test-user", "test-password", Collections.singletonList("test-role")));
+        initial.access();
+        initial.endAccess();
+        initial.getSession().setAttribute("test-key-2", new Object());
+
+        Map<String, byte[]> attributes = this.sessionSerializationUtils.serializeAttributes(initial);
+        Session result = this.sessionSerializationUtils.deserialize(
+                this.sessionSerializationUtils.serializeMetadata(initial), attributes);
+
+        assertEquals("test-id", result.getId());
+        assertEquals(initial.getCreationTime(), result.getCreationTime());
+        assertEquals(initial.getLastAccessedTime(), result.getLastAccessedTime());
+        assertEquals(600, result.getMaxInactiveInterval());
+        assertEquals("BASIC", result.getAuthType());
+        assertEquals("test-user", result.getPrincipal().getName());
+        assertEquals("test-value-99", result.getSession().getAttribute("test-key-99"));
+        assertNull(result.getSession().getAttribute("test-key-2"));
+        assertEquals(99, attributes.size());
+    }
+
+    @Test
+    public void hashInvalid() throws IOException, ClassNotFoundException {
+        Session initial = createRepetitiveSession();
+        initial.setValid(false);
+
+        Session result = this.sessionSerializationUtils.deserialize(
+                this.sessionSerializationUtils.serializeMetadata(initial), Collections.<String, byte[]>emptyMap());
+
+        assertFalse(result.isValid());
+    }
+
+    @Test
+    public void fingerprintFromAttributes() throws IOException {
+        Session session = createRepetitiveSession();
+
+        assertEquals(this.sessionSerializationUtils.fingerprint(session), this.sessionSerializationUtils
+                .fingerprint(session, this.sessionSerializationUtils.serializeAttributes(session)));
+    }
+
+    @Test
+    public void copy() throws ClassNotFoundException, IOException {
+        Session session = this.manager.createEmptySession();
+        session.setValid(true);
+        session.setId("test-id", false);
+        session.setCreationTime(System.currentTimeMillis());
+        session.setMaxInactiveInterval(600);
+        session.getSession().setAttribute("test-key", new ArrayList<>(Collections.singletonList("test-value")));
+        session.getSession().setAttribute("test-key-2", new Object());
+
+        Session result = this.sessionSerializationUtils.copy(session, false);
+        ((List<?>) session.getSession().getAttribute("test-key")).clear();
+
+        assertNotSame(session, result);
+        assertEquals("test-id", result.getIdInternal());
+        assertEquals(600, result.getMaxInactiveInterval());
+        assertEquals(session.getCreationTime(), result.getCreationTime());
+        assertEquals(Collections.singletonList("test-value"), result.getSession().getAttribute("test-key"));
+        assertNull(result.getSession().getAttribute("test-key-2"));
+        assertSame(session, this.manager.findSession("test-id"));
+    }
+
+    @Test
+    public void copyLazy() throws ClassNotFoundException, IOException {
+        Session session = this.manager.createEmptySession();
+        session.setValid(true);
+        session.setId("test-id", false);
+        session.getSession().setAttribute("test-key", new ArrayList<>(Collections.singletonList("test-value")));
+
+        Session result = this.sessionSerializationUtils.copy(session, true);
+        ((List<?>) session.getSession().getAttribute("test-key")).clear();
+
+        assertTrue(result instanceof LazySession);
+        assertEquals(Collections.singletonList("test-value"), result.getSession().getAttribute("test-key"));
+        assertNotSame(this.sessionSerializationUtils.copy(result, false).getSession().getAttribute("test-key"),
+                result.getSession().getAttribute("test-key"));
+    }
+
+    @Test
+    public void fingerprintIgnoresAccess() throws IOException {
+        Session session = this.manager.createEmptySession();
+        session.setValid(true);
+        session.getSession().setAttribute("test-key", "test-value");
+
+        SessionFingerprint initial = this.sessionSerializationUtils.fingerprint(session);
+        session.access();
+        session.endAccess();
+        session.access();
+
+        assertEquals(initial, this.sessionSerializationUtils.fingerprint(session));
+    }
+
+    @Test
+    public void fingerprintChangedAttributes() throws IOException {
+        Session session = this.manager.createEmptySession();
+        session.setValid(true);
+        session.getSession().setAttribute("test-key", "test-value");
+        session.getSession().setAttribute("test-key-2", "test-value-2");
+
+        SessionFingerprint initial = this.sessionSerializationUtils.fingerprint(session);
+        session.getSession().setAttribute("test-key", "other-value");
+        session.getSession().removeAttribute("test-key-2");
+        session.getSession().setAttribute("test-key-3", "test-value-3");
+        SessionFingerprint result = this.sessionSerializationUtils.fingerprint(session);
+
+        assertNotEquals(initial, result);
+        assertEquals(new HashSet<>(Arrays.asList("test-key", "test-key-3")), result.getChangedAttributes(initial));
+        assertEquals(Collections.singleton("test-key-2"), result.getRemovedAttributes(initial));
+    }
+
+    @Test
+    public void fingerprintNestedNotSerializable() throws IOException {
+        Session session = this.manager.createEmptySession();
+        session.setValid(true);
+        session.getSession().setAttribute("test-key", "test-value");
+        session.getSession().setAttribute("test-key-broken", new ArrayList<>(Arrays.asList("value", new Object())));
+        session.getSession().setAttribute("test-key-2", "test-value-2");
+
+        SessionFingerprint initial = this.sessionSerializationUtils.fingerprint(session);
+        session.getSession().setAttribute("test-key-2", "other-value");
+        SessionFingerprint result = this.sessionSerializationUtils.fingerprint(session);
+
+        assertEquals(result, this.sessionSerializationUtils.fingerprint(session,
+                this.sessionSerializationUtils.serializeAttributes(session)));
+        assertEquals(Collections.singleton("test-key-2"), result.getChangedAttributes(initial));
+    }
+
+    @Test
+    public void decompressHighlyRepetitive() throws IOException {
+        byte[] bytes = new byte[1 << 20];
+
+        for (SessionCompression compression : SessionCompression.values()) {
+            byte[] compressed = compression.compress(bytes, 0, bytes.length);
+            assertArrayEquals(bytes, compression.decompress(compressed, 0, compressed.length, bytes.length));
+        }
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void compressedLengthTooLarge() throws IOException, ClassNotFoundException {
+        this.sessionSerializationUtils.deserialize(new byte[]{(byte) SessionCompression.DEFLATE.getHeader(), 0x7F,
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x03, 0x00});
+    }
+
     @Test
     public void testNullData() throws IOException, ClassNotFoundException {
         assertNull(this.sessionSerializationUtils.deserialize(null));
     }
+
+    private void assertCompressed(SessionCompression compression) throws IOException, ClassNotFoundException {
+        SessionSerializationUtils compressing = new SessionSerializationUtils(this.manager,
+                new JdkSessionSerializer(), compression, 0);
+
+        Session session = createRepetitiveSession();
+        byte[] uncompressed = this.sessionSerializationUtils.serialize(session);
+        byte[] compressed = compressing.serialize(session);
+
+        assertEquals(compression, SessionCompression.forHeader(compressed[0]));
+        assertTrue(compressed.length < uncompressed.length);
+
+        Session result = this.sessionSerializationUtils.deserialize(compressed);
+        assertEquals("test-value-99", result.getSession().getAttribute("test-key-99"));
+    }
+
+    private Session createRepetitiveSession() {
+        Session session = this.manager.createEmptySession();
+        session.setValid(true);
+        session.setId("test-id", false);
+        for (int i = 0; i < 100; i++) {
+            session.getSession().setAttribute("test-key-" + i, "test-value-" + i);
+        }
+        return session;
+    }
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class UriPatternsTest {
+
+    private final UriPatterns patterns = new UriPatterns("/health, /static/*, *.css,*.min.js");
+
+    @Test
+    public void empty() {
+        UriPatterns empty = new UriPatterns(" , ");
+
+        assertTrue(empty.isEmpty());
+        assertFalse(empty.matches("/health", 0));
+        assertFalse(this.patterns.isEmpty());
+    }
+
+    @Test
+    public void exact() {
+        assertTrue(this.patterns.matches("/health", 0));
+        assertFalse(this.patterns.matches("/health/detail", 0));
+        assertFalse(this.patterns.matches("/healthy", 0));
+        assertFalse(this.patterns.matches("/", 0));
+    }
+
+    @Test
+    public void extension() {
+        assertTrue(this.patterns.matches("/css/site.css", 0));
+        assertTrue(this.patterns.matches("/app.min.js", 0));
+        assertFalse(this.patterns.matches("/app.js", 0));
+        assertFalse(this.patterns.matches("/site.scss", 0));
+        assertFalse(this.patterns.matches("/site.css/index", 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalid() {
+        new UriPatterns("static/*");
+    }
+
+    @Test
+    public void offset() {
+        assertTrue(this.patterns.matches("/context/health", 8));
+        assertFalse(this.patterns.matches("/health/context", 7));
+    }
+
+    @Test
+    public void prefix() {
+        assertTrue(this.patterns.matches("/static", 0));
+        assertTrue(this.patterns.matches("/static/img/logo.png", 0));
+        assertFalse(this.patterns.matches("/statics/logo.png", 0));
+    }
+
+    @Test
+    public void root() {
+        UriPatterns root = new UriPatterns("/*");
+
+        assertTrue(root.matches("/", 0));
+        assertTrue(root.matches("/any/path", 0));
+        assertTrue(root.matches("/context", 8));
+    }
+
+    @Test
+    public void string() {
+        assertEquals("/health, /static/*, *.css,*.min.js", this.patterns.toString());
+    }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+/**
+ * What to do when a session cannot be saved with optimistic concurrency because another node saved it since it was
+ * loaded
+ */
+enum ConflictPolicy {
+
+    /**
+     * Merge the session with the stored one, keeping this node's changes to attributes and the other node's changes to
+     * the remaining attributes, and save again
+     */
+    MERGE,
+
+    /**
+     * Overwrite the stored session, discarding the other node's changes
+     */
+    OVERWRITE,
+
+    /**
+     * Discard the save, keeping the stored session
+     */
+    REJECT
+
+}
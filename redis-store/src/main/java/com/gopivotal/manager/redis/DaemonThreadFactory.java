@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ThreadFactory} that creates named daemon threads, so that background work never prevents Tomcat from
+ * shutting down
+ */
+final class DaemonThreadFactory implements ThreadFactory {
+
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+    private final String name;
+
+    private final int pool = POOL_COUNT.incrementAndGet();
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Creates a new instance
+     *
+     * @param name the name of the threads, e.g. {@code redis-store-write-behind}
+     */
+    DaemonThreadFactory(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, String.format("%s-%d-%d", this.name, this.pool,
+                this.count.incrementAndGet()));
+        thread.setDaemon(true);
+        return thread;
+    }
+
+}
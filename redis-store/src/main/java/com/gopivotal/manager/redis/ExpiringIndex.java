@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Utilities for sessions indexes backed by a sorted set, where each session is scored by the time, in milliseconds,
+ * that it expires.  Members whose score has passed belong to sessions that Redis has already expired, and are pruned
+ * in the background.
+ */
+final class ExpiringIndex {
+
+    private ExpiringIndex() {
+    }
+
+    /**
+     * Returns the score of a session that is being stored now
+     *
+     * @param timeout the timeout of the session, in seconds
+     * @return the time the session expires, in milliseconds
+     */
+    static long expiresAt(int timeout) {
+        return System.currentTimeMillis() + timeout * 1000L;
+    }
+
+    /**
+     * Returns the scores of sessions that are being stored now
+     *
+     * @param keys    the keys of the sessions
+     * @param timeout the timeout of the sessions, in seconds
+     * @return the scores of the sessions, keyed by session key
+     */
+    static Map<String, Double> scores(Set<String> keys, int timeout) {
+        double score = expiresAt(timeout);
+
+        Map<String, Double> scores = new HashMap<>();
+        for (String key : keys) {
+            scores.put(key, score);
+        }
+
+        return scores;
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Tuple;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over a sessions index a page at a time with {@code SSCAN} or {@code ZSCAN}, so that neither Redis nor the
+ * caller ever has to materialize the whole index.  As with any {@code SCAN} family command, a session that is added or
+ * removed during the iteration may or may not be returned, and a session may be returned more than once.
+ */
+abstract class IndexScanner implements Iterator<String> {
+
+    /**
+     * The number of index entries that Redis is asked to examine per page
+     */
+    static final int SCAN_COUNT = 1000;
+
+    static final ScanParams SCAN_PARAMS = new ScanParams().count(SCAN_COUNT);
+
+    private String cursor = ScanParams.SCAN_POINTER_START;
+
+    private boolean finished = false;
+
+    private Iterator<String> page = Collections.<String>emptyList().iterator();
+
+    @Override
+    public final boolean hasNext() {
+        while (!this.page.hasNext() && hasNextPage()) {
+            this.page = nextPage().iterator();
+        }
+
+        return this.page.hasNext();
+    }
+
+    @Override
+    public final String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return this.page.next();
+    }
+
+    @Override
+    public final void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns whether the iteration has more pages.  A page may be empty even if there are more pages.
+     *
+     * @return {@code true} if the iteration has more pages
+     */
+    final boolean hasNextPage() {
+        return !this.finished;
+    }
+
+    /**
+     * Returns the next page of sessions
+     *
+     * @return the next page of sessions
+     */
+    final List<String> nextPage() {
+        if (this.finished) {
+            throw new NoSuchElementException();
+        }
+
+        ScanResult<String> result = scan(this.cursor);
+        this.cursor = result.getStringCursor();
+        this.finished = ScanParams.SCAN_POINTER_START.equals(this.cursor);
+        return result.getResult();
+    }
+
+    /**
+     * Fetches a page of sessions from the index
+     *
+     * @param cursor the cursor to continue the scan from
+     * @return the page of sessions and the cursor to continue the scan from
+     */
+    abstract ScanResult<String> scan(String cursor);
+
+    /**
+     * Converts a page of {@code ZSCAN} results into a page of sessions
+     *
+     * @param result the {@code ZSCAN} results
+     * @param since  the time before which sessions have expired and are skipped, in milliseconds, or {@code
+     *               Long.MIN_VALUE} to include all sessions
+     * @return the page of sessions
+     */
+    static ScanResult<String> members(ScanResult<Tuple> result, long since) {
+        List<String> members = new ArrayList<>(result.getResult().size());
+
+        for (Tuple tuple : result.getResult()) {
+            if (tuple.getScore() >= since) {
+                members.add(tuple.getElement());
+            }
+        }
+
+        return new ScanResult<>(result.getStringCursor(), members);
+    }
+
+}
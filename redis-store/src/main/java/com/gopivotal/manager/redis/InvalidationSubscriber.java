@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.JedisPubSub;
+
+/**
+ * Keeps a {@link NearCache} consistent with the saves of other nodes.  Each save is published on a channel as the
+ * session key and its new version, and a subscriber on every node evicts cached sessions whose version differs.  The
+ * subscription holds a dedicated connection on a background thread and is re-established if it is lost.  Messages can
+ * be missed while the subscription is down, so the cache is cleared whenever a subscription starts.
+ */
+final class InvalidationSubscriber {
+
+    /**
+     * The message published when all sessions are removed
+     */
+    static final String CLEAR = "*";
+
+    private final Logger logger = LoggerFactory.getLogger(InvalidationSubscriber.class);
+
+    private final JedisClient jedisClient;
+
+    private final String channel;
+
+    private final NearCache nearCache;
+
+    private final long retryDelay;
+
+    private final PubSub pubSub = new PubSub();
+
+    private final Thread thread;
+
+    private volatile boolean closed = false;
+
+    private volatile boolean subscribed = false;
+
+    /**
+     * Creates a new instance
+     *
+     * @param jedisClient the client to subscribe with
+     * @param channel     the channel to subscribe to
+     * @param nearCache   the cache to evict sessions from
+     * @param retryDelay  how long to wait before re-establishing a lost subscription, in milliseconds
+     */
+    InvalidationSubscriber(JedisClient jedisClient, String channel, NearCache nearCache, long retryDelay) {
+        this.jedisClient = jedisClient;
+        this.channel = channel;
+        this.nearCache = nearCache;
+        this.retryDelay = retryDelay;
+        this.thread = new DaemonThreadFactory("redis-store-invalidation").newThread(new Subscriber());
+    }
+
+    /**
+     * Returns the message that announces a new version of a session
+     *
+     * @param key     the session key
+     * @param version the new version of the session, or {@code 0} if the version is unknown or the session was removed
+     * @return the message
+     */
+    static String message(String key, long version) {
+        return version + ":" + key;
+    }
+
+    /**
+     * Starts subscribing
+     */
+    void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Returns whether the subscription is established, so that cached sessions can be used without checking their
+     * version
+     *
+     * @return {@code true} if the subscription is established
+     */
+    boolean isSubscribed() {
+        return this.subscribed;
+    }
+
+    /**
+     * Stops subscribing
+     */
+    void close() {
+        this.closed = true;
+
+        if (this.pubSub.isSubscribed()) {
+            this.pubSub.unsubscribe();
+        }
+        this.thread.interrupt();
+    }
+
+    void onMessage(String message) {
+        if (CLEAR.equals(message)) {
+            this.nearCache.clear();
+            return;
+        }
+
+        int separator = message.indexOf(':');
+        try {
+            this.nearCache.invalidate(message.substring(separator + 1),
+                    Long.parseLong(message.substring(0, separator)));
+        } catch (RuntimeException e) {
+            this.logger.warn("Ignoring malformed invalidation message {}", message);
+        }
+    }
+
+    private final class PubSub extends JedisPubSub {
+
+        @Override
+        public void onMessage(String channel, String message) {
+            InvalidationSubscriber.this.onMessage(message);
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            if (InvalidationSubscriber.this.closed) {
+                unsubscribe();
+                return;
+            }
+
+            InvalidationSubscriber.this.nearCache.clear();
+            InvalidationSubscriber.this.subscribed = true;
+            InvalidationSubscriber.this.logger.debug("Subscribed to {}", channel);
+        }
+
+    }
+
+    private final class Subscriber implements Runnable {
+
+        @Override
+        public void run() {
+            while (!InvalidationSubscriber.this.closed) {
+                try {
+                    InvalidationSubscriber.this.jedisClient.subscribe(InvalidationSubscriber.this.pubSub,
+                            InvalidationSubscriber.this.channel);
+                } catch (RuntimeException e) {
+                    if (!InvalidationSubscriber.this.closed) {
+                        InvalidationSubscriber.this.logger.warn("Lost subscription to {}, retrying in {}ms",
+                                InvalidationSubscriber.this.channel, InvalidationSubscriber.this.retryDelay, e);
+                    }
+                } finally {
+                    InvalidationSubscriber.this.subscribed = false;
+                }
+
+                try {
+                    Thread.sleep(InvalidationSubscriber.this.retryDelay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+    }
+
+}
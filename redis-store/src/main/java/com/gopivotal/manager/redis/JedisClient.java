@@ -16,8 +16,13 @@
 
 package com.gopivotal.manager.redis;
 
+import redis.clients.jedis.JedisPubSub;
+
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -25,7 +30,23 @@ import java.util.Set;
  */
 public interface JedisClient {
 
-    Set<String> getSessions(String sessionsKey);
+    /**
+     * The expected version that makes a save unconditional
+     */
+    long ANY_VERSION = -1;
+
+    /**
+     * The result of a conditional save that was not written because the session's version did not match
+     */
+    long CONFLICT = -2;
+
+    /**
+     * The result of a save made under a session lock that was not written because a later holder of the lock has drawn
+     * a higher fencing token
+     */
+    long FENCED = -4;
+
+    Iterator<String> getSessions(String sessionsKey);
 
     void del(String sessionsKey, String key);
 
@@ -33,9 +54,51 @@ public interface JedisClient {
 
     byte[] get(String key) throws UnsupportedEncodingException;
 
-    void set(String key, String sessionsKey, byte[] session, int timeout) throws UnsupportedEncodingException;
+    Long getVersion(String key);
+
+    /**
+     * Reads a session along with its version, in a single round trip unless the session key and the version key are
+     * in different Redis Cluster slots
+     *
+     * @param read the command that reads the session, {@link RedisSessionLock#READ_VALUE}, {@link
+     *             RedisSessionLock#READ_HASH} or {@link RedisSessionLock#READ_DELTA}
+     */
+    StoredSession getWithVersion(String key, String read) throws UnsupportedEncodingException;
+
+    long set(String key, String sessionsKey, byte[] session, int timeout, long expectedVersion, RedisSessionLock lock)
+            throws UnsupportedEncodingException;
+
+    Map<String, byte[]> getHash(String key) throws UnsupportedEncodingException;
+
+    long setHash(String key, String sessionsKey, Map<String, byte[]> fields, Set<String> removedFields,
+                 boolean replace, int timeout, long expectedVersion, RedisSessionLock lock)
+            throws UnsupportedEncodingException;
+
+    List<byte[]> getDelta(String key) throws UnsupportedEncodingException;
+
+    long setDelta(String key, String sessionsKey, byte[] entry, boolean base, int timeout, long expectedVersion,
+                  RedisSessionLock lock) throws UnsupportedEncodingException;
+
+    RedisSessionLock lock(String key, long lease, int timeout, String read);
+
+    boolean unlock(String key, long fencingToken);
+
+    void setAll(Map<String, byte[]> sessions, String sessionsKey, int timeout) throws UnsupportedEncodingException;
+
+    /**
+     * Refreshes the expiry of a session that has not changed since it was last saved
+     *
+     * @return {@code true} if the expiry was refreshed, {@code false} if the session is no longer stored
+     */
+    boolean touch(String key, String sessionsKey, int timeout) throws UnsupportedEncodingException;
 
     void clean(String sessionsKey);
 
+    int prune(String sessionsKey, int batchSize);
+
+    void publish(String channel, String message);
+
+    void subscribe(JedisPubSub listener, String channel);
+
     void close() throws IOException;
 }
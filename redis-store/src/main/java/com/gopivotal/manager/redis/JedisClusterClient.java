@@ -16,36 +16,107 @@
 
 package com.gopivotal.manager.redis;
 
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.JedisShardInfo;
 import redis.clients.jedis.Protocol;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.util.JedisClusterCRC16;
+import redis.clients.util.SafeEncoder;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by marcelo on 23/02/17.
  */
 public class JedisClusterClient implements JedisClient {
+
+    private static final Long TOUCHED = 1L;
+
     private JedisCluster jedisCluster;
 
+    private final boolean expiringIndex;
+
+    private final boolean versioned;
+
+    private final int subscriberTimeout;
+
+    private final String subscriberPassword;
+
+    private final AtomicInteger subscriberNode = new AtomicInteger();
+
     JedisClusterClient(JedisCluster jedisCluster) {
+        this(jedisCluster, false);
+    }
+
+    JedisClusterClient(JedisCluster jedisCluster, boolean expiringIndex) {
+        this(jedisCluster, expiringIndex, false);
+    }
+
+    JedisClusterClient(JedisCluster jedisCluster, boolean expiringIndex, boolean versioned) {
+        this(jedisCluster, expiringIndex, versioned, Protocol.DEFAULT_TIMEOUT, null);
+    }
+
+    /**
+     * Creates a new instance
+     *
+     * @param jedisCluster       the cluster to run commands on
+     * @param expiringIndex      whether the sessions index records expiry times
+     * @param versioned          whether session versions are tracked
+     * @param subscriberTimeout  the timeout of subscriber connections to cluster nodes
+     * @param subscriberPassword the password of subscriber connections to cluster nodes
+     */
+    JedisClusterClient(JedisCluster jedisCluster, boolean expiringIndex, boolean versioned, int subscriberTimeout,
+                       String subscriberPassword) {
         this.jedisCluster = jedisCluster;
+        this.expiringIndex = expiringIndex;
+        this.versioned = versioned;
+        this.subscriberTimeout = subscriberTimeout;
+        this.subscriberPassword = subscriberPassword;
     }
 
     @Override
-    public Set<String> getSessions(String sessionsKey) {
-        return jedisCluster.smembers(sessionsKey);
+    public Iterator<String> getSessions(String sessionsKey) {
+        return scan(sessionsKey, System.currentTimeMillis());
     }
 
     @Override
     public void del(String sessionsKey, String key) {
-        jedisCluster.srem(sessionsKey, key);
-        jedisCluster.del(key);
+        if (isScriptable(key, sessionsKey)) {
+            eval(expiringIndex ? RedisScript.DEL_EXPIRING : RedisScript.DEL, keys(key, sessionsKey),
+                    Collections.<byte[]>emptyList());
+        } else {
+            if (expiringIndex) {
+                jedisCluster.zrem(sessionsKey, key);
+            } else {
+                jedisCluster.srem(sessionsKey, key);
+            }
+            jedisCluster.del(key);
+            if (versioned) {
+                jedisCluster.del(KeyLayout.getVersionKey(key));
+            }
+        }
     }
 
     @Override
     public Integer count(String sessionsKey) {
+        if (expiringIndex) {
+            return jedisCluster.zcount(sessionsKey, String.valueOf(System.currentTimeMillis()), "+inf").intValue();
+        }
         return jedisCluster.scard(sessionsKey).intValue();
     }
 
@@ -55,22 +126,459 @@ public class JedisClusterClient implements JedisClient {
     }
 
     @Override
-    public void set(String key, String sessionsKey, byte[] session, int timeout) throws UnsupportedEncodingException {
-        jedisCluster.setex(key.getBytes(Protocol.CHARSET), timeout, session);
-        jedisCluster.sadd(sessionsKey, key);
+    public Long getVersion(String key) {
+        String version = jedisCluster.get(KeyLayout.getVersionKey(key));
+        return version == null ? null : Long.valueOf(version);
+    }
+
+    /**
+     * Reads the session and its version with a script when they are in the same slot, or the version and then the
+     * session otherwise
+     */
+    @Override
+    public StoredSession getWithVersion(String key, String read) throws UnsupportedEncodingException {
+        String versionKey = KeyLayout.getVersionKey(key);
+        if (isSameSlot(key, versionKey)) {
+            return StoredSession.parse((List<?>) eval(RedisScript.READ,
+                    Arrays.asList(SafeEncoder.encode(key), SafeEncoder.encode(versionKey)),
+                    Collections.singletonList(SafeEncoder.encode(read))), 0);
+        }
+
+        Long version = getVersion(key);
+        Object session;
+        if (RedisSessionLock.READ_HASH.equals(read)) {
+            session = getHash(key);
+        } else if (RedisSessionLock.READ_DELTA.equals(read)) {
+            session = getDelta(key);
+        } else {
+            session = get(key);
+        }
+        return new StoredSession(session, true, version);
+    }
+
+    @Override
+    public long set(String key, String sessionsKey, byte[] session, int timeout, long expectedVersion,
+                    RedisSessionLock lock) throws UnsupportedEncodingException {
+        Object version;
+
+        if (isScriptable(key, sessionsKey, lock) && expiringIndex) {
+            version = eval(RedisScript.SET_EXPIRING, keys(key, sessionsKey, lock), Arrays.asList(
+                    Protocol.toByteArray(timeout), session, Protocol.toByteArray(ExpiringIndex.expiresAt(timeout))),
+                    expectedVersion, lock);
+        } else if (isScriptable(key, sessionsKey, lock)) {
+            version = eval(RedisScript.SET, keys(key, sessionsKey, lock),
+                    Arrays.asList(Protocol.toByteArray(timeout), session), expectedVersion, lock);
+        } else if (!isFenceCurrent(lock, timeout)) {
+            return FENCED;
+        } else if (!isCurrent(key, expectedVersion)) {
+            return CONFLICT;
+        } else {
+            jedisCluster.setex(key.getBytes(Protocol.CHARSET), timeout, session);
+            if (expiringIndex) {
+                jedisCluster.zadd(sessionsKey, ExpiringIndex.expiresAt(timeout), key);
+            } else {
+                jedisCluster.sadd(sessionsKey, key);
+            }
+            version = versioned ? incrementVersion(key, timeout) : null;
+        }
+
+        return version instanceof Long ? (Long) version : 0;
+    }
+
+    @Override
+    public Map<String, byte[]> getHash(String key) throws UnsupportedEncodingException {
+        return SessionHash.decode(jedisCluster.hgetAll(key.getBytes(Protocol.CHARSET)));
+    }
+
+    @Override
+    public long setHash(String key, String sessionsKey, Map<String, byte[]> fields, Set<String> removedFields,
+                        boolean replace, int timeout, long expectedVersion, RedisSessionLock lock)
+            throws UnsupportedEncodingException {
+        Object version;
+
+        if (isScriptable(key, sessionsKey, lock)) {
+            version = eval(RedisScript.SET_HASH, keys(key, sessionsKey, lock),
+                    SessionHash.arguments(fields, removedFields, replace, timeout, expiringIndex), expectedVersion,
+                    lock);
+        } else if (!isFenceCurrent(lock, timeout)) {
+            return FENCED;
+        } else if (!isCurrent(key, expectedVersion)) {
+            return CONFLICT;
+        } else {
+            byte[] binaryKey = key.getBytes(Protocol.CHARSET);
+            if (replace) {
+                jedisCluster.del(binaryKey);
+            } else if (!jedisCluster.exists(binaryKey)) {
+                return -1;
+            }
+            if (!fields.isEmpty()) {
+                jedisCluster.hmset(binaryKey, SessionHash.encode(fields));
+            }
+            if (!removedFields.isEmpty()) {
+                jedisCluster.hdel(binaryKey, SessionHash.encode(removedFields));
+            }
+            expire(binaryKey, timeout);
+            if (expiringIndex) {
+                jedisCluster.zadd(sessionsKey, ExpiringIndex.expiresAt(timeout), key);
+            } else {
+                jedisCluster.sadd(sessionsKey, key);
+            }
+            version = versioned ? incrementVersion(key, timeout) : null;
+        }
+
+        return version instanceof Long ? (Long) version : 0;
+    }
+
+    @Override
+    public List<byte[]> getDelta(String key) throws UnsupportedEncodingException {
+        return jedisCluster.lrange(key.getBytes(Protocol.CHARSET), 0, -1);
+    }
+
+    @Override
+    public long setDelta(String key, String sessionsKey, byte[] entry, boolean base, int timeout,
+                         long expectedVersion, RedisSessionLock lock) throws UnsupportedEncodingException {
+        Object version;
+
+        if (isScriptable(key, sessionsKey, lock)) {
+            version = eval(RedisScript.SET_DELTA, keys(key, sessionsKey, lock),
+                    SessionDelta.arguments(entry, base, timeout, expiringIndex), expectedVersion, lock);
+        } else if (!isFenceCurrent(lock, timeout)) {
+            return FENCED;
+        } else if (!isCurrent(key, expectedVersion)) {
+            return CONFLICT;
+        } else {
+            byte[] binaryKey = key.getBytes(Protocol.CHARSET);
+            if (base) {
+                jedisCluster.del(binaryKey);
+            } else if (!jedisCluster.exists(binaryKey)) {
+                return -1;
+            }
+            jedisCluster.rpush(binaryKey, entry);
+            expire(binaryKey, timeout);
+            if (expiringIndex) {
+                jedisCluster.zadd(sessionsKey, ExpiringIndex.expiresAt(timeout), key);
+            } else {
+                jedisCluster.sadd(sessionsKey, key);
+            }
+            version = versioned ? incrementVersion(key, timeout) : null;
+        }
+
+        return version instanceof Long ? (Long) version : 0;
+    }
+
+    /**
+     * Reads the version along with the session only when they are in the same slot
+     */
+    @Override
+    public RedisSessionLock lock(String key, long lease, int timeout, String read) {
+        List<byte[]> keys = new ArrayList<>(4);
+        keys.add(SafeEncoder.encode(KeyLayout.getLockKey(key)));
+        keys.add(SafeEncoder.encode(KeyLayout.getFenceKey(key)));
+        keys.add(SafeEncoder.encode(key));
+        if (versioned && isSameSlot(key, KeyLayout.getVersionKey(key))) {
+            keys.add(SafeEncoder.encode(KeyLayout.getVersionKey(key)));
+        }
+        return RedisSessionLock.parse(key, eval(RedisScript.LOCK, keys,
+                RedisSessionLock.arguments(lease, timeout, read)));
+    }
+
+    @Override
+    public boolean unlock(String key, long fencingToken) {
+        Object released = eval(RedisScript.UNLOCK,
+                Collections.singletonList(SafeEncoder.encode(KeyLayout.getLockKey(key))),
+                Collections.singletonList(Protocol.toByteArray(fencingToken)));
+        return Long.valueOf(1).equals(released);
+    }
+
+    @Override
+    public void setAll(Map<String, byte[]> sessions, String sessionsKey, int timeout)
+            throws UnsupportedEncodingException {
+        for (Map.Entry<String, byte[]> session : sessions.entrySet()) {
+            jedisCluster.setex(session.getKey().getBytes(Protocol.CHARSET), timeout, session.getValue());
+            if (versioned) {
+                incrementVersion(session.getKey(), timeout);
+            }
+        }
+        if (expiringIndex) {
+            jedisCluster.zadd(sessionsKey, ExpiringIndex.scores(sessions.keySet(), timeout));
+        } else {
+            jedisCluster.sadd(sessionsKey, sessions.keySet().toArray(new String[sessions.size()]));
+        }
+    }
+
+    @Override
+    public boolean touch(String key, String sessionsKey, int timeout) throws UnsupportedEncodingException {
+        if (isScriptable(key, sessionsKey) && expiringIndex) {
+            return TOUCHED.equals(eval(RedisScript.TOUCH_EXPIRING, keys(key, sessionsKey), Arrays.asList(
+                    Protocol.toByteArray(timeout), Protocol.toByteArray(ExpiringIndex.expiresAt(timeout)))));
+        }
+
+        if (!TOUCHED.equals(jedisCluster.expire(key.getBytes(Protocol.CHARSET), timeout))) {
+            return false;
+        }
+        if (expiringIndex) {
+            jedisCluster.zadd(sessionsKey, ExpiringIndex.expiresAt(timeout), key);
+        }
+        if (versioned) {
+            jedisCluster.expire(KeyLayout.getVersionKey(key), timeout);
+        }
+        return true;
     }
 
     @Override
     public void clean(String sessionsKey) {
-        Set<String> sessions = jedisCluster.smembers(sessionsKey);
-        String[] sessionsArray = sessions.toArray(new String[sessions.size()]);
+        for (IndexScanner scanner = scan(sessionsKey, Long.MIN_VALUE); scanner.hasNextPage(); ) {
+            List<String> sessions = scanner.nextPage();
+            if (sessions.isEmpty()) {
+                continue;
+            }
 
-        jedisCluster.srem(sessionsKey, sessionsArray);
-        jedisCluster.del(sessionsArray);
+            if (isSameSlot(sessions, sessionsKey)) {
+                List<byte[]> keys = new ArrayList<>(sessions.size() + 1);
+                keys.add(SafeEncoder.encode(sessionsKey));
+                keys.addAll(encode(sessions));
+                eval(RedisScript.CLEAN, keys,
+                        Collections.singletonList(SafeEncoder.encode(expiringIndex ? "ZREM" : "SREM")));
+            } else {
+                String[] sessionsArray = sessions.toArray(new String[sessions.size()]);
+                if (expiringIndex) {
+                    jedisCluster.zrem(sessionsKey, sessionsArray);
+                } else {
+                    jedisCluster.srem(sessionsKey, sessionsArray);
+                }
+                for (List<String> slot : bySlot(sessions)) {
+                    eval(RedisScript.UNLINK, encode(slot), Collections.<byte[]>emptyList());
+                }
+            }
+
+            if (versioned) {
+                List<String> versionKeys = new ArrayList<>(sessions.size());
+                for (String session : sessions) {
+                    versionKeys.add(KeyLayout.getVersionKey(session));
+                }
+                for (List<String> slot : bySlot(versionKeys)) {
+                    eval(RedisScript.UNLINK, encode(slot), Collections.<byte[]>emptyList());
+                }
+            }
+        }
+    }
+
+    @Override
+    public int prune(String sessionsKey, int batchSize) {
+        if (!expiringIndex) {
+            return 0;
+        }
+
+        Object pruned = eval(RedisScript.PRUNE, Collections.singletonList(SafeEncoder.encode(sessionsKey)),
+                Arrays.asList(Protocol.toByteArray(System.currentTimeMillis()), Protocol.toByteArray(batchSize)));
+        return ((Long) pruned).intValue();
+    }
+
+    @Override
+    public void publish(String channel, String message) {
+        jedisCluster.publish(channel, message);
+    }
+
+    /**
+     * Subscribes on a dedicated connection to one of the cluster's nodes rather than one borrowed from a node's pool,
+     * since a subscription holds its connection until it is unsubscribed.  Messages are published to every node of a
+     * cluster, so any node will do, and each subscription moves on to the next node in case the last one failed.
+     */
+    @Override
+    public void subscribe(JedisPubSub listener, String channel) {
+        List<String> nodes = new ArrayList<>(jedisCluster.getClusterNodes().keySet());
+        if (nodes.isEmpty()) {
+            throw new IllegalStateException("No cluster node to subscribe to is known");
+        }
+
+        int index = Math.abs(subscriberNode.getAndIncrement() % nodes.size());
+        HostAndPort node = HostAndPort.parseString(nodes.get(index));
+        JedisShardInfo subscriberInfo = new JedisShardInfo(node.getHost(), node.getPort(), subscriberTimeout);
+        subscriberInfo.setPassword(subscriberPassword);
+
+        try(Jedis jedis = new Jedis(subscriberInfo)) {
+            jedis.subscribe(listener, channel);
+        }
     }
 
     @Override
     public void close() throws IOException {
         jedisCluster.close();
     }
+
+    /**
+     * Scripts can only be run atomically against keys that hash to the same slot.  When the session key and the
+     * sessions index live in different slots, the commands are issued separately instead.
+     */
+    private boolean isSameSlot(String key, String sessionsKey) {
+        return JedisClusterCRC16.getSlot(key) == JedisClusterCRC16.getSlot(sessionsKey);
+    }
+
+    /**
+     * The session scripts also touch the version key when versions are tracked, so it must share the slot as well
+     */
+    private boolean isScriptable(String key, String sessionsKey) {
+        return isSameSlot(key, sessionsKey) && (!versioned || isSameSlot(key, KeyLayout.getVersionKey(key)));
+    }
+
+    /**
+     * A save made under a session lock also touches the fence key, which is in the slot of the lock's key
+     */
+    private boolean isScriptable(String key, String sessionsKey, RedisSessionLock lock) {
+        return isScriptable(key, sessionsKey)
+                && (lock == null || isSameSlot(key, KeyLayout.getFenceKey(lock.getKey())));
+    }
+
+    private List<byte[]> keys(String key, String sessionsKey) {
+        List<byte[]> keys = new ArrayList<>(4);
+        keys.add(SafeEncoder.encode(key));
+        keys.add(SafeEncoder.encode(sessionsKey));
+        if (versioned) {
+            keys.add(SafeEncoder.encode(KeyLayout.getVersionKey(key)));
+        }
+        return keys;
+    }
+
+    private List<byte[]> keys(String key, String sessionsKey, RedisSessionLock lock) {
+        List<byte[]> keys = keys(key, sessionsKey);
+        if (lock != null) {
+            keys.add(SafeEncoder.encode(KeyLayout.getFenceKey(lock.getKey())));
+        }
+        return keys;
+    }
+
+    /**
+     * Checks the fencing token of a save that cannot be made with a script, and keeps the counter for as long as the
+     * session.  Like the version check, the check and the save that follows it are not atomic.
+     */
+    private boolean isFenceCurrent(RedisSessionLock lock, int timeout) {
+        if (lock == null) {
+            return true;
+        }
+
+        String fenceKey = KeyLayout.getFenceKey(lock.getKey());
+        String fence = jedisCluster.get(fenceKey);
+        if (fence != null && Long.parseLong(fence) > lock.getFencingToken()) {
+            return false;
+        }
+
+        jedisCluster.set(fenceKey, fence != null ? fence : String.valueOf(lock.getFencingToken()));
+        expire(fenceKey, timeout);
+        return true;
+    }
+
+    /**
+     * Checks the version of a session that cannot be saved with a script.  The check and the save that follows it are
+     * not atomic, so a conflicting save in between goes undetected.
+     */
+    private boolean isCurrent(String key, long expectedVersion) {
+        if (expectedVersion == ANY_VERSION) {
+            return true;
+        }
+
+        Long version = getVersion(key);
+        return (version == null ? 0 : version) == expectedVersion;
+    }
+
+    private Long incrementVersion(String key, int timeout) {
+        String versionKey = KeyLayout.getVersionKey(key);
+        Long version = jedisCluster.incr(versionKey);
+        expire(versionKey, timeout);
+        return version;
+    }
+
+    /**
+     * Gives a key the expiry of a session, or makes it persistent if the session never expires, since {@code EXPIRE}
+     * deletes a key when the timeout is not positive
+     */
+    private void expire(String key, int timeout) {
+        if (timeout > 0) {
+            jedisCluster.expire(key, timeout);
+        } else {
+            jedisCluster.persist(key);
+        }
+    }
+
+    private void expire(byte[] key, int timeout) {
+        if (timeout > 0) {
+            jedisCluster.expire(key, timeout);
+        } else {
+            jedisCluster.persist(key);
+        }
+    }
+
+    private boolean isSameSlot(List<String> keys, String sessionsKey) {
+        for (String key : keys) {
+            if (!isSameSlot(key, sessionsKey)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Collection<List<String>> bySlot(List<String> keys) {
+        Map<Integer, List<String>> slots = new HashMap<>();
+        for (String key : keys) {
+            int slot = JedisClusterCRC16.getSlot(key);
+            List<String> slotKeys = slots.get(slot);
+            if (slotKeys == null) {
+                slotKeys = new ArrayList<>();
+                slots.put(slot, slotKeys);
+            }
+            slotKeys.add(key);
+        }
+        return slots.values();
+    }
+
+    private List<byte[]> encode(List<String> keys) {
+        List<byte[]> encoded = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            encoded.add(SafeEncoder.encode(key));
+        }
+        return encoded;
+    }
+
+    private IndexScanner scan(final String sessionsKey, final long since) {
+        return new IndexScanner() {
+
+            @Override
+            ScanResult<String> scan(String cursor) {
+                if (expiringIndex) {
+                    return members(jedisCluster.zscan(sessionsKey, cursor, SCAN_PARAMS), since);
+                }
+                return jedisCluster.sscan(sessionsKey, cursor, SCAN_PARAMS);
+            }
+
+        };
+    }
+
+    /**
+     * Runs a session script, or its conditional variant if a version is expected, and its fenced variant if the save
+     * is fenced
+     */
+    private Object eval(RedisScript script, List<byte[]> keys, List<byte[]> args, long expectedVersion,
+                        RedisSessionLock lock) {
+        if (expectedVersion == ANY_VERSION && lock == null) {
+            return eval(script, keys, args);
+        }
+
+        List<byte[]> conditionalArgs = new ArrayList<>(args);
+        if (expectedVersion != ANY_VERSION) {
+            conditionalArgs.add(Protocol.toByteArray(expectedVersion));
+            script = script.ifVersion();
+        }
+        if (lock != null) {
+            conditionalArgs.add(Protocol.toByteArray(lock.getFencingToken()));
+            script = script.ifFenced();
+        }
+        return eval(script, keys, conditionalArgs);
+    }
+
+    private Object eval(RedisScript script, List<byte[]> keys, List<byte[]> args) {
+        try {
+            return jedisCluster.evalsha(script.getSha1(), keys, args);
+        } catch (JedisNoScriptException e) {
+            return jedisCluster.eval(script.getSource(), keys, args);
+        }
+    }
 }
@@ -18,40 +18,83 @@ package com.gopivotal.manager.redis;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Protocol;
-import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.util.SafeEncoder;
 
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 final class JedisNodeClient implements JedisClient {
 
+    private static final Long TOUCHED = 1L;
+
     private final JedisPool jedisPool;
 
+    private final boolean expiringIndex;
+
+    private final boolean versioned;
+
+    private final JedisShardInfo subscriberInfo;
+
     JedisNodeClient(JedisPool jedisPool) {
+        this(jedisPool, false);
+    }
+
+    JedisNodeClient(JedisPool jedisPool, boolean expiringIndex) {
+        this(jedisPool, expiringIndex, false);
+    }
+
+    JedisNodeClient(JedisPool jedisPool, boolean expiringIndex, boolean versioned) {
+        this(jedisPool, expiringIndex, versioned, null);
+    }
+
+    /**
+     * Creates a new instance
+     *
+     * @param jedisPool      the pool of connections to run commands on
+     * @param expiringIndex  whether the sessions index records expiry times
+     * @param versioned      whether session versions are tracked
+     * @param subscriberInfo the server to open subscriber connections to, or {@code null} if the client does not
+     *                       subscribe
+     */
+    JedisNodeClient(JedisPool jedisPool, boolean expiringIndex, boolean versioned, JedisShardInfo subscriberInfo) {
         this.jedisPool = jedisPool;
+        this.expiringIndex = expiringIndex;
+        this.versioned = versioned;
+        this.subscriberInfo = subscriberInfo;
     }
 
     @Override
-    public Set<String> getSessions(String sessionsKey) {
-        try(Jedis jedis = this.jedisPool.getResource()) {
-            return jedis.smembers(sessionsKey);
-        }
+    public Iterator<String> getSessions(String sessionsKey) {
+        return scan(sessionsKey, System.currentTimeMillis());
     }
 
     @Override
     public void del(String sessionsKey, String key) {
         try(Jedis jedis = this.jedisPool.getResource()) {
-            Transaction t = jedis.multi();
-            t.srem(sessionsKey, key);
-            t.del(key);
-            t.exec();
+            eval(jedis, this.expiringIndex ? RedisScript.DEL_EXPIRING : RedisScript.DEL, keys(key, sessionsKey),
+                    Collections.<byte[]>emptyList());
         }
     }
 
     @Override
     public Integer count(String sessionsKey) {
         try(Jedis jedis = this.jedisPool.getResource()) {
+            if (this.expiringIndex) {
+                return jedis.zcount(sessionsKey, String.valueOf(System.currentTimeMillis()), "+inf").intValue();
+            }
             return jedis.scard(sessionsKey).intValue();
         }
     }
@@ -64,25 +107,196 @@ final class JedisNodeClient implements JedisClient {
     }
 
     @Override
-    public void set(String key, String sessionsKey, byte[] session, int timeout) throws UnsupportedEncodingException {
+    public Long getVersion(String key) {
+        try(Jedis jedis = this.jedisPool.getResource()) {
+            String version = jedis.get(KeyLayout.getVersionKey(key));
+            return version == null ? null : Long.valueOf(version);
+        }
+    }
+
+    @Override
+    public StoredSession getWithVersion(String key, String read) {
+        try(Jedis jedis = this.jedisPool.getResource()) {
+            List<byte[]> keys = Arrays.asList(SafeEncoder.encode(key),
+                    SafeEncoder.encode(KeyLayout.getVersionKey(key)));
+            return StoredSession.parse((List<?>) eval(jedis, RedisScript.READ, keys,
+                    Collections.singletonList(SafeEncoder.encode(read))), 0);
+        }
+    }
+
+    @Override
+    public long set(String key, String sessionsKey, byte[] session, int timeout, long expectedVersion,
+                    RedisSessionLock lock) throws UnsupportedEncodingException {
+        try(Jedis jedis = this.jedisPool.getResource()) {
+            Object version;
+            if (this.expiringIndex) {
+                version = eval(jedis, RedisScript.SET_EXPIRING, keys(key, sessionsKey, lock), Arrays.asList(
+                        Protocol.toByteArray(timeout), session, Protocol.toByteArray(ExpiringIndex.expiresAt(timeout))),
+                        expectedVersion, lock);
+            } else {
+                version = eval(jedis, RedisScript.SET, keys(key, sessionsKey, lock),
+                        Arrays.asList(Protocol.toByteArray(timeout), session), expectedVersion, lock);
+            }
+            return version instanceof Long ? (Long) version : 0;
+        }
+    }
+
+    @Override
+    public Map<String, byte[]> getHash(String key) throws UnsupportedEncodingException {
+        try(Jedis jedis = this.jedisPool.getResource()) {
+            return SessionHash.decode(jedis.hgetAll(key.getBytes(Protocol.CHARSET)));
+        }
+    }
+
+    @Override
+    public long setHash(String key, String sessionsKey, Map<String, byte[]> fields, Set<String> removedFields,
+                        boolean replace, int timeout, long expectedVersion, RedisSessionLock lock)
+            throws UnsupportedEncodingException {
+        try(Jedis jedis = this.jedisPool.getResource()) {
+            Object version = eval(jedis, RedisScript.SET_HASH, keys(key, sessionsKey, lock),
+                    SessionHash.arguments(fields, removedFields, replace, timeout, this.expiringIndex),
+                    expectedVersion, lock);
+            return version instanceof Long ? (Long) version : 0;
+        }
+    }
+
+    @Override
+    public List<byte[]> getDelta(String key) throws UnsupportedEncodingException {
+        try(Jedis jedis = this.jedisPool.getResource()) {
+            return jedis.lrange(key.getBytes(Protocol.CHARSET), 0, -1);
+        }
+    }
+
+    @Override
+    public long setDelta(String key, String sessionsKey, byte[] entry, boolean base, int timeout,
+                         long expectedVersion, RedisSessionLock lock) throws UnsupportedEncodingException {
+        try(Jedis jedis = this.jedisPool.getResource()) {
+            Object version = eval(jedis, RedisScript.SET_DELTA, keys(key, sessionsKey, lock),
+                    SessionDelta.arguments(entry, base, timeout, this.expiringIndex), expectedVersion, lock);
+            return version instanceof Long ? (Long) version : 0;
+        }
+    }
+
+    @Override
+    public RedisSessionLock lock(String key, long lease, int timeout, String read) {
+        try(Jedis jedis = this.jedisPool.getResource()) {
+            return RedisSessionLock.parse(key, eval(jedis, RedisScript.LOCK, lockKeys(key),
+                    RedisSessionLock.arguments(lease, timeout, read)));
+        }
+    }
+
+    @Override
+    public boolean unlock(String key, long fencingToken) {
         try(Jedis jedis = this.jedisPool.getResource()) {
-            Transaction t = jedis.multi();
-            t.setex(key.getBytes(Protocol.CHARSET), timeout, session);
-            t.sadd(sessionsKey, key);
-            t.exec();
+            Object released = eval(jedis, RedisScript.UNLOCK,
+                    Collections.singletonList(SafeEncoder.encode(KeyLayout.getLockKey(key))),
+                    Collections.singletonList(Protocol.toByteArray(fencingToken)));
+            return Long.valueOf(1).equals(released);
+        }
+    }
+
+    @Override
+    public void setAll(Map<String, byte[]> sessions, String sessionsKey, int timeout)
+            throws UnsupportedEncodingException {
+        try(Jedis jedis = this.jedisPool.getResource()) {
+            Pipeline p = jedis.pipelined();
+            for (Map.Entry<String, byte[]> session : sessions.entrySet()) {
+                p.setex(session.getKey().getBytes(Protocol.CHARSET), timeout, session.getValue());
+                if (this.versioned) {
+                    String versionKey = KeyLayout.getVersionKey(session.getKey());
+                    p.incr(versionKey);
+                    p.expire(versionKey, timeout);
+                }
+            }
+            if (this.expiringIndex) {
+                p.zadd(sessionsKey, ExpiringIndex.scores(sessions.keySet(), timeout));
+            } else {
+                p.sadd(sessionsKey, sessions.keySet().toArray(new String[sessions.size()]));
+            }
+            p.sync();
+        }
+    }
+
+    @Override
+    public boolean touch(String key, String sessionsKey, int timeout) throws UnsupportedEncodingException {
+        try(Jedis jedis = this.jedisPool.getResource()) {
+            if (this.expiringIndex) {
+                return TOUCHED.equals(eval(jedis, RedisScript.TOUCH_EXPIRING, keys(key, sessionsKey), Arrays.asList(
+                        Protocol.toByteArray(timeout), Protocol.toByteArray(ExpiringIndex.expiresAt(timeout)))));
+            }
+            if (this.versioned) {
+                Pipeline p = jedis.pipelined();
+                Response<Long> touched = p.expire(key.getBytes(Protocol.CHARSET), timeout);
+                p.expire(KeyLayout.getVersionKey(key), timeout);
+                p.sync();
+                return TOUCHED.equals(touched.get());
+            }
+            return TOUCHED.equals(jedis.expire(key.getBytes(Protocol.CHARSET), timeout));
         }
     }
 
     @Override
     public void clean(String sessionsKey) {
+        byte[] remove = SafeEncoder.encode(this.expiringIndex ? "ZREM" : "SREM");
+
+        for (IndexScanner scanner = scan(sessionsKey, Long.MIN_VALUE); scanner.hasNextPage(); ) {
+            List<String> sessions = scanner.nextPage();
+            if (sessions.isEmpty()) {
+                continue;
+            }
+
+            List<byte[]> keys = new ArrayList<>(sessions.size() + 1);
+            keys.add(SafeEncoder.encode(sessionsKey));
+            for (String session : sessions) {
+                keys.add(SafeEncoder.encode(session));
+            }
+
+            try(Jedis jedis = this.jedisPool.getResource()) {
+                eval(jedis, RedisScript.CLEAN, keys, Collections.singletonList(remove));
+
+                if (this.versioned) {
+                    List<byte[]> versionKeys = new ArrayList<>(sessions.size());
+                    for (String session : sessions) {
+                        versionKeys.add(SafeEncoder.encode(KeyLayout.getVersionKey(session)));
+                    }
+                    eval(jedis, RedisScript.UNLINK, versionKeys, Collections.<byte[]>emptyList());
+                }
+            }
+        }
+    }
+
+    @Override
+    public int prune(String sessionsKey, int batchSize) {
+        if (!this.expiringIndex) {
+            return 0;
+        }
+
         try(Jedis jedis = this.jedisPool.getResource()) {
-            Set<String> sessions = jedis.smembers(sessionsKey);
-            String[] sessionsArray = sessions.toArray(new String[sessions.size()]);
+            Object pruned = eval(jedis, RedisScript.PRUNE, Collections.singletonList(SafeEncoder.encode(sessionsKey)),
+                    Arrays.asList(Protocol.toByteArray(System.currentTimeMillis()), Protocol.toByteArray(batchSize)));
+            return ((Long) pruned).intValue();
+        }
+    }
+
+    @Override
+    public void publish(String channel, String message) {
+        try(Jedis jedis = this.jedisPool.getResource()) {
+            jedis.publish(channel, message);
+        }
+    }
+
+    /**
+     * Subscribes on a dedicated connection rather than one borrowed from the pool, since a subscription holds its
+     * connection until it is unsubscribed and would otherwise shrink the pool for as long as it lasts
+     */
+    @Override
+    public void subscribe(JedisPubSub listener, String channel) {
+        if (this.subscriberInfo == null) {
+            throw new IllegalStateException("No server to subscribe to has been configured");
+        }
 
-            Transaction t = jedis.multi();
-            t.srem(sessionsKey, sessionsArray);
-            t.del(sessionsArray);
-            t.exec();
+        try(Jedis jedis = new Jedis(this.subscriberInfo)) {
+            jedis.subscribe(listener, channel);
         }
     }
 
@@ -90,4 +304,94 @@ final class JedisNodeClient implements JedisClient {
     public void close() {
         jedisPool.destroy();
     }
+
+    /**
+     * Returns the keys passed to the session scripts: the session key, the sessions index and, if versions are
+     * tracked, the version key
+     */
+    private List<byte[]> keys(String key, String sessionsKey) {
+        List<byte[]> keys = new ArrayList<>(4);
+        keys.add(SafeEncoder.encode(key));
+        keys.add(SafeEncoder.encode(sessionsKey));
+        if (this.versioned) {
+            keys.add(SafeEncoder.encode(KeyLayout.getVersionKey(key)));
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the keys passed to the session scripts that save a session, followed by the fence key if the save is
+     * fenced
+     */
+    private List<byte[]> keys(String key, String sessionsKey, RedisSessionLock lock) {
+        List<byte[]> keys = keys(key, sessionsKey);
+        if (lock != null) {
+            keys.add(SafeEncoder.encode(KeyLayout.getFenceKey(lock.getKey())));
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the keys passed to {@link RedisScript#LOCK}: the lock key, the fencing token counter, the session key
+     * and, if versions are tracked, the version key
+     */
+    private List<byte[]> lockKeys(String key) {
+        List<byte[]> keys = new ArrayList<>(4);
+        keys.add(SafeEncoder.encode(KeyLayout.getLockKey(key)));
+        keys.add(SafeEncoder.encode(KeyLayout.getFenceKey(key)));
+        keys.add(SafeEncoder.encode(key));
+        if (this.versioned) {
+            keys.add(SafeEncoder.encode(KeyLayout.getVersionKey(key)));
+        }
+        return keys;
+    }
+
+    /**
+     * Scans the sessions index, borrowing a connection for each page rather than for the whole iteration
+     */
+    private IndexScanner scan(final String sessionsKey, final long since) {
+        return new IndexScanner() {
+
+            @Override
+            ScanResult<String> scan(String cursor) {
+                try(Jedis jedis = JedisNodeClient.this.jedisPool.getResource()) {
+                    if (JedisNodeClient.this.expiringIndex) {
+                        return members(jedis.zscan(sessionsKey, cursor, SCAN_PARAMS), since);
+                    }
+                    return jedis.sscan(sessionsKey, cursor, SCAN_PARAMS);
+                }
+            }
+
+        };
+    }
+
+    /**
+     * Runs a session script, or its conditional variant if a version is expected, and its fenced variant if the save
+     * is fenced
+     */
+    private Object eval(Jedis jedis, RedisScript script, List<byte[]> keys, List<byte[]> args, long expectedVersion,
+                        RedisSessionLock lock) {
+        if (expectedVersion == ANY_VERSION && lock == null) {
+            return eval(jedis, script, keys, args);
+        }
+
+        List<byte[]> conditionalArgs = new ArrayList<>(args);
+        if (expectedVersion != ANY_VERSION) {
+            conditionalArgs.add(Protocol.toByteArray(expectedVersion));
+            script = script.ifVersion();
+        }
+        if (lock != null) {
+            conditionalArgs.add(Protocol.toByteArray(lock.getFencingToken()));
+            script = script.ifFenced();
+        }
+        return eval(jedis, script, keys, conditionalArgs);
+    }
+
+    private Object eval(Jedis jedis, RedisScript script, List<byte[]> keys, List<byte[]> args) {
+        try {
+            return jedis.evalsha(script.getSha1(), keys, args);
+        } catch (JedisNoScriptException e) {
+            return jedis.eval(script.getSource(), keys, args);
+        }
+    }
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maps session ids to the Redis keys that sessions and the sessions index are stored under.
+ * <p>
+ * With no shards, a session is stored under {@code <prefix><id>} and indexed in a single {@code <prefix>} set.  With
+ * shards, the index is split into sets named {@code {<prefix>:<shard>}} and a session is stored under {@code
+ * {<prefix>:<shard>}<id>}.  The hash tag places each session in the same Redis Cluster slot as its index shard, and
+ * spreads the index over several slots.
+ */
+final class KeyLayout {
+
+    private static final String INVALIDATION_SUFFIX = ":invalidations";
+
+    private static final String VERSION_SUFFIX = ":version";
+
+    private static final String LOCK_SUFFIX = ":lock";
+
+    private static final String FENCE_SUFFIX = ":fence";
+
+    private final String prefix;
+
+    private final int shards;
+
+    private final List<String> indexKeys;
+
+    KeyLayout(String prefix, int shards) {
+        this.prefix = prefix;
+        this.shards = shards;
+
+        List<String> indexKeys = new ArrayList<>();
+        if (shards > 0) {
+            for (int shard = 0; shard < shards; shard++) {
+                indexKeys.add(getShardKey(shard));
+            }
+        } else {
+            indexKeys.add(prefix);
+        }
+        this.indexKeys = Collections.unmodifiableList(indexKeys);
+    }
+
+    /**
+     * Returns the key a session is stored under
+     *
+     * @param id the session id
+     * @return the key the session is stored under
+     */
+    String getSessionKey(String id) {
+        if (this.shards > 0) {
+            return isShardedKey(id) ? id : getShardKey((id.hashCode() & Integer.MAX_VALUE) % this.shards) + id;
+        }
+
+        return this.prefix + id;
+    }
+
+    /**
+     * Returns the key to load or remove a session with.  Accepts both session ids and the keys returned by the index.
+     *
+     * @param id the session id or key
+     * @return the key the session is stored under
+     */
+    String resolveKey(String id) {
+        return this.shards > 0 ? getSessionKey(id) : id;
+    }
+
+    /**
+     * Returns the key of the index that a session key belongs to
+     *
+     * @param sessionKey the session key
+     * @return the key of the index that the session key belongs to
+     */
+    String getIndexKey(String sessionKey) {
+        return this.shards > 0 ? sessionKey.substring(0, sessionKey.indexOf('}') + 1) : this.prefix;
+    }
+
+    /**
+     * Returns the channel that session invalidations are published on
+     *
+     * @return the channel that session invalidations are published on
+     */
+    String getInvalidationChannel() {
+        return this.prefix + INVALIDATION_SUFFIX;
+    }
+
+    /**
+     * Returns the keys of all index shards
+     *
+     * @return the keys of all index shards
+     */
+    List<String> getIndexKeys() {
+        return this.indexKeys;
+    }
+
+    /**
+     * Returns the key that the version of a session is stored under.  The key shares the session key's hash tag, if
+     * it has one.
+     *
+     * @param sessionKey the session key
+     * @return the key that the version of the session is stored under
+     */
+    static String getVersionKey(String sessionKey) {
+        return sessionKey + VERSION_SUFFIX;
+    }
+
+    /**
+     * Returns the key that the lock of a session is held under.  The key is hash-tagged so that it is in the same Redis
+     * Cluster slot as the session key, whether or not the session key has a hash tag.
+     *
+     * @param sessionKey the session key
+     * @return the key that the lock of the session is held under
+     */
+    static String getLockKey(String sessionKey) {
+        return hashTagged(sessionKey) + LOCK_SUFFIX;
+    }
+
+    /**
+     * Returns the key of the counter that the fencing tokens of a session's lock are drawn from.  The key is in the
+     * same Redis Cluster slot as the session key.
+     *
+     * @param sessionKey the session key
+     * @return the key of the fencing token counter
+     */
+    static String getFenceKey(String sessionKey) {
+        return hashTagged(sessionKey) + FENCE_SUFFIX;
+    }
+
+    private static String hashTagged(String sessionKey) {
+        int open = sessionKey.indexOf('{');
+        return open >= 0 && sessionKey.indexOf('}', open) > open + 1 ? sessionKey : "{" + sessionKey + "}";
+    }
+
+    private String getShardKey(int shard) {
+        return String.format("{%s:%d}", this.prefix, shard);
+    }
+
+    private boolean isShardedKey(String id) {
+        return id.startsWith("{") && id.indexOf('}') > 0;
+    }
+
+}
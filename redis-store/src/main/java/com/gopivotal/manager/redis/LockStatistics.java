@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts session lock acquisitions and measures how long locks are waited for and held
+ */
+final class LockStatistics {
+
+    private final AtomicLong acquisitions = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong waitTime = new AtomicLong();
+
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    private final AtomicLong releases = new AtomicLong();
+
+    private final AtomicLong holdTime = new AtomicLong();
+
+    private final AtomicLong maxHoldTime = new AtomicLong();
+
+    /**
+     * Records an acquired lock
+     *
+     * @param waitTime how long the lock was waited for, in nanoseconds
+     */
+    void acquired(long waitTime) {
+        this.acquisitions.incrementAndGet();
+        this.waitTime.addAndGet(waitTime);
+        max(this.maxWaitTime, waitTime);
+    }
+
+    /**
+     * Records a lock that was not acquired before the wait for it timed out
+     */
+    void timedOut() {
+        this.timeouts.incrementAndGet();
+    }
+
+    /**
+     * Records a released lock
+     *
+     * @param holdTime how long the lock was held for, in nanoseconds
+     */
+    void released(long holdTime) {
+        this.releases.incrementAndGet();
+        this.holdTime.addAndGet(holdTime);
+        max(this.maxHoldTime, holdTime);
+    }
+
+    /**
+     * Returns the number of locks acquired
+     *
+     * @return the number of locks acquired
+     */
+    long getAcquisitions() {
+        return this.acquisitions.get();
+    }
+
+    /**
+     * Returns the number of locks that were not acquired before the wait for them timed out
+     *
+     * @return the number of timeouts
+     */
+    long getTimeouts() {
+        return this.timeouts.get();
+    }
+
+    /**
+     * Returns the average time acquired locks were waited for
+     *
+     * @return the average wait time, in milliseconds
+     */
+    double getAverageWaitTime() {
+        return average(this.waitTime, this.acquisitions);
+    }
+
+    /**
+     * Returns the longest time an acquired lock was waited for
+     *
+     * @return the maximum wait time, in milliseconds
+     */
+    long getMaxWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(this.maxWaitTime.get());
+    }
+
+    /**
+     * Returns the average time released locks were held for
+     *
+     * @return the average hold time, in milliseconds
+     */
+    double getAverageHoldTime() {
+        return average(this.holdTime, this.releases);
+    }
+
+    /**
+     * Returns the longest time a released lock was held for
+     *
+     * @return the maximum hold time, in milliseconds
+     */
+    long getMaxHoldTime() {
+        return TimeUnit.NANOSECONDS.toMillis(this.maxHoldTime.get());
+    }
+
+    private static double average(AtomicLong total, AtomicLong count) {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / (n * 1e6);
+    }
+
+    private static void max(AtomicLong max, long value) {
+        for (long current = max.get(); value > current; current = max.get()) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+}
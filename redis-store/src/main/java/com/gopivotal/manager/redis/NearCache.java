@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import org.apache.catalina.Session;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used cache of sessions that this node has recently saved or loaded, keyed by session key.
+ * Each entry records the version of the session it was cached at, so that it is only used while that version is still
+ * current in Redis, and entries are discarded once they are older than the cache's time to live.
+ * <p>
+ * Invalidations can overtake the load or save that caches the session they invalidate, so each invalidation leaves a
+ * tombstone recording the latest version seen for its key, whether or not the session was cached.  Until the tombstone
+ * expires along with the entries, a session older than that version, or any version of a deleted session, is not
+ * cached.  A cached session is likewise never replaced by an older version of itself.
+ */
+final class NearCache {
+
+    private final long ttl;
+
+    private final Map<String, Entry> entries;
+
+    private final Map<String, Tombstone> tombstones;
+
+    /**
+     * Creates a new instance
+     *
+     * @param maximumSize the maximum number of sessions to cache
+     * @param ttl         the maximum time to cache a session for, in milliseconds
+     */
+    NearCache(final int maximumSize, long ttl) {
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, NearCache.Entry> eldest) {
+                return size() > maximumSize;
+            }
+
+        };
+        this.tombstones = new LinkedHashMap<String, Tombstone>(16, 0.75f, false) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Tombstone> eldest) {
+                return size() > maximumSize;
+            }
+
+        };
+    }
+
+    /**
+     * Returns the cached session for a key
+     *
+     * @param key the session key
+     * @return the cached session, or {@code null} if the session is not cached or its entry has expired
+     */
+    synchronized Entry get(String key) {
+        Entry entry = this.entries.get(key);
+
+        if (entry != null && System.currentTimeMillis() - entry.cachedAt > this.ttl) {
+            this.entries.remove(key);
+            return null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Caches a session, unless a newer version of it is already cached or has been invalidated
+     *
+     * @param key     the session key
+     * @param version the version of the session
+     * @param session the session, which must not be handed out by the caller afterwards
+     * @return {@code true} if the session was cached, otherwise {@code false}
+     */
+    synchronized boolean put(String key, long version, Session session) {
+        long now = System.currentTimeMillis();
+
+        Tombstone tombstone = this.tombstones.get(key);
+        if (tombstone != null && now - tombstone.invalidatedAt > this.ttl) {
+            this.tombstones.remove(key);
+        } else if (tombstone != null && (tombstone.version == 0 || version < tombstone.version)) {
+            this.entries.remove(key);
+            return false;
+        }
+
+        Entry entry = this.entries.get(key);
+        if (entry != null && entry.version > version) {
+            return false;
+        }
+
+        this.entries.put(key, new Entry(version, session, now));
+        return true;
+    }
+
+    /**
+     * Evicts a session
+     *
+     * @param key the session key
+     */
+    synchronized void remove(String key) {
+        this.entries.remove(key);
+    }
+
+    /**
+     * Evicts a session unless it is cached at a given version or a newer one, and records the version so that an older
+     * version of the session is not cached afterwards
+     *
+     * @param key     the session key
+     * @param version the current version of the session, or {@code 0} if the session has been deleted
+     */
+    synchronized void invalidate(String key, long version) {
+        Entry entry = this.entries.get(key);
+        if (entry != null && (version == 0 || entry.version < version)) {
+            this.entries.remove(key);
+        }
+
+        Tombstone tombstone = this.tombstones.remove(key);
+        if (tombstone != null && tombstone.version != 0 && version != 0 && tombstone.version > version) {
+            version = tombstone.version;
+        }
+        this.tombstones.put(key, new Tombstone(version, System.currentTimeMillis()));
+    }
+
+    /**
+     * Evicts all sessions
+     */
+    synchronized void clear() {
+        this.entries.clear();
+        this.tombstones.clear();
+    }
+
+    /**
+     * Returns the number of cached sessions
+     *
+     * @return the number of cached sessions
+     */
+    synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * A cached session and the version it was cached at
+     */
+    static final class Entry {
+
+        final long version;
+
+        final Session session;
+
+        final long cachedAt;
+
+        Entry(long version, Session session, long cachedAt) {
+            this.version = version;
+            this.session = session;
+            this.cachedAt = cachedAt;
+        }
+
+    }
+
+    /**
+     * The latest version of a session announced by an invalidation, or {@code 0} if the session was deleted
+     */
+    static final class Tombstone {
+
+        final long version;
+
+        final long invalidatedAt;
+
+        Tombstone(long version, long invalidatedAt) {
+            this.version = version;
+            this.invalidatedAt = invalidatedAt;
+        }
+
+    }
+
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import redis.clients.jedis.Protocol;
+import redis.clients.util.SafeEncoder;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A Lua script that is invoked by its SHA1 digest with {@code EVALSHA}.  Clients fall back to {@code EVAL}, which also
+ * caches the script on the server, when the server replies {@code NOSCRIPT}.
+ */
+final class RedisScript {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Increments the version in {@code KEYS[3]}, if there is one, and gives it the expiry {@code ARGV[1]}
+     */
+    private static final String VERSION =
+            "if KEYS[3] then\n" +
+            "  local version = redis.call('INCR', KEYS[3])\n" +
+            expire("KEYS[3]", "ARGV[1]") +
+            "  return version\n" +
+            "end\n" +
+            "return 0";
+
+    /**
+     * Stores a session and adds it to the sessions index.  {@code KEYS[1]} is the session key, {@code KEYS[2]} is the
+     * sessions index, the optional {@code KEYS[3]} is the session's version key, {@code ARGV[1]} is the timeout in
+     * seconds and {@code ARGV[2]} is the serialized session.  Returns the new version of the session, or {@code 0} if
+     * there is no version key.
+     */
+    static final RedisScript SET = new RedisScript(
+            "redis.call('SETEX', KEYS[1], ARGV[1], ARGV[2])\n" +
+            "redis.call('SADD', KEYS[2], KEYS[1])\n" +
+            VERSION);
+
+    /**
+     * Deletes a session and removes it from the sessions index.  {@code KEYS[1]} is the session key, {@code KEYS[2]} is
+     * the sessions index and the optional {@code KEYS[3]} is the session's version key.
+     */
+    static final RedisScript DEL = new RedisScript(
+            "redis.call('SREM', KEYS[2], KEYS[1])\n" +
+            "if KEYS[3] then\n" +
+            "  redis.call('DEL', KEYS[3])\n" +
+            "end\n" +
+            "return redis.call('DEL', KEYS[1])");
+
+    /**
+     * Stores a session and adds it to an expiring sessions index, scored by the time the session expires.  {@code
+     * KEYS[1]} is the session key, {@code KEYS[2]} is the sessions index, the optional {@code KEYS[3]} is the
+     * session's version key, {@code ARGV[1]} is the timeout in seconds, {@code ARGV[2]} is the serialized session and
+     * {@code ARGV[3]} is the expiry time in milliseconds.  Returns the new version of the session, or {@code 0} if
+     * there is no version key.
+     */
+    static final RedisScript SET_EXPIRING = new RedisScript(
+            "redis.call('SETEX', KEYS[1], ARGV[1], ARGV[2])\n" +
+            "redis.call('ZADD', KEYS[2], ARGV[3], KEYS[1])\n" +
+            VERSION);
+
+    /**
+     * Deletes a session and removes it from an expiring sessions index.  {@code KEYS[1]} is the session key, {@code
+     * KEYS[2]} is the sessions index and the optional {@code KEYS[3]} is the session's version key.
+     */
+    static final RedisScript DEL_EXPIRING = new RedisScript(
+            "redis.call('ZREM', KEYS[2], KEYS[1])\n" +
+            "if KEYS[3] then\n" +
+            "  redis.call('DEL', KEYS[3])\n" +
+            "end\n" +
+            "return redis.call('DEL', KEYS[1])");
+
+    /**
+     * Refreshes the expiry of a session and its score in an expiring sessions index.  {@code KEYS[1]} is the session
+     * key, {@code KEYS[2]} is the sessions index, the optional {@code KEYS[3]} is the session's version key, {@code
+     * ARGV[1]} is the timeout in seconds and {@code ARGV[2]} is the expiry time in milliseconds.  Returns {@code 1} if
+     * the expiry was refreshed, or {@code 0} if the session no longer exists.
+     */
+    static final RedisScript TOUCH_EXPIRING = new RedisScript(
+            "if redis.call('EXISTS', KEYS[1]) == 1 then\n" +
+            expire("KEYS[1]", "ARGV[1]") +
+            "  redis.call('ZADD', KEYS[2], ARGV[2], KEYS[1])\n" +
+            "  if KEYS[3] then\n" +
+            expire("KEYS[3]", "ARGV[1]") +
+            "  end\n" +
+            "  return 1\n" +
+            "end\n" +
+            "return 0");
+
+    /**
+     * Updates a session stored as a hash and adds it to the sessions index.  {@code KEYS[1]} is the session key, {@code
+     * KEYS[2]} is the sessions index, the optional {@code KEYS[3]} is the session's version key, {@code ARGV[1]} is the
+     * timeout in seconds, {@code ARGV[2]} is the expiry time in milliseconds, {@code ARGV[3]} is the command that adds
+     * members to the index, {@code SADD} or {@code ZADD}, {@code ARGV[4]} is {@code 1} if the hash should be replaced
+     * rather than updated and {@code ARGV[5]} is the number of fields to set.  The fields to set follow as name and
+     * value pairs, and the remaining arguments are the fields to delete.  Returns the new version of the session,
+     * {@code 0} if there is no version key, or {@code -1} if an update was not applied because the session no longer
+     * exists.
+     */
+    static final RedisScript SET_HASH = new RedisScript(
+            "local set = 5 + 2 * tonumber(ARGV[5])\n" +
+            "if ARGV[4] == '1' then\n" +
+            "  redis.call('DEL', KEYS[1])\n" +
+            "elseif redis.call('EXISTS', KEYS[1]) == 0 then\n" +
+            "  return -1\n" +
+            "end\n" +
+            "if set > 5 then\n" +
+            "  redis.call('HMSET', KEYS[1], unpack(ARGV, 6, set))\n" +
+            "end\n" +
+            "if #ARGV > set then\n" +
+            "  redis.call('HDEL', KEYS[1], unpack(ARGV, set + 1))\n" +
+            "end\n" +
+            expire("KEYS[1]", "ARGV[1]") +
+            "if ARGV[3] == 'ZADD' then\n" +
+            "  redis.call('ZADD', KEYS[2], ARGV[2], KEYS[1])\n" +
+            "else\n" +
+            "  redis.call('SADD', KEYS[2], KEYS[1])\n" +
+            "end\n" +
+            VERSION);
+
+    /**
+     * Writes an entry of a session stored as a delta and adds the session to the sessions index.  {@code KEYS[1]} is
+     * the session key, {@code KEYS[2]} is the sessions index, the optional {@code KEYS[3]} is the session's version
+     * key, {@code ARGV[1]} is the timeout in seconds, {@code ARGV[2]} is the expiry time in milliseconds, {@code
+     * ARGV[3]} is the command that adds members to the index, {@code SADD} or {@code ZADD}, {@code ARGV[4]} is {@code
+     * 1} if the entry is a base that replaces the delta rather than a patch appended to it and {@code ARGV[5]} is the
+     * entry.  Returns the new version of the session, {@code 0} if there is no version key, or {@code -1} if a patch
+     * was not appended because the session no longer exists.
+     */
+    static final RedisScript SET_DELTA = new RedisScript(
+            "if ARGV[4] == '1' then\n" +
+            "  redis.call('DEL', KEYS[1])\n" +
+            "elseif redis.call('EXISTS', KEYS[1]) == 0 then\n" +
+            "  return -1\n" +
+            "end\n" +
+            "redis.call('RPUSH', KEYS[1], ARGV[5])\n" +
+            expire("KEYS[1]", "ARGV[1]") +
+            "if ARGV[3] == 'ZADD' then\n" +
+            "  redis.call('ZADD', KEYS[2], ARGV[2], KEYS[1])\n" +
+            "else\n" +
+            "  redis.call('SADD', KEYS[2], KEYS[1])\n" +
+            "end\n" +
+            VERSION);
+
+    /**
+     * Removes up to a batch of expired sessions from an expiring sessions index.  {@code KEYS[1]} is the sessions
+     * index, {@code ARGV[1]} is the current time in milliseconds and {@code ARGV[2]} is the batch size.  Returns the
+     * number of sessions removed.
+     */
+    static final RedisScript PRUNE = new RedisScript(
+            "local expired = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2])\n" +
+            "if #expired > 0 then\n" +
+            "  redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', redis.call('ZSCORE', KEYS[1], expired[#expired]))\n" +
+            "end\n" +
+            "return #expired");
+
+    /**
+     * Deletes a batch of sessions with {@code UNLINK}, so that their memory is reclaimed in the background, falling back
+     * to {@code DEL} on servers older than Redis 4.0.  {@code KEYS} are the session keys.
+     */
+    static final RedisScript UNLINK = new RedisScript(
+            "local unlinked = redis.pcall('UNLINK', unpack(KEYS))\n" +
+            "if type(unlinked) == 'table' and unlinked.err then\n" +
+            "  return redis.call('DEL', unpack(KEYS))\n" +
+            "end\n" +
+            "return unlinked");
+
+    /**
+     * Removes a batch of sessions from the sessions index and deletes them as {@link #UNLINK} does.  {@code KEYS[1]} is
+     * the sessions index, the remaining {@code KEYS} are the session keys and {@code ARGV[1]} is the command that
+     * removes members from the index, {@code SREM} or {@code ZREM}.
+     */
+    static final RedisScript CLEAN = new RedisScript(
+            "redis.call(ARGV[1], KEYS[1], unpack(KEYS, 2))\n" +
+            "local unlinked = redis.pcall('UNLINK', unpack(KEYS, 2))\n" +
+            "if type(unlinked) == 'table' and unlinked.err then\n" +
+            "  return redis.call('DEL', unpack(KEYS, 2))\n" +
+            "end\n" +
+            "return unlinked");
+
+    /**
+     * Acquires the lock of a session and reads the session in the same round trip.  {@code KEYS[1]} is the lock key,
+     * {@code KEYS[2]} is the fencing token counter, {@code KEYS[3]} is the session key, the optional {@code KEYS[4]} is
+     * the session's version key, {@code ARGV[1]} is the lease in milliseconds, {@code ARGV[2]} is the command that
+     * reads the session, {@code GET}, {@code HGETALL} or {@code LRANGE}, and {@code ARGV[3]} is the timeout of new
+     * sessions in seconds.  The counter is kept for as long as the session, and for at least the timeout and the lease,
+     * so that it cannot expire and restart while a session that has not been saved yet is still in use.  It does not
+     * expire if the session or the timeout does not.  Returns the fencing token, the session as read by {@link
+     * #readSession} and, if there is a version key, the version, if the lock was acquired, or {@code 0} and the
+     * remaining lease of the holder in milliseconds if it was not.
+     */
+    static final RedisScript LOCK = new RedisScript(
+            "local token = tonumber(redis.call('GET', KEYS[2]) or '0') + 1\n" +
+            "if not redis.call('SET', KEYS[1], token, 'NX', 'PX', ARGV[1]) then\n" +
+            "  return {0, redis.call('PTTL', KEYS[1])}\n" +
+            "end\n" +
+            "local ttl = redis.call('PTTL', KEYS[3])\n" +
+            "if ttl == -1 or tonumber(ARGV[3]) <= 0 then\n" +
+            "  redis.call('SET', KEYS[2], token)\n" +
+            "else\n" +
+            "  redis.call('SET', KEYS[2], token, 'PX', math.max(ttl, tonumber(ARGV[3]) * 1000, tonumber(ARGV[1])))\n" +
+            "end\n" +
+            readSession("KEYS[3]", "ARGV[2]") +
+            "if KEYS[4] then\n" +
+            "  return {token, session, redis.call('GET', KEYS[4])}\n" +
+            "end\n" +
+            "return {token, session}");
+
+    /**
+     * Reads a session along with its version in the same round trip.  {@code KEYS[1]} is the session key, {@code
+     * KEYS[2]} is the session's version key and {@code ARGV[1]} is the command that reads the session, {@code GET},
+     * {@code HGETALL} or {@code LRANGE}.  Returns the session as read by {@link #readSession} and its version.
+     */
+    static final RedisScript READ = new RedisScript(
+            readSession("KEYS[1]", "ARGV[1]") +
+            "return {session, redis.call('GET', KEYS[2])}");
+
+    /**
+     * Releases the lock of a session if it still holds the fencing token it was acquired with.  {@code KEYS[1]} is the
+     * lock key and {@code ARGV[1]} is the fencing token.  Returns {@code 1} if the lock was released, or {@code 0} if
+     * its lease expired.
+     */
+    static final RedisScript UNLOCK = new RedisScript(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then\n" +
+            "  return redis.call('DEL', KEYS[1])\n" +
+            "end\n" +
+            "return 0");
+
+    /**
+     * Pops the expected version of the session from the end of {@code ARGV} and returns {@code -2} if it does not match
+     * the version in {@code KEYS[3]}, which counts as {@code 0} when it does not exist
+     */
+    private static final String CHECK_VERSION =
+            "if (redis.call('GET', KEYS[3]) or '0') ~= table.remove(ARGV) then\n" +
+            "  return -2\n" +
+            "end\n";
+
+    /**
+     * Pops the fence key from the end of {@code KEYS} and the fencing token of the save from the end of {@code ARGV},
+     * and returns {@code -4} if a later holder of the session's lock has drawn a higher token.  Otherwise the counter
+     * is kept, or restored, with the expiry {@code ARGV[1]} of the session it fences.
+     */
+    private static final String CHECK_FENCE =
+            "local fence = table.remove(KEYS)\n" +
+            "local token = table.remove(ARGV)\n" +
+            "local current = redis.call('GET', fence)\n" +
+            "if current and tonumber(current) > tonumber(token) then\n" +
+            "  return -4\n" +
+            "end\n" +
+            "redis.call('SET', fence, current or token)\n" +
+            expire("fence", "ARGV[1]");
+
+    private final byte[] source;
+
+    private final byte[] sha1;
+
+    private RedisScript ifVersion;
+
+    private RedisScript ifFenced;
+
+    RedisScript(String source) {
+        try {
+            this.source = source.getBytes(Protocol.CHARSET);
+            this.sha1 = hex(MessageDigest.getInstance("SHA-1").digest(this.source)).getBytes(Protocol.CHARSET);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the hex-encoded SHA1 digest of the script, as expected by {@code EVALSHA}
+     *
+     * @return the SHA1 digest of the script
+     */
+    byte[] getSha1() {
+        return this.sha1;
+    }
+
+    /**
+     * Returns the source of the script, as expected by {@code EVAL}
+     *
+     * @return the source of the script
+     */
+    byte[] getSource() {
+        return this.source;
+    }
+
+    /**
+     * Returns a variant of the script that only runs if the session's version matches an expected version, passed as an
+     * extra last argument.  The variant returns {@code -2} when the versions do not match.  Requires the version key
+     * in {@code KEYS[3]}.
+     *
+     * @return the conditional variant of the script
+     */
+    synchronized RedisScript ifVersion() {
+        if (this.ifVersion == null) {
+            this.ifVersion = new RedisScript(CHECK_VERSION + SafeEncoder.encode(this.source));
+        }
+        return this.ifVersion;
+    }
+
+    /**
+     * Returns the source that gives {@code key} the expiry {@code timeout}, in seconds.  A session that never expires
+     * has a timeout that is not positive, which {@code EXPIRE} would delete the key for, so the key is made persistent
+     * instead.
+     */
+    private static String expire(String key, String timeout) {
+        return "if tonumber(" + timeout + ") > 0 then\n" +
+                "  redis.call('EXPIRE', " + key + ", " + timeout + ")\n" +
+                "else\n" +
+                "  redis.call('PERSIST', " + key + ")\n" +
+                "end\n";
+    }
+
+    /**
+     * Returns the source that reads the session in {@code key} with {@code command} into {@code session}.  A session
+     * stored as another type than the command reads, as it is after the storage has been switched, is not read, and
+     * {@code -1} is read in its place, so that the session can be read separately.
+     */
+    private static String readSession(String key, String command) {
+        return "local session = -1\n" +
+                "local stored = redis.call('TYPE', " + key + ").ok\n" +
+                "local types = {GET = 'string', HGETALL = 'hash', LRANGE = 'list'}\n" +
+                "if stored == 'none' or stored == types[" + command + "] then\n" +
+                "  if " + command + " == 'LRANGE' then\n" +
+                "    session = redis.call('LRANGE', " + key + ", 0, -1)\n" +
+                "  else\n" +
+                "    session = redis.call(" + command + ", " + key + ")\n" +
+                "  end\n" +
+                "end\n";
+    }
+
+    /**
+     * Returns a variant of the script that only runs if no later holder of the session's lock has drawn a higher
+     * fencing token than the save's.  The fence key is passed as an extra last key and the fencing token as an extra
+     * last argument, after those of any other variant.  The variant returns {@code -4} when the save is fenced off.
+     *
+     * @return the fenced variant of the script
+     */
+    synchronized RedisScript ifFenced() {
+        if (this.ifFenced == null) {
+            this.ifFenced = new RedisScript(CHECK_FENCE + SafeEncoder.encode(this.source));
+        }
+        return this.ifFenced;
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+
+        return new String(chars);
+    }
+
+}
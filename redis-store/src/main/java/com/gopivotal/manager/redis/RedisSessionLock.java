@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import com.gopivotal.manager.SessionLock;
+import redis.clients.jedis.Protocol;
+import redis.clients.util.SafeEncoder;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The lock of a session stored in Redis, along with the session as it was read when the lock was acquired.  The lock
+ * is held under {@link KeyLayout#getLockKey(String)} and holds its fencing token, which is drawn from a counter under
+ * {@link KeyLayout#getFenceKey(String)}.
+ */
+final class RedisSessionLock implements SessionLock {
+
+    /**
+     * Reads a session stored as a single value
+     */
+    static final String READ_VALUE = "GET";
+
+    /**
+     * Reads a session stored as a hash
+     */
+    static final String READ_HASH = "HGETALL";
+
+    /**
+     * Reads a session stored as a delta
+     */
+    static final String READ_DELTA = "LRANGE";
+
+    private final String key;
+
+    private final long fencingToken;
+
+    private final long remainingLease;
+
+    private final StoredSession session;
+
+    private final long acquiredAt = System.nanoTime();
+
+    private boolean prefetched;
+
+    private RedisSessionLock(String key, long fencingToken, long remainingLease, StoredSession session) {
+        this.key = key;
+        this.fencingToken = fencingToken;
+        this.remainingLease = remainingLease;
+        this.session = session;
+        this.prefetched = fencingToken > 0 && !session.isOtherType();
+    }
+
+    /**
+     * Returns the arguments of {@link RedisScript#LOCK}
+     *
+     * @param lease   the lease of the lock, in milliseconds
+     * @param timeout the timeout of new sessions, in seconds
+     * @param read    the command that reads the session
+     * @return the arguments of the script
+     */
+    static List<byte[]> arguments(long lease, int timeout, String read) {
+        return Arrays.asList(Protocol.toByteArray(lease), SafeEncoder.encode(read), Protocol.toByteArray(timeout));
+    }
+
+    /**
+     * Parses the reply of {@link RedisScript#LOCK}
+     *
+     * @param key   the session key
+     * @param reply the reply of the script
+     * @return the lock
+     */
+    static RedisSessionLock parse(String key, Object reply) {
+        List<?> values = (List<?>) reply;
+        long fencingToken = (Long) values.get(0);
+
+        if (fencingToken > 0) {
+            return new RedisSessionLock(key, fencingToken, 0, StoredSession.parse(values, 1));
+        }
+        Object remainingLease = values.size() > 1 ? values.get(1) : null;
+        return new RedisSessionLock(key, 0, remainingLease instanceof Long ? (Long) remainingLease : 0,
+                new StoredSession(null, false, null));
+    }
+
+    @Override
+    public boolean isAcquired() {
+        return this.fencingToken > 0;
+    }
+
+    @Override
+    public long getFencingToken() {
+        return this.fencingToken;
+    }
+
+    /**
+     * Returns the key of the locked session
+     *
+     * @return the key of the locked session
+     */
+    String getKey() {
+        return this.key;
+    }
+
+    /**
+     * Returns how long the holder of the lock still had it for, if the lock was not acquired
+     *
+     * @return the remaining lease of the holder, in milliseconds, or {@code 0} if it is not known
+     */
+    long getRemainingLease() {
+        return this.remainingLease;
+    }
+
+    /**
+     * Returns when the lock was acquired
+     *
+     * @return when the lock was acquired, as returned by {@link System#nanoTime()}
+     */
+    long getAcquiredAt() {
+        return this.acquiredAt;
+    }
+
+    /**
+     * Claims the session read when the lock was acquired.  The session can only be claimed once, by the first load of
+     * the session after the lock was acquired, since later loads must see the session as it was saved since.  A session
+     * stored as another type than the lock read it as was not read, and cannot be claimed.
+     *
+     * @param key the key of the session being loaded
+     * @return {@code true} if the session was read with the lock and has not been claimed yet, otherwise {@code false}
+     */
+    synchronized boolean claimSession(String key) {
+        if (!this.prefetched || !this.key.equals(key)) {
+            return false;
+        }
+
+        this.prefetched = false;
+        return true;
+    }
+
+    /**
+     * Returns the session read when the lock was acquired
+     *
+     * @return the session read when the lock was acquired
+     */
+    StoredSession getSession() {
+        return this.session;
+    }
+
+}
@@ -17,57 +17,83 @@
 package com.gopivotal.manager.redis;
 
 import com.gopivotal.manager.AbstractLifecycle;
+import com.gopivotal.manager.CompactSessionSerializer;
+import com.gopivotal.manager.JdkSessionSerializer;
 import com.gopivotal.manager.JmxSupport;
 import com.gopivotal.manager.LockTemplate;
 import com.gopivotal.manager.PropertyChangeSupport;
+import com.gopivotal.manager.SessionCompression;
+import com.gopivotal.manager.SessionFingerprint;
 import com.gopivotal.manager.SessionFlushValve;
+import com.gopivotal.manager.SessionLock;
+import com.gopivotal.manager.SessionLockingStore;
 import com.gopivotal.manager.SessionSerializationUtils;
+import com.gopivotal.manager.SessionSerializer;
 import com.gopivotal.manager.StandardJmxSupport;
 import com.gopivotal.manager.StandardPropertyChangeSupport;
 import org.apache.catalina.Manager;
 import org.apache.catalina.Session;
 import org.apache.catalina.Store;
 import org.apache.catalina.Valve;
-import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
+import org.apache.catalina.session.StandardSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.JedisCluster;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
-import redis.clients.jedis.Protocol;
+import redis.clients.jedis.JedisShardInfo;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
 
 import java.beans.PropertyChangeListener;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-
-import static redis.clients.jedis.Protocol.DEFAULT_TIMEOUT;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An implementation of {@link Store} that persists data to Redis
  */
-public final class RedisStore extends AbstractLifecycle implements RedisStoreManagement, Store {
+public final class RedisStore extends AbstractLifecycle implements RedisStoreManagement, SessionLockingStore, Store {
 
     public static final int DEFAULT_SO_TIMEOUT = 2000;
     private static final int DEFAULT_MAX_ATTEMPTS = 5;
+    private static final String FINGERPRINT_NOTE = RedisStore.class.getName() + ".FINGERPRINT";
+    private static final String SAVED_AT_NOTE = RedisStore.class.getName() + ".SAVED_AT";
+    private static final String PATCHES_NOTE = RedisStore.class.getName() + ".PATCHES";
+    private static final String PATCH_BYTES_NOTE = RedisStore.class.getName() + ".PATCH_BYTES";
+    private static final String VERSION_NOTE = RedisStore.class.getName() + ".VERSION";
+    private static final long WRITE_BEHIND_FLUSH_TIMEOUT = 30000;
+    private static final long QUEUED = -3;
+    private static final int PRUNE_BATCH_SIZE = 1000;
+    private static final long INVALIDATION_RETRY_DELAY = 1000;
+    private static final long MIN_LOCK_BACKOFF = 5;
+    private static final long MAX_LOCK_BACKOFF = 100;
+    private static final String WRONG_TYPE = "WRONGTYPE";
     private final JmxSupport jmxSupport;
     private final LockTemplate lockTemplate = new LockTemplate();
     private final Logger logger = LoggerFactory.getLogger(RedisStore.class);
     private final PropertyChangeSupport propertyChangeSupport;
     protected volatile JedisClient jedisClient;
-    private volatile Manager manager;
-    private volatile int connectionPoolSize = GenericKeyedObjectPoolConfig.DEFAULT_MAX_TOTAL;
-    private volatile int database = Protocol.DEFAULT_DATABASE;
-    private volatile String sessionKeyPrefix = "sessions";
-    private volatile String host = "localhost";
-    private boolean cluster = false;
-    private volatile String password;
-    private volatile int port = Protocol.DEFAULT_PORT;
-    private volatile int timeout = DEFAULT_TIMEOUT;
-    private volatile SessionSerializationUtils sessionSerializationUtils;
+    private volatile StoreConfiguration configuration = new StoreConfiguration();
+    private volatile ScheduledExecutorService indexPruner;
+    private final LockStatistics lockStatistics = new LockStatistics();
+    private final ThreadLocal<RedisSessionLock> heldLocks = new ThreadLocal<>();
+    private volatile NearCache sessionCache;
+    private volatile InvalidationSubscriber invalidationSubscriber;
+    private volatile WriteBehindQueue writeBehindQueue;
 
     /**
      * Create a new instance
@@ -88,7 +114,10 @@ public final class RedisStore extends AbstractLifecycle implements RedisStoreMan
         this.jedisClient = jedisClient;
         this.jmxSupport = jmxSupport;
         this.propertyChangeSupport = propertyChangeSupport;
-        this.sessionSerializationUtils = sessionSerializationUtils;
+
+        StoreConfiguration configuration = this.configuration.copy();
+        configuration.sessionSerializationUtils = sessionSerializationUtils;
+        this.configuration = configuration;
     }
 
     @Override
@@ -98,546 +127,2303 @@ public final class RedisStore extends AbstractLifecycle implements RedisStoreMan
 
     @Override
     public void clear() {
-        this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<Void>() {
+        try {
+            WriteBehindQueue writeBehindQueue = this.writeBehindQueue;
+            if (writeBehindQueue != null) {
+                writeBehindQueue.cancelAll();
+            }
+            NearCache sessionCache = this.sessionCache;
+            if (sessionCache != null) {
+                sessionCache.clear();
+            }
+            JedisClient jedisClient = this.jedisClient;
+            for (String indexKey : this.configuration.keyLayout.getIndexKeys()) {
+                jedisClient.clean(indexKey);
+            }
+            publishInvalidation(InvalidationSubscriber.CLEAR);
+        } catch (JedisConnectionException e) {
+            this.logger.error("Unable to clear persisted sessions", e);
+        }
+    }
+
+    @Override
+    public String getCompression() {
+        return this.configuration.compression.name();
+    }
+
+    /**
+     * Sets the codec that serialized sessions are compressed with.  One of {@code NONE}, {@code DEFLATE} or {@code
+     * LZ}.
+     *
+     * @param compression the codec that serialized sessions are compressed with
+     */
+    public void setCompression(final String compression) {
+        update("compression", compression, new ConfigurationChange<String>() {
 
             @Override
-            public Void invoke() {
-                try {
-                    RedisStore.this.jedisClient.clean(getSessionKeyPrefix());
-                } catch (JedisConnectionException e) {
-                    RedisStore.this.logger.error("Unable to clear persisted sessions", e);
-                }
-                return null;
+            String get(StoreConfiguration configuration) {
+                return configuration.compression.name();
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.compression = SessionCompression.valueOf(compression.toUpperCase());
+                configuration.updateSessionSerializationUtils();
             }
 
         });
     }
 
     @Override
-    public int getConnectionPoolSize() {
-        return this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<Integer>() {
+    public int getCompressionThreshold() {
+        return this.configuration.compressionThreshold;
+    }
+
+    /**
+     * Sets the size from which serialized sessions are compressed
+     *
+     * @param compressionThreshold the size, in bytes, from which serialized sessions are compressed
+     */
+    public void setCompressionThreshold(final int compressionThreshold) {
+        update("compressionThreshold", compressionThreshold, new ConfigurationChange<Integer>() {
+
+            @Override
+            Integer get(StoreConfiguration configuration) {
+                return configuration.compressionThreshold;
+            }
 
             @Override
-            public Integer invoke() {
-                return RedisStore.this.connectionPoolSize;
+            void set(StoreConfiguration configuration) {
+                configuration.compressionThreshold = compressionThreshold;
+                configuration.updateSessionSerializationUtils();
             }
 
         });
     }
 
+    @Override
+    public long getClientDrainPeriod() {
+        return this.configuration.clientDrainPeriod;
+    }
+
     /**
-     * Sets the connection pool size
+     * Sets how long a client that is replaced when the store restarts is kept open for requests that are still using
+     * it, in milliseconds
      *
-     * @param connectionPoolSize the connectionPoolSize
+     * @param clientDrainPeriod how long a replaced client is kept open
      */
-    public void setConnectionPoolSize(final int connectionPoolSize) {
-        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
+    public void setClientDrainPeriod(final long clientDrainPeriod) {
+        update("clientDrainPeriod", clientDrainPeriod, new ConfigurationChange<Long>() {
 
             @Override
-            public Void invoke() {
-                RedisStore.this.logger.info("setting connectionPoolSize={}", connectionPoolSize);
-                int previous = RedisStore.this.connectionPoolSize;
-                RedisStore.this.connectionPoolSize = connectionPoolSize;
-                RedisStore.this.propertyChangeSupport.notify("connectionPoolSize", previous,
-                        RedisStore.this.connectionPoolSize);
-                return null;
+            Long get(StoreConfiguration configuration) {
+                return configuration.clientDrainPeriod;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.clientDrainPeriod = clientDrainPeriod;
             }
 
         });
     }
 
     @Override
-    public int getDatabase() {
-        return this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<Integer>() {
+    public int getConnectionPoolSize() {
+        return this.configuration.connectionPoolSize;
+    }
+
+    /**
+     * Sets the connection pool size
+     *
+     * @param connectionPoolSize the connectionPoolSize
+     */
+    public void setConnectionPoolSize(final int connectionPoolSize) {
+        update("connectionPoolSize", connectionPoolSize, new ConfigurationChange<Integer>() {
+
+            @Override
+            Integer get(StoreConfiguration configuration) {
+                return configuration.connectionPoolSize;
+            }
 
             @Override
-            public Integer invoke() {
-                return RedisStore.this.database;
+            void set(StoreConfiguration configuration) {
+                configuration.connectionPoolSize = connectionPoolSize;
             }
 
         });
     }
 
+    @Override
+    public int getDatabase() {
+        return this.configuration.database;
+    }
+
     /**
      * Sets the database to connect to
      *
      * @param database the database to connect to
      */
     public void setDatabase(final int database) {
-        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
+        update("database", database, new ConfigurationChange<Integer>() {
 
             @Override
-            public Void invoke() {
-                RedisStore.this.logger.info("setting database={}", database);
-                int previous = RedisStore.this.database;
-                RedisStore.this.database = database;
-                RedisStore.this.propertyChangeSupport.notify("database", previous, RedisStore.this.database);
-                return null;
+            Integer get(StoreConfiguration configuration) {
+                return configuration.database;
             }
 
-        });
-    }
-
-    @Override
-    public String getSessionKeyPrefix() {
-        return this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<String>() {
-
             @Override
-            public String invoke() {
-                return RedisStore.this.sessionKeyPrefix;
+            void set(StoreConfiguration configuration) {
+                configuration.database = database;
             }
 
         });
     }
 
+    @Override
+    public boolean getDirtyTracking() {
+        return this.configuration.dirtyTracking;
+    }
+
     /**
-     * Sets the sessionsKey Prefix
+     * Sets whether sessions that have not changed since they were last persisted should be skipped when saving
      *
-     * @param sessionKeyPrefix the sessions key prefix
+     * @param dirtyTracking whether unchanged sessions should be skipped when saving
      */
-    public void setSessionKeyPrefix(final String sessionKeyPrefix) {
-        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
+    public void setDirtyTracking(final boolean dirtyTracking) {
+        update("dirtyTracking", dirtyTracking, new ConfigurationChange<Boolean>() {
 
             @Override
-            public Void invoke() {
-                RedisStore.this.logger.info("setting sessionsKey={}", sessionKeyPrefix);
-                String previous = RedisStore.this.sessionKeyPrefix;
-                RedisStore.this.sessionKeyPrefix = sessionKeyPrefix;
-                RedisStore.this.propertyChangeSupport.notify("sessionKeyPrefix", previous, RedisStore.this.sessionKeyPrefix);
-                return null;
+            Boolean get(StoreConfiguration configuration) {
+                return configuration.dirtyTracking;
             }
 
-        });
-    }
-    
-    @Override
-    public String getHost() {
-        return this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<String>() {
-
             @Override
-            public String invoke() {
-                return RedisStore.this.host;
+            void set(StoreConfiguration configuration) {
+                configuration.dirtyTracking = dirtyTracking;
             }
 
         });
     }
 
+    @Override
+    public boolean getExpiringIndex() {
+        return this.configuration.expiringIndex;
+    }
+
     /**
-     * Sets the host to connect to
+     * Sets whether the sessions index should be a sorted set scored by expiry time, so that expired sessions are
+     * pruned from it
      *
-     * @param host the host to connect to
+     * @param expiringIndex whether the sessions index should be an expiring sorted set
      */
-    public void setHost(final String host) {
-        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
+    public void setExpiringIndex(final boolean expiringIndex) {
+        update("expiringIndex", expiringIndex, new ConfigurationChange<Boolean>() {
 
             @Override
-            public Void invoke() {
-                RedisStore.this.logger.info("setting host={}", host);
-                String previous = RedisStore.this.host;
-                RedisStore.this.host = host;
-                RedisStore.this.propertyChangeSupport.notify("host", previous, RedisStore.this.host);
-                return null;
+            Boolean get(StoreConfiguration configuration) {
+                return configuration.expiringIndex;
             }
 
-        });
-    }
-
-    @Override
-    public Manager getManager() {
-        return this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<Manager>() {
-
             @Override
-            public Manager invoke() {
-                return RedisStore.this.manager;
+            void set(StoreConfiguration configuration) {
+                configuration.expiringIndex = expiringIndex;
             }
 
         });
     }
 
     @Override
-    public void setManager(final Manager manager) {
-        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
+    public String getSerializer() {
+        return this.configuration.serializer;
+    }
 
-            @Override
-            public Void invoke() {
-                Manager previous = RedisStore.this.manager;
-                RedisStore.this.manager = manager;
-                RedisStore.this.sessionSerializationUtils = new SessionSerializationUtils(manager);
-                RedisStore.this.propertyChangeSupport.notify("manager", previous, RedisStore.this.manager);
-                return null;
-            }
+    /**
+     * Sets the serializer that sessions are written and read with.  One of {@code jdk}, {@code compact} or the class
+     * name of a {@link SessionSerializer} with a public no-argument constructor
+     *
+     * @param serializer the session serializer
+     */
+    public void setSerializer(final String serializer) {
+        final SessionSerializer sessionSerializer = createSerializer(serializer);
 
-        });
-    }
+        update("serializer", serializer, new ConfigurationChange<String>() {
 
-    @Override
-    public String getPassword() {
-        return this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<String>() {
+            @Override
+            String get(StoreConfiguration configuration) {
+                return configuration.serializer;
+            }
 
             @Override
-            public String invoke() {
-                return RedisStore.this.password;
+            void set(StoreConfiguration configuration) {
+                configuration.sessionSerializer = sessionSerializer;
+                configuration.serializer = serializer;
+                configuration.updateSessionSerializationUtils();
             }
 
         });
     }
 
+    @Override
+    public String getSessionKeyPrefix() {
+        return this.configuration.sessionKeyPrefix;
+    }
+
     /**
-     * Sets the password to use when connecting
+     * Sets the sessionsKey Prefix
      *
-     * @param password the password to use when connecting
+     * @param sessionKeyPrefix the sessions key prefix
      */
-    public void setPassword(final String password) {
-        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
+    public void setSessionKeyPrefix(final String sessionKeyPrefix) {
+        update("sessionKeyPrefix", sessionKeyPrefix, new ConfigurationChange<String>() {
 
             @Override
-            public Void invoke() {
-                RedisStore.this.logger.info("setting password=*");
-                String previous = RedisStore.this.password;
-                RedisStore.this.password = password;
-                RedisStore.this.propertyChangeSupport.notify("password", previous, RedisStore.this.password);
-                return null;
+            String get(StoreConfiguration configuration) {
+                return configuration.sessionKeyPrefix;
             }
 
-        });
-    }
-
-    @Override
-    public int getPort() {
-        return this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<Integer>() {
-
             @Override
-            public Integer invoke() {
-                return RedisStore.this.port;
+            void set(StoreConfiguration configuration) {
+                configuration.sessionKeyPrefix = sessionKeyPrefix;
+                configuration.keyLayout = new KeyLayout(sessionKeyPrefix, configuration.indexShards);
             }
 
         });
     }
+    
+    @Override
+    public int getIndexShards() {
+        return this.configuration.indexShards;
+    }
 
     /**
-     * Sets the port to connect to
+     * Sets the number of hash-tagged shards the sessions index is split into.  {@code 0} keeps the
+     * un-tagged layout with a single index
      *
-     * @param port the port to connect to
+     * @param indexShards the number of index shards
      */
-    public void setPort(final int port) {
-        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
+    public void setIndexShards(final int indexShards) {
+        update("indexShards", indexShards, new ConfigurationChange<Integer>() {
 
             @Override
-            public Void invoke() {
-                RedisStore.this.logger.info("setting port={}", port);
-                int previous = RedisStore.this.port;
-                RedisStore.this.port = port;
-                RedisStore.this.propertyChangeSupport.notify("port", previous, RedisStore.this.port);
-                return null;
+            Integer get(StoreConfiguration configuration) {
+                return configuration.indexShards;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.indexShards = indexShards;
+                configuration.keyLayout = new KeyLayout(configuration.sessionKeyPrefix, indexShards);
             }
 
         });
     }
 
     @Override
-    public int getSize() {
-        return this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<Integer>() {
+    public int getIndexPruneInterval() {
+        return this.configuration.indexPruneInterval;
+    }
+
+    /**
+     * Sets how often expired sessions are pruned from an expiring sessions index, in seconds
+     *
+     * @param indexPruneInterval how often expired sessions are pruned
+     */
+    public void setIndexPruneInterval(final int indexPruneInterval) {
+        update("indexPruneInterval", indexPruneInterval, new ConfigurationChange<Integer>() {
 
             @Override
-            public Integer invoke() {
-                try {
-                    return RedisStore.this.jedisClient.count(getSessionKeyPrefix());
-                } catch (JedisConnectionException e) {
-                    RedisStore.this.logger.error("Unable to get the number of persisted sessions", e);
-                    return Integer.MIN_VALUE;
-                }
+            Integer get(StoreConfiguration configuration) {
+                return configuration.indexPruneInterval;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.indexPruneInterval = indexPruneInterval;
             }
 
         });
     }
 
     @Override
-    public int getTimeout() {
-        return this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<Integer>() {
+    public boolean getHashStorage() {
+        return this.configuration.hashStorage;
+    }
+
+    /**
+     * Sets whether sessions should be stored as Redis hashes with a field per attribute, so that saves only write
+     * the attributes that changed
+     *
+     * @param hashStorage whether sessions should be stored as hashes
+     */
+    public void setHashStorage(final boolean hashStorage) {
+        update("hashStorage", hashStorage, new ConfigurationChange<Boolean>() {
+
+            @Override
+            Boolean get(StoreConfiguration configuration) {
+                return configuration.hashStorage;
+            }
 
             @Override
-            public Integer invoke() {
-                return RedisStore.this.timeout;
+            void set(StoreConfiguration configuration) {
+                configuration.hashStorage = hashStorage;
             }
 
         });
     }
 
+    @Override
+    public boolean getLazyAttributes() {
+        return this.configuration.lazyAttributes;
+    }
+
     /**
-     * Sets the connection timeout
+     * Sets whether the attributes of sessions stored as hashes should only be deserialized when they are first read
      *
-     * @param timeout the connection timeout
+     * @param lazyAttributes whether attributes should be deserialized lazily
      */
-    public void setTimeout(final int timeout) {
-        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
+    public void setLazyAttributes(final boolean lazyAttributes) {
+        update("lazyAttributes", lazyAttributes, new ConfigurationChange<Boolean>() {
 
             @Override
-            public Void invoke() {
-                RedisStore.this.logger.info("setting timeout={}", timeout);
-                int previous = RedisStore.this.timeout;
-                RedisStore.this.timeout = timeout;
-                RedisStore.this.propertyChangeSupport.notify("timeout", previous, RedisStore.this.timeout);
-                return null;
+            Boolean get(StoreConfiguration configuration) {
+                return configuration.lazyAttributes;
             }
 
-        });
-    }
-
-    @Override
-    public String getUri() {
-        return this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<String>() {
             @Override
-            public String invoke() {
-                return String.format("redis://%s%s:%d/%d", getUserInfo(), RedisStore.this.host,
-                        RedisStore.this.port, RedisStore.this.database);
+            void set(StoreConfiguration configuration) {
+                configuration.lazyAttributes = lazyAttributes;
             }
+
         });
     }
 
     @Override
-    public boolean getCluster() {
-        return this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<Boolean>() {
+    public boolean getDeltaStorage() {
+        return this.configuration.deltaStorage;
+    }
+
+    /**
+     * Sets whether sessions should be stored as a base snapshot followed by a log of patches, so that saves only append
+     * the attributes that changed
+     *
+     * @param deltaStorage whether sessions should be stored as deltas
+     */
+    public void setDeltaStorage(final boolean deltaStorage) {
+        update("deltaStorage", deltaStorage, new ConfigurationChange<Boolean>() {
+
+            @Override
+            Boolean get(StoreConfiguration configuration) {
+                return configuration.deltaStorage;
+            }
 
             @Override
-            public Boolean invoke() {
-                return RedisStore.this.cluster;
+            void set(StoreConfiguration configuration) {
+                configuration.deltaStorage = deltaStorage;
             }
 
         });
     }
 
+    @Override
+    public int getDeltaMaxPatches() {
+        return this.configuration.deltaMaxPatches;
+    }
+
     /**
-     * Sets the cluster mode
+     * Sets the number of patches a session stored as a delta may accumulate before it is compacted into a new base
      *
-     * @param cluster
+     * @param deltaMaxPatches the maximum number of patches
      */
-    public void setCluster(final boolean cluster) {
-        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
+    public void setDeltaMaxPatches(final int deltaMaxPatches) {
+        update("deltaMaxPatches", deltaMaxPatches, new ConfigurationChange<Integer>() {
 
             @Override
-            public Void invoke() {
-                boolean previous = RedisStore.this.cluster;
-                RedisStore.this.cluster = cluster;
-                RedisStore.this.propertyChangeSupport.notify("cluster", previous, RedisStore.this.cluster);
-                return null;
+            Integer get(StoreConfiguration configuration) {
+                return configuration.deltaMaxPatches;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.deltaMaxPatches = deltaMaxPatches;
             }
+
         });
     }
 
+    @Override
+    public int getDeltaMaxPatchBytes() {
+        return this.configuration.deltaMaxPatchBytes;
+    }
+
     /**
-     * Sets the connection URI
+     * Sets the total size of the patches a session stored as a delta may accumulate before it is compacted into a new
+     * base
      *
-     * @param uri the connection URI
+     * @param deltaMaxPatchBytes the maximum size of the patches, in bytes
      */
-    public void setUri(final String uri) {
-        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
+    public void setDeltaMaxPatchBytes(final int deltaMaxPatchBytes) {
+        update("deltaMaxPatchBytes", deltaMaxPatchBytes, new ConfigurationChange<Integer>() {
 
             @Override
-            public Void invoke() {
-                RedisStore.this.logger.info("setting uri={}", uri);
-                URI richUri = URI.create(uri);
-                setHost(richUri.getHost());
-                setPort(richUri.getPort());
-                setPassword(parsePassword(richUri));
-                setDatabase(parseDatabase(richUri));
-                return null;
+            Integer get(StoreConfiguration configuration) {
+                return configuration.deltaMaxPatchBytes;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.deltaMaxPatchBytes = deltaMaxPatchBytes;
             }
 
         });
     }
 
     @Override
-    public String[] keys() {
-        return this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<String[]>() {
+    public boolean getOptimisticConcurrency() {
+        return this.configuration.optimisticConcurrency;
+    }
+
+    /**
+     * Sets whether sessions should only be saved if no other node saved them since they were loaded
+     *
+     * @param optimisticConcurrency whether saves should be conditional on the version of the session
+     */
+    public void setOptimisticConcurrency(final boolean optimisticConcurrency) {
+        update("optimisticConcurrency", optimisticConcurrency, new ConfigurationChange<Boolean>() {
 
             @Override
-            public String[] invoke() {
-                try {
-                    Set<String> sessions = RedisStore.this.jedisClient.getSessions(getSessionKeyPrefix());
-                    return sessions.toArray(new String[sessions.size()]);
-                } catch (JedisConnectionException e) {
-                    RedisStore.this.logger.error("Unable to get the keys of persisted sessions", e);
-                    return new String[0];
-                }
+            Boolean get(StoreConfiguration configuration) {
+                return configuration.optimisticConcurrency;
             }
-        });
-    }
-
-    @Override
-    public Session load(final String id) {
-        return this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<Session>() {
 
             @Override
-            public Session invoke() {
-                try {
-                    byte[] session = RedisStore.this.jedisClient.get(id);
-                    return session == null ? RedisStore.this.manager.createSession(id) : RedisStore.this.sessionSerializationUtils.deserialize(session);
-                } catch (JedisConnectionException e) {
-                    return logAndCreateEmptySession(id, e);
-                } catch (ClassNotFoundException e) {
-                    return logAndCreateEmptySession(id, e);
-                } catch (IOException e) {
-                    return logAndCreateEmptySession(id, e);
-                }
+            void set(StoreConfiguration configuration) {
+                configuration.optimisticConcurrency = optimisticConcurrency;
             }
+
         });
     }
 
     @Override
-    public void remove(final String id) {
-        this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<Void>() {
+    public String getConflictPolicy() {
+        return this.configuration.conflictPolicy.name();
+    }
+
+    /**
+     * Sets what happens when a session cannot be saved because another node saved it since it was loaded.  One of
+     * {@code MERGE}, {@code OVERWRITE} or {@code REJECT}
+     *
+     * @param conflictPolicy the conflict policy
+     */
+    public void setConflictPolicy(final String conflictPolicy) {
+        update("conflictPolicy", conflictPolicy, new ConfigurationChange<String>() {
 
             @Override
-            public Void invoke() {
-                try {
-                    RedisStore.this.jedisClient.del(getSessionKeyPrefix(), id);
-                } catch (JedisConnectionException e) {
-                    RedisStore.this.logger.error("Unable to remove session {}", id, e);
-                }
+            String get(StoreConfiguration configuration) {
+                return configuration.conflictPolicy.name();
+            }
 
-                return null;
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.conflictPolicy = ConflictPolicy.valueOf(conflictPolicy.toUpperCase());
             }
 
         });
     }
 
     @Override
-    public void removePropertyChangeListener(PropertyChangeListener propertyChangeListener) {
-        this.propertyChangeSupport.remove(propertyChangeListener);
+    public int getConflictRetries() {
+        return this.configuration.conflictRetries;
+    }
+
+    /**
+     * Sets the number of times a session is merged and saved again before a conflicting save is given up
+     *
+     * @param conflictRetries the maximum number of merges per save
+     */
+    public void setConflictRetries(final int conflictRetries) {
+        update("conflictRetries", conflictRetries, new ConfigurationChange<Integer>() {
+
+            @Override
+            Integer get(StoreConfiguration configuration) {
+                return configuration.conflictRetries;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.conflictRetries = conflictRetries;
+            }
+
+        });
+    }
+
+    @Override
+    public boolean getSessionLocking() {
+        return this.configuration.sessionLocking;
+    }
+
+    /**
+     * Sets whether requested sessions should be locked while a request is processed, so that requests for the same
+     * session on different nodes are processed one at a time
+     *
+     * @param sessionLocking whether requested sessions should be locked
+     */
+    public void setSessionLocking(final boolean sessionLocking) {
+        update("sessionLocking", sessionLocking, new ConfigurationChange<Boolean>() {
+
+            @Override
+            Boolean get(StoreConfiguration configuration) {
+                return configuration.sessionLocking;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.sessionLocking = sessionLocking;
+            }
+
+        });
+    }
+
+    @Override
+    public int getSessionLockLease() {
+        return this.configuration.sessionLockLease;
+    }
+
+    /**
+     * Sets how long a session lock is held before it expires, if it is not released
+     *
+     * @param sessionLockLease the lease of a session lock, in milliseconds
+     */
+    public void setSessionLockLease(final int sessionLockLease) {
+        update("sessionLockLease", sessionLockLease, new ConfigurationChange<Integer>() {
+
+            @Override
+            Integer get(StoreConfiguration configuration) {
+                return configuration.sessionLockLease;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.sessionLockLease = sessionLockLease;
+            }
+
+        });
+    }
+
+    @Override
+    public int getSessionLockWait() {
+        return this.configuration.sessionLockWait;
+    }
+
+    /**
+     * Sets how long a request waits for the lock of its session before it is rejected
+     *
+     * @param sessionLockWait the maximum time to wait for a session lock, in milliseconds
+     */
+    public void setSessionLockWait(final int sessionLockWait) {
+        update("sessionLockWait", sessionLockWait, new ConfigurationChange<Integer>() {
+
+            @Override
+            Integer get(StoreConfiguration configuration) {
+                return configuration.sessionLockWait;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.sessionLockWait = sessionLockWait;
+            }
+
+        });
+    }
+
+    @Override
+    public long getSessionLockAcquisitions() {
+        return this.lockStatistics.getAcquisitions();
+    }
+
+    @Override
+    public long getSessionLockTimeouts() {
+        return this.lockStatistics.getTimeouts();
+    }
+
+    @Override
+    public double getSessionLockAverageWaitTime() {
+        return this.lockStatistics.getAverageWaitTime();
+    }
+
+    @Override
+    public long getSessionLockMaxWaitTime() {
+        return this.lockStatistics.getMaxWaitTime();
+    }
+
+    @Override
+    public double getSessionLockAverageHoldTime() {
+        return this.lockStatistics.getAverageHoldTime();
+    }
+
+    @Override
+    public long getSessionLockMaxHoldTime() {
+        return this.lockStatistics.getMaxHoldTime();
+    }
+
+    @Override
+    public String getHost() {
+        return this.configuration.host;
+    }
+
+    /**
+     * Sets the host to connect to
+     *
+     * @param host the host to connect to
+     */
+    public void setHost(final String host) {
+        update("host", host, new ConfigurationChange<String>() {
+
+            @Override
+            String get(StoreConfiguration configuration) {
+                return configuration.host;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.host = host;
+            }
+
+        });
+    }
+
+    @Override
+    public Manager getManager() {
+        return this.configuration.manager;
+    }
+
+    @Override
+    public void setManager(final Manager manager) {
+        update("manager", manager, new ConfigurationChange<Manager>() {
+
+            @Override
+            Manager get(StoreConfiguration configuration) {
+                return configuration.manager;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.manager = manager;
+                configuration.updateSessionSerializationUtils();
+            }
+
+        });
+    }
+
+    @Override
+    public boolean getNearCache() {
+        return this.configuration.nearCache;
+    }
+
+    /**
+     * Sets whether recently saved and loaded sessions should be cached locally and reused while their version in
+     * Redis is unchanged
+     *
+     * @param nearCache whether sessions should be cached locally
+     */
+    public void setNearCache(final boolean nearCache) {
+        update("nearCache", nearCache, new ConfigurationChange<Boolean>() {
+
+            @Override
+            Boolean get(StoreConfiguration configuration) {
+                return configuration.nearCache;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.nearCache = nearCache;
+            }
+
+        });
+    }
+
+    @Override
+    public boolean getNearCacheInvalidation() {
+        return this.configuration.nearCacheInvalidation;
+    }
+
+    /**
+     * Sets whether saves should be published to other nodes, so that cached sessions can be used without checking
+     * their version
+     *
+     * @param nearCacheInvalidation whether saves should be published to other nodes
+     */
+    public void setNearCacheInvalidation(final boolean nearCacheInvalidation) {
+        update("nearCacheInvalidation", nearCacheInvalidation, new ConfigurationChange<Boolean>() {
+
+            @Override
+            Boolean get(StoreConfiguration configuration) {
+                return configuration.nearCacheInvalidation;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.nearCacheInvalidation = nearCacheInvalidation;
+            }
+
+        });
+    }
+
+    @Override
+    public int getNearCacheSize() {
+        return this.configuration.nearCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of sessions to cache locally
+     *
+     * @param nearCacheSize the maximum number of sessions to cache locally
+     */
+    public void setNearCacheSize(final int nearCacheSize) {
+        update("nearCacheSize", nearCacheSize, new ConfigurationChange<Integer>() {
+
+            @Override
+            Integer get(StoreConfiguration configuration) {
+                return configuration.nearCacheSize;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.nearCacheSize = nearCacheSize;
+            }
+
+        });
+    }
+
+    @Override
+    public int getNearCacheTtl() {
+        return this.configuration.nearCacheTtl;
+    }
+
+    /**
+     * Sets the maximum time (in seconds) to cache a session locally
+     *
+     * @param nearCacheTtl the maximum time to cache a session locally
+     */
+    public void setNearCacheTtl(final int nearCacheTtl) {
+        update("nearCacheTtl", nearCacheTtl, new ConfigurationChange<Integer>() {
+
+            @Override
+            Integer get(StoreConfiguration configuration) {
+                return configuration.nearCacheTtl;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.nearCacheTtl = nearCacheTtl;
+            }
+
+        });
+    }
+
+    @Override
+    public boolean getPayloadEnvelope() {
+        return this.configuration.payloadEnvelope;
+    }
+
+    /**
+     * Sets whether serialized sessions should be wrapped in a versioned envelope with a checksum
+     *
+     * @param payloadEnvelope whether serialized sessions should be wrapped in an envelope
+     */
+    public void setPayloadEnvelope(final boolean payloadEnvelope) {
+        update("payloadEnvelope", payloadEnvelope, new ConfigurationChange<Boolean>() {
+
+            @Override
+            Boolean get(StoreConfiguration configuration) {
+                return configuration.payloadEnvelope;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.payloadEnvelope = payloadEnvelope;
+                configuration.updateSessionSerializationUtils();
+            }
+
+        });
+    }
+
+    @Override
+    public String getPassword() {
+        return this.configuration.password;
+    }
+
+    /**
+     * Sets the password to use when connecting
+     *
+     * @param password the password to use when connecting
+     */
+    public void setPassword(final String password) {
+        update("password", "*", new ConfigurationChange<String>() {
+
+            @Override
+            String get(StoreConfiguration configuration) {
+                return configuration.password;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.password = password;
+            }
+
+        });
+    }
+
+    @Override
+    public int getPort() {
+        return this.configuration.port;
+    }
+
+    /**
+     * Sets the port to connect to
+     *
+     * @param port the port to connect to
+     */
+    public void setPort(final int port) {
+        update("port", port, new ConfigurationChange<Integer>() {
+
+            @Override
+            Integer get(StoreConfiguration configuration) {
+                return configuration.port;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.port = port;
+            }
+
+        });
+    }
+
+    @Override
+    public int getSize() {
+        try {
+            JedisClient jedisClient = this.jedisClient;
+            int size = 0;
+            for (String indexKey : this.configuration.keyLayout.getIndexKeys()) {
+                size += jedisClient.count(indexKey);
+            }
+            return size;
+        } catch (JedisConnectionException e) {
+            this.logger.error("Unable to get the number of persisted sessions", e);
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    @Override
+    public int getTimeout() {
+        return this.configuration.timeout;
+    }
+
+    /**
+     * Sets the connection timeout
+     *
+     * @param timeout the connection timeout
+     */
+    public void setTimeout(final int timeout) {
+        update("timeout", timeout, new ConfigurationChange<Integer>() {
+
+            @Override
+            Integer get(StoreConfiguration configuration) {
+                return configuration.timeout;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.timeout = timeout;
+            }
+
+        });
+    }
+
+    @Override
+    public boolean getTouchUnchanged() {
+        return this.configuration.touchUnchanged;
+    }
+
+    /**
+     * Sets whether the expiry of sessions that are skipped by dirty tracking should still be refreshed in Redis
+     *
+     * @param touchUnchanged whether the expiry of unchanged sessions should be refreshed
+     */
+    public void setTouchUnchanged(final boolean touchUnchanged) {
+        update("touchUnchanged", touchUnchanged, new ConfigurationChange<Boolean>() {
+
+            @Override
+            Boolean get(StoreConfiguration configuration) {
+                return configuration.touchUnchanged;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.touchUnchanged = touchUnchanged;
+            }
+
+        });
+    }
+
+    @Override
+    public String getUri() {
+        StoreConfiguration configuration = this.configuration;
+        return String.format("redis://%s%s:%d/%d", getUserInfo(configuration), configuration.host, configuration.port,
+                configuration.database);
+    }
+
+    @Override
+    public boolean getCluster() {
+        return this.configuration.cluster;
+    }
+
+    /**
+     * Sets the cluster mode
+     *
+     * @param cluster
+     */
+    public void setCluster(final boolean cluster) {
+        update("cluster", cluster, new ConfigurationChange<Boolean>() {
+
+            @Override
+            Boolean get(StoreConfiguration configuration) {
+                return configuration.cluster;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.cluster = cluster;
+            }
+
+        });
+    }
+
+    /**
+     * Sets the connection URI
+     *
+     * @param uri the connection URI
+     */
+    public void setUri(final String uri) {
+        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
+
+            @Override
+            public Void invoke() {
+                RedisStore.this.logger.info("setting uri={}", uri);
+                URI richUri = URI.create(uri);
+                setHost(richUri.getHost());
+                setPort(richUri.getPort());
+                setPassword(parsePassword(richUri));
+                setDatabase(parseDatabase(richUri));
+                return null;
+            }
+
+        });
+    }
+
+    @Override
+    public boolean getWriteBehind() {
+        return this.configuration.writeBehind;
+    }
+
+    /**
+     * Sets whether sessions should be written to Redis asynchronously, after the response has been returned
+     *
+     * @param writeBehind whether sessions should be written asynchronously
+     */
+    public void setWriteBehind(final boolean writeBehind) {
+        update("writeBehind", writeBehind, new ConfigurationChange<Boolean>() {
+
+            @Override
+            Boolean get(StoreConfiguration configuration) {
+                return configuration.writeBehind;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.writeBehind = writeBehind;
+            }
+
+        });
+    }
+
+    @Override
+    public long getWriteBehindBatchDelay() {
+        return this.configuration.writeBehindBatchDelay;
+    }
+
+    /**
+     * Sets how long a write-behind flusher waits for a full batch of sessions to accumulate, in milliseconds
+     *
+     * @param writeBehindBatchDelay how long to wait for a full batch
+     */
+    public void setWriteBehindBatchDelay(final long writeBehindBatchDelay) {
+        update("writeBehindBatchDelay", writeBehindBatchDelay, new ConfigurationChange<Long>() {
+
+            @Override
+            Long get(StoreConfiguration configuration) {
+                return configuration.writeBehindBatchDelay;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.writeBehindBatchDelay = writeBehindBatchDelay;
+            }
+
+        });
+    }
+
+    @Override
+    public int getWriteBehindBatchSize() {
+        return this.configuration.writeBehindBatchSize;
+    }
+
+    /**
+     * Sets the maximum number of sessions written to Redis in a single round trip
+     *
+     * @param writeBehindBatchSize the maximum number of sessions written in a single round trip
+     */
+    public void setWriteBehindBatchSize(final int writeBehindBatchSize) {
+        update("writeBehindBatchSize", writeBehindBatchSize, new ConfigurationChange<Integer>() {
+
+            @Override
+            Integer get(StoreConfiguration configuration) {
+                return configuration.writeBehindBatchSize;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.writeBehindBatchSize = writeBehindBatchSize;
+            }
+
+        });
+    }
+
+    @Override
+    public String getWriteBehindOverflowPolicy() {
+        return this.configuration.writeBehindOverflowPolicy.name();
+    }
+
+    /**
+     * Sets what happens when a session is saved while the write-behind queue is full.  One of {@code BLOCK},
+     * {@code DROP_OLDEST} or {@code SYNCHRONOUS}
+     *
+     * @param writeBehindOverflowPolicy the write-behind overflow policy
+     */
+    public void setWriteBehindOverflowPolicy(final String writeBehindOverflowPolicy) {
+        update("writeBehindOverflowPolicy", writeBehindOverflowPolicy, new ConfigurationChange<String>() {
+
+            @Override
+            String get(StoreConfiguration configuration) {
+                return configuration.writeBehindOverflowPolicy.name();
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.writeBehindOverflowPolicy =
+                        WriteBehindQueue.OverflowPolicy.valueOf(writeBehindOverflowPolicy.toUpperCase());
+            }
+
+        });
     }
 
     @Override
-    public void save(final Session session) {
-        this.lockTemplate.withReadLock(
-                new LockTemplate.LockedOperation<Void>() {
-                    @Override
-                    public Void invoke() {
-                        try {
-                            byte[] serialized = RedisStore.this.sessionSerializationUtils.serialize(session);
-                            RedisStore.this.jedisClient.set(getRedisSessionId(session), getSessionKeyPrefix(), serialized, session.getMaxInactiveInterval());
-                        } catch (JedisConnectionException e) {
-                            RedisStore.this.logger.error("Unable to persist session {}", getRedisSessionId(session), e);
-                        } catch (IOException e) {
-                            RedisStore.this.logger.error("Unable to save session {}", getRedisSessionId(session), e);
-                        }
-                        return null;
+    public int getWriteBehindQueueSize() {
+        return this.configuration.writeBehindQueueSize;
+    }
+
+    /**
+     * Sets the maximum number of sessions waiting to be written asynchronously
+     *
+     * @param writeBehindQueueSize the maximum number of sessions waiting to be written
+     */
+    public void setWriteBehindQueueSize(final int writeBehindQueueSize) {
+        update("writeBehindQueueSize", writeBehindQueueSize, new ConfigurationChange<Integer>() {
+
+            @Override
+            Integer get(StoreConfiguration configuration) {
+                return configuration.writeBehindQueueSize;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.writeBehindQueueSize = writeBehindQueueSize;
+            }
+
+        });
+    }
+
+    @Override
+    public int getWriteBehindThreads() {
+        return this.configuration.writeBehindThreads;
+    }
+
+    /**
+     * Sets the number of threads writing sessions asynchronously
+     *
+     * @param writeBehindThreads the number of threads writing sessions
+     */
+    public void setWriteBehindThreads(final int writeBehindThreads) {
+        update("writeBehindThreads", writeBehindThreads, new ConfigurationChange<Integer>() {
+
+            @Override
+            Integer get(StoreConfiguration configuration) {
+                return configuration.writeBehindThreads;
+            }
+
+            @Override
+            void set(StoreConfiguration configuration) {
+                configuration.writeBehindThreads = writeBehindThreads;
+            }
+
+        });
+    }
+
+    @Override
+    public String[] keys() {
+        try {
+            JedisClient jedisClient = this.jedisClient;
+            Set<String> sessions = new LinkedHashSet<>();
+            for (String indexKey : this.configuration.keyLayout.getIndexKeys()) {
+                for (Iterator<String> i = jedisClient.getSessions(indexKey); i.hasNext(); ) {
+                    sessions.add(i.next());
+                }
+            }
+            return sessions.toArray(new String[sessions.size()]);
+        } catch (JedisConnectionException e) {
+            this.logger.error("Unable to get the keys of persisted sessions", e);
+            return new String[0];
+        }
+    }
+
+    @Override
+    public Session load(String id) {
+        StoreConfiguration configuration = this.configuration;
+
+        try {
+            String key = configuration.keyLayout.resolveKey(id);
+            NearCache sessionCache = this.sessionCache;
+            if (sessionCache != null && !isLockedWith(key)) {
+                return loadCached(sessionCache, id, key);
+            }
+
+            StoredSession stored = read(key, configuration.optimisticConcurrency);
+            Session session = fetch(key, stored);
+            return session == null ? configuration.manager.createSession(id) : loaded(session, stored.getVersion());
+        } catch (JedisConnectionException e) {
+            return logAndCreateEmptySession(id, e);
+        } catch (ClassNotFoundException e) {
+            return logAndCreateEmptySession(id, e);
+        } catch (IOException e) {
+            return logAndCreateEmptySession(id, e);
+        }
+    }
+
+    @Override
+    public void remove(String id) {
+        try {
+            KeyLayout keyLayout = this.configuration.keyLayout;
+            WriteBehindQueue writeBehindQueue = this.writeBehindQueue;
+            if (writeBehindQueue != null) {
+                writeBehindQueue.cancel(keyLayout.getSessionKey(id));
+            }
+            String key = keyLayout.resolveKey(id);
+            NearCache sessionCache = this.sessionCache;
+            if (sessionCache != null) {
+                sessionCache.remove(key);
+                sessionCache.remove(keyLayout.getSessionKey(id));
+            }
+            this.jedisClient.del(keyLayout.getIndexKey(key), key);
+            publishInvalidation(InvalidationSubscriber.message(key, 0));
+            if (!key.equals(keyLayout.getSessionKey(id))) {
+                publishInvalidation(InvalidationSubscriber.message(keyLayout.getSessionKey(id), 0));
+            }
+        } catch (JedisConnectionException e) {
+            this.logger.error("Unable to remove session {}", id, e);
+        }
+    }
+
+    @Override
+    public SessionLock lock(String id) {
+        StoreConfiguration configuration = this.configuration;
+        if (!configuration.sessionLocking) {
+            return null;
+        }
+
+        try {
+            return acquire(configuration, configuration.keyLayout.resolveKey(id));
+        } catch (JedisConnectionException e) {
+            this.logger.error("Unable to lock session {}", id, e);
+            return null;
+        }
+    }
+
+    /**
+     * Saves a session with a released lock standing in for the lock held by the current thread, so that the save is
+     * fenced by the lock's token in the same way as a save made while the lock is held
+     */
+    @Override
+    public void save(Session session, SessionLock lock) {
+        RedisSessionLock held = this.heldLocks.get();
+        this.heldLocks.set((RedisSessionLock) lock);
+
+        try {
+            save(session);
+        } finally {
+            if (held == null) {
+                this.heldLocks.remove();
+            } else {
+                this.heldLocks.set(held);
+            }
+        }
+    }
+
+    /**
+     * Releases a lock.  The session read with the lock is dropped if it has not been claimed, since the lock can still
+     * fence a later save, which must not merge with a session read before the lock was released.
+     */
+    @Override
+    public void unlock(SessionLock lock) {
+        RedisSessionLock redisLock = (RedisSessionLock) lock;
+        if (this.heldLocks.get() == redisLock) {
+            this.heldLocks.remove();
+        }
+        redisLock.claimSession(redisLock.getKey());
+        this.lockStatistics.released(System.nanoTime() - redisLock.getAcquiredAt());
+
+        try {
+            if (!this.jedisClient.unlock(redisLock.getKey(), redisLock.getFencingToken())) {
+                this.logger.warn("Lock of session {} expired before it was released", redisLock.getKey());
+            }
+        } catch (JedisConnectionException e) {
+            this.logger.error("Unable to unlock session {}", redisLock.getKey(), e);
+        }
+    }
+
+    @Override
+    public void removePropertyChangeListener(PropertyChangeListener propertyChangeListener) {
+        this.propertyChangeSupport.remove(propertyChangeListener);
+    }
+
+    @Override
+    public void save(Session session) {
+        try {
+            for (int conflicts = 1; !write(session); conflicts++) {
+                if (!resolveConflict(session, conflicts)) {
+                    break;
+                }
+            }
+        } catch (JedisConnectionException e) {
+            this.logger.error("Unable to persist session {}", getRedisSessionId(session), e);
+        } catch (ClassNotFoundException e) {
+            this.logger.error("Unable to merge session {}", getRedisSessionId(session), e);
+        } catch (IOException e) {
+            this.logger.error("Unable to save session {}", getRedisSessionId(session), e);
+        }
+    }
+
+    @Override
+    protected void initInternal() {
+        this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<Void>() {
+
+            @Override
+            public Void invoke() {
+                for (Valve valve : RedisStore.this.configuration.manager.getContext().getPipeline().getValves()) {
+                    if (valve instanceof SessionFlushValve) {
+                        RedisStore.this.logger.debug("Setting '{}' as the store for '{}'", this, valve);
+                        ((SessionFlushValve) valve).setStore(RedisStore.this);
+                    }
+                }
+
+                return null;
+            }
+
+        });
+    }
+
+    @Override
+    protected void startInternal() {
+        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
+
+            @Override
+            public Void invoke() {
+                StoreConfiguration configuration = RedisStore.this.configuration;
+                JedisClient previousClient = RedisStore.this.jedisClient;
+                ScheduledExecutorService previousIndexPruner = RedisStore.this.indexPruner;
+                WriteBehindQueue previousWriteBehindQueue = RedisStore.this.writeBehindQueue;
+                InvalidationSubscriber previousInvalidationSubscriber = RedisStore.this.invalidationSubscriber;
+
+                JedisPoolConfig poolConfig = new JedisPoolConfig();
+                poolConfig.setMaxTotal(configuration.connectionPoolSize);
+                poolConfig.setTestOnBorrow(true);
+                poolConfig.setTestOnReturn(true);
+                poolConfig.setTestWhileIdle(true);
+
+                if (configuration.cluster) {
+                    Set<HostAndPort> jedisClusterNodes = new HashSet<>();
+                    for (String host : configuration.host.split(";")) {
+                        jedisClusterNodes.add(HostAndPort.parseString(host));
                     }
+
+                    JedisCluster jedisCluster = new JedisCluster(jedisClusterNodes, configuration.timeout,
+                            DEFAULT_SO_TIMEOUT, DEFAULT_MAX_ATTEMPTS, configuration.password, poolConfig);
+                    RedisStore.this.jedisClient = new JedisClusterClient(jedisCluster, configuration.expiringIndex,
+                            configuration.nearCache || configuration.optimisticConcurrency, configuration.timeout,
+                            configuration.password);
+                } else {
+                    JedisPool jedisPool = new JedisPool(poolConfig, configuration.host, configuration.port,
+                            configuration.timeout, configuration.password, configuration.database);
+                    JedisShardInfo subscriberInfo = new JedisShardInfo(configuration.host, configuration.port,
+                            configuration.timeout);
+                    subscriberInfo.setPassword(configuration.password);
+                    RedisStore.this.jedisClient = new JedisNodeClient(jedisPool, configuration.expiringIndex,
+                            configuration.nearCache || configuration.optimisticConcurrency, subscriberInfo);
+                }
+
+                RedisStore.this.indexPruner = null;
+                if (configuration.expiringIndex) {
+                    ScheduledExecutorService indexPruner = Executors.newSingleThreadScheduledExecutor(
+                            new DaemonThreadFactory("redis-store-index-pruner"));
+                    indexPruner.scheduleWithFixedDelay(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            pruneIndex();
+                        }
+
+                    }, configuration.indexPruneInterval, configuration.indexPruneInterval, TimeUnit.SECONDS);
+                    RedisStore.this.indexPruner = indexPruner;
+                }
+
+                if (previousWriteBehindQueue != null) {
+                    closeWriteBehindQueue(previousWriteBehindQueue);
+                }
+                RedisStore.this.writeBehindQueue = !configuration.writeBehind ? null :
+                        new WriteBehindQueue(configuration.writeBehindQueueSize, configuration.writeBehindThreads,
+                                configuration.writeBehindBatchSize, configuration.writeBehindBatchDelay,
+                                configuration.writeBehindOverflowPolicy, new WriteBehindQueue.Writer() {
+
+                            @Override
+                            public void write(List<WriteBehindQueue.PendingSave> saves) {
+                                persistAll(saves);
+                            }
+
+                        });
+
+                NearCache sessionCache = configuration.nearCache ?
+                        new NearCache(configuration.nearCacheSize, configuration.nearCacheTtl * 1000L) : null;
+                RedisStore.this.sessionCache = sessionCache;
+
+                RedisStore.this.invalidationSubscriber = null;
+                if (configuration.nearCache && configuration.nearCacheInvalidation) {
+                    InvalidationSubscriber invalidationSubscriber = new InvalidationSubscriber(
+                            RedisStore.this.jedisClient, configuration.keyLayout.getInvalidationChannel(),
+                            sessionCache, INVALIDATION_RETRY_DELAY);
+                    invalidationSubscriber.start();
+                    RedisStore.this.invalidationSubscriber = invalidationSubscriber;
+                }
+
+                if (previousIndexPruner != null) {
+                    previousIndexPruner.shutdownNow();
+                }
+                if (previousInvalidationSubscriber != null) {
+                    previousInvalidationSubscriber.close();
+                }
+                if (previousClient != null) {
+                    drain(previousClient, configuration.clientDrainPeriod);
+                }
+
+                RedisStore.this.jmxSupport.register(getObjectName(), RedisStore.this);
+
+                return null;
+            }
+
+        });
+    }
+
+    
+    /**
+     *
+     * @param session
+     * @return The key the session is stored under
+     * @see KeyLayout#getSessionKey(String)
+     */
+    private String getRedisSessionId(final Session session) {
+        return this.configuration.keyLayout.getSessionKey(session.getId());
+    }
+
+    @Override
+    protected void stopInternal() {
+        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
+
+            @Override
+            public Void invoke() throws IOException {
+                stopIndexPruner();
+                closeWriteBehindQueue();
+                closeInvalidationSubscriber();
+                RedisStore.this.sessionCache = null;
+
+                JedisClient jedisClient = RedisStore.this.jedisClient;
+                if (jedisClient != null) {
+                    RedisStore.this.logger.info("Closing connection to Redis Server once requests using it complete");
+                    RedisStore.this.jedisClient = null;
+                    drain(jedisClient, RedisStore.this.configuration.clientDrainPeriod);
+                }
+
+                RedisStore.this.jmxSupport.unregister(getObjectName());
+
+                return null;
+            }
+
+        });
+    }
+
+    private void closeInvalidationSubscriber() {
+        if (this.invalidationSubscriber != null) {
+            this.invalidationSubscriber.close();
+            this.invalidationSubscriber = null;
+        }
+    }
+
+    private void stopIndexPruner() {
+        if (this.indexPruner != null) {
+            this.indexPruner.shutdownNow();
+            this.indexPruner = null;
+        }
+    }
+
+    /**
+     * Removes expired sessions from each index shard in bounded batches, so that no single command blocks Redis for
+     * long
+     */
+    private void pruneIndex() {
+        JedisClient jedisClient = this.jedisClient;
+        for (String indexKey : this.configuration.keyLayout.getIndexKeys()) {
+            try {
+                int pruned = 0;
+                for (int batch = PRUNE_BATCH_SIZE; batch >= PRUNE_BATCH_SIZE; pruned += batch) {
+                    batch = jedisClient.prune(indexKey, PRUNE_BATCH_SIZE);
+                }
+                this.logger.debug("Pruned {} expired sessions from {}", pruned, indexKey);
+            } catch (RuntimeException e) {
+                this.logger.error("Unable to prune expired sessions from {}", indexKey, e);
+            }
+        }
+    }
+
+    private void closeWriteBehindQueue() {
+        WriteBehindQueue writeBehindQueue = this.writeBehindQueue;
+        if (writeBehindQueue != null) {
+            closeWriteBehindQueue(writeBehindQueue);
+            this.writeBehindQueue = null;
+        }
+    }
+
+    /**
+     * Flushes a queue while it is still published.  Saves that the closed queue turns away are written synchronously
+     * once any queued or in-flight write of the same session is out of the way, so that none of its saves can land
+     * after a newer one.
+     */
+    private void closeWriteBehindQueue(WriteBehindQueue writeBehindQueue) {
+        this.logger.info("Flushing {} sessions waiting to be written to Redis", writeBehindQueue.size());
+        writeBehindQueue.close(WRITE_BEHIND_FLUSH_TIMEOUT);
+    }
+
+    /**
+     * Closes a client that has been replaced, or dropped when the store stopped, once requests that read it before
+     * then have had time to complete.  Connections those requests borrowed are returned to the closed pool and
+     * destroyed.
+     */
+    private void drain(final JedisClient jedisClient, long period) {
+        ScheduledExecutorService drainer = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("redis-store-client-drainer"));
+        drainer.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    jedisClient.close();
+                } catch (IOException e) {
+                    RedisStore.this.logger.error("Error closing previous template", e);
+                }
+            }
+
+        }, period, TimeUnit.MILLISECONDS);
+        drainer.shutdown();
+    }
+
+    /**
+     * Changes a property on a copy of the configuration, publishes the copy and notifies listeners of the change
+     */
+    private <T> void update(final String propertyName, final Object value, final ConfigurationChange<T> change) {
+        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
+
+            @Override
+            public Void invoke() {
+                RedisStore.this.logger.info("setting {}={}", propertyName, value);
+                StoreConfiguration configuration = RedisStore.this.configuration.copy();
+                T previous = change.get(configuration);
+                change.set(configuration);
+                RedisStore.this.configuration = configuration;
+                RedisStore.this.propertyChangeSupport.notify(propertyName, previous, change.get(configuration));
+                return null;
+            }
+
+        });
+    }
+
+    private String getContext() {
+        String name = this.configuration.manager.getContext().getName();
+        return name.startsWith("/") ? name : String.format("/%s", name);
+    }
+
+    private String getObjectName() {
+        String contextPath = getContext();
+        String hostName = this.configuration.manager.getContext().getParent().getName();
+
+        return String.format("Catalina:type=Store,context=%s,host=%s,name=%s", contextPath, hostName,
+                getClass().getSimpleName());
+    }
+
+    private String getUserInfo(StoreConfiguration configuration) {
+        String candidate = configuration.password;
+        return candidate == null ? "" : String.format(":%s@", candidate);
+    }
+
+    /**
+     * Saves a session in the configured storage format
+     *
+     * @return {@code false} if the save conflicted with a save by another node, otherwise {@code true}
+     */
+    private boolean write(Session session) throws IOException {
+        StoreConfiguration configuration = this.configuration;
+        if (configuration.hashStorage) {
+            return saveHash(session);
+        }
+        if (configuration.deltaStorage) {
+            return saveDelta(session);
+        }
+
+        SessionFingerprint fingerprint = null;
+        if (configuration.dirtyTracking || configuration.optimisticConcurrency) {
+            fingerprint = configuration.sessionSerializationUtils.fingerprint(session);
+            if (configuration.dirtyTracking && skipUnchanged(session, fingerprint)) {
+                return true;
+            }
+        }
+
+        byte[] serialized = configuration.sessionSerializationUtils.serialize(session);
+        String key = getRedisSessionId(session);
+        long version = persist(session, fingerprint, key, configuration.keyLayout.getIndexKey(key), serialized,
+                expectedVersion(session));
+        if (version == JedisClient.CONFLICT) {
+            return false;
+        }
+        if (version == JedisClient.FENCED) {
+            return fenced(key);
+        }
+
+        saved(session, key, version, fingerprint);
+        return true;
+    }
+
+    /**
+     * Saves a session stored as a hash, writing its metadata and only the attributes that changed since it was loaded
+     * or last saved.  A session with no record of its stored attributes replaces the hash.  Saves are never written
+     * behind, since queued partial updates cannot be coalesced.
+     *
+     * @return {@code false} if the save conflicted with a save by another node, otherwise {@code true}
+     */
+    private boolean saveHash(Session session) throws IOException {
+        StoreConfiguration configuration = this.configuration;
+        Map<String, byte[]> attributes = configuration.sessionSerializationUtils.serializeAttributes(session);
+        SessionFingerprint fingerprint = configuration.sessionSerializationUtils.fingerprint(session, attributes);
+        if (configuration.dirtyTracking && skipUnchanged(session, fingerprint)) {
+            return true;
+        }
+
+        SessionFingerprint previous = (SessionFingerprint) session.getNote(FINGERPRINT_NOTE);
+
+        Map<String, byte[]> fields = new HashMap<>();
+        fields.put(SessionHash.METADATA_FIELD, configuration.sessionSerializationUtils.serializeMetadata(session));
+        for (String name : fingerprint.getChangedAttributes(previous)) {
+            fields.put(SessionHash.getAttributeField(name), attributes.get(name));
+        }
+
+        Set<String> removedFields = new HashSet<>();
+        for (String name : fingerprint.getRemovedAttributes(previous)) {
+            removedFields.add(SessionHash.getAttributeField(name));
+        }
+
+        String key = getRedisSessionId(session);
+        String sessionsKey = configuration.keyLayout.getIndexKey(key);
+        RedisSessionLock lock = heldLock(session);
+        long version = this.jedisClient.setHash(key, sessionsKey, fields, removedFields, previous == null,
+                session.getMaxInactiveInterval(), expectedVersion(session), lock);
+        if (version == JedisClient.CONFLICT) {
+            return false;
+        }
+        if (version == JedisClient.FENCED) {
+            return fenced(key);
+        }
+
+        if (version < 0) {
+            this.logger.debug("Session {} no longer stored, replacing its hash", key);
+            for (Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+                fields.put(SessionHash.getAttributeField(attribute.getKey()), attribute.getValue());
+            }
+            version = this.jedisClient.setHash(key, sessionsKey, fields, Collections.<String>emptySet(), true,
+                    session.getMaxInactiveInterval(), expectedVersion(session), lock);
+            if (version == JedisClient.CONFLICT) {
+                return false;
+            }
+            if (version == JedisClient.FENCED) {
+                return fenced(key);
+            }
+        }
+
+        saved(session, key, version, fingerprint);
+        return true;
+    }
+
+    /**
+     * Saves a session stored as a delta.  Only the metadata and the attributes that changed since the session was
+     * loaded or last saved are appended as a patch, until the patches since the last base pass {@code deltaMaxPatches}
+     * or {@code deltaMaxPatchBytes} and the session is compacted into a new base.  A session with no record of its
+     * stored attributes, or whose delta has expired, is written as a new base.  Saves are never written behind, since
+     * queued patches cannot be coalesced.
+     *
+     * @return {@code false} if the save conflicted with a save by another node, otherwise {@code true}
+     */
+    private boolean saveDelta(Session session) throws IOException {
+        StoreConfiguration configuration = this.configuration;
+        Map<String, byte[]> attributes = configuration.sessionSerializationUtils.serializeAttributes(session);
+        SessionFingerprint fingerprint = configuration.sessionSerializationUtils.fingerprint(session, attributes);
+        if (configuration.dirtyTracking && skipUnchanged(session, fingerprint)) {
+            return true;
+        }
+
+        SessionFingerprint previous = (SessionFingerprint) session.getNote(FINGERPRINT_NOTE);
+        byte[] metadata = configuration.sessionSerializationUtils.serializeMetadata(session);
+        String key = getRedisSessionId(session);
+        String sessionsKey = configuration.keyLayout.getIndexKey(key);
+        RedisSessionLock lock = heldLock(session);
+
+        if (previous != null) {
+            Map<String, byte[]> changed = new HashMap<>();
+            for (String name : fingerprint.getChangedAttributes(previous)) {
+                changed.put(name, attributes.get(name));
+            }
+            byte[] patch = SessionDelta.encode(metadata, changed, fingerprint.getRemovedAttributes(previous));
+
+            Integer patches = (Integer) session.getNote(PATCHES_NOTE);
+            Long patchBytes = (Long) session.getNote(PATCH_BYTES_NOTE);
+            int nextPatches = (patches == null ? 0 : patches) + 1;
+            long nextPatchBytes = (patchBytes == null ? 0 : patchBytes) + patch.length;
+
+            if (nextPatches <= configuration.deltaMaxPatches && nextPatchBytes <= configuration.deltaMaxPatchBytes) {
+                long version = this.jedisClient.setDelta(key, sessionsKey, patch, false,
+                        session.getMaxInactiveInterval(), expectedVersion(session), lock);
+                if (version == JedisClient.CONFLICT) {
+                    return false;
+                }
+                if (version == JedisClient.FENCED) {
+                    return fenced(key);
                 }
+                if (version >= 0) {
+                    setPatches(session, nextPatches, nextPatchBytes);
+                    saved(session, key, version, fingerprint);
+                    return true;
+                }
+                this.logger.debug("Session {} no longer stored, writing a new base", key);
+            } else {
+                this.logger.debug("Session {} has {} patches of {} bytes, compacting", key, nextPatches,
+                        nextPatchBytes);
+            }
+        }
+
+        long version = this.jedisClient.setDelta(key, sessionsKey, SessionDelta.encode(metadata, attributes), true,
+                session.getMaxInactiveInterval(), expectedVersion(session), lock);
+        if (version == JedisClient.CONFLICT) {
+            return false;
+        }
+        if (version == JedisClient.FENCED) {
+            return fenced(key);
+        }
 
-        );
+        setPatches(session, 0, 0);
+        saved(session, key, version, fingerprint);
+        return true;
     }
 
-    @Override
-    protected void initInternal() {
-        this.lockTemplate.withReadLock(new LockTemplate.LockedOperation<Void>() {
+    private void setPatches(Session session, int patches, long patchBytes) {
+        session.setNote(PATCHES_NOTE, patches);
+        session.setNote(PATCH_BYTES_NOTE, patchBytes);
+    }
 
-            @Override
-            public Void invoke() {
-                for (Valve valve : RedisStore.this.manager.getContext().getPipeline().getValves()) {
-                    if (valve instanceof SessionFlushValve) {
-                        RedisStore.this.logger.debug("Setting '{}' as the store for '{}'", this, valve);
-                        ((SessionFlushValve) valve).setStore(RedisStore.this);
-                    }
+    /**
+     * Applies the conflict policy to a session whose save conflicted with a save by another node
+     *
+     * @return {@code true} if the session must be saved again, otherwise {@code false}
+     */
+    private boolean resolveConflict(Session session, int conflicts) throws ClassNotFoundException, IOException {
+        StoreConfiguration configuration = this.configuration;
+        String key = getRedisSessionId(session);
+
+        switch (configuration.conflictPolicy) {
+            case MERGE:
+                if (conflicts > configuration.conflictRetries) {
+                    this.logger.warn("Unable to save session {} after {} conflicting saves", key, conflicts);
+                    return false;
                 }
+                this.logger.debug("Session {} saved by another node, merging", key);
+                merge(session, key, true);
+                return true;
+            case OVERWRITE:
+                this.logger.debug("Session {} saved by another node, overwriting", key);
+                session.removeNote(FINGERPRINT_NOTE);
+                session.setNote(VERSION_NOTE, JedisClient.ANY_VERSION);
+                return true;
+            default:
+                this.logger.warn("Session {} saved by another node, discarding changes", key);
+                merge(session, key, false);
+                return false;
+        }
+    }
 
-                return null;
+    /**
+     * Brings a session up to date with the stored session.  Attributes that were added, changed or removed since the
+     * session was loaded are kept if {@code keepChanges} is set, and every other attribute is taken from the stored
+     * session.
+     */
+    private void merge(Session session, String key, boolean keepChanges) throws ClassNotFoundException, IOException {
+        StoreConfiguration configuration = this.configuration;
+        Set<String> changed = Collections.emptySet();
+        Set<String> removed = Collections.emptySet();
+        if (keepChanges) {
+            SessionFingerprint loaded = (SessionFingerprint) session.getNote(FINGERPRINT_NOTE);
+            SessionFingerprint current = configuration.sessionSerializationUtils.fingerprint(session);
+            changed = current.getChangedAttributes(loaded);
+            removed = current.getRemovedAttributes(loaded);
+        }
+
+        StoredSession stored = read(key, true);
+        Session latest = fetch(key, stored);
+        session.setNote(VERSION_NOTE, stored.getVersion() == null ? 0 : stored.getVersion());
+
+        if (latest == null) {
+            session.removeNote(FINGERPRINT_NOTE);
+            session.removeNote(PATCHES_NOTE);
+            session.removeNote(PATCH_BYTES_NOTE);
+            return;
+        }
+
+        StandardSession target = (StandardSession) session;
+        StandardSession source = (StandardSession) latest;
+        for (String name : Collections.list(source.getAttributeNames())) {
+            if (!changed.contains(name) && !removed.contains(name)) {
+                target.setAttribute(name, source.getAttribute(name), false);
+            }
+        }
+        for (String name : Collections.list(target.getAttributeNames())) {
+            if (!changed.contains(name) && source.getAttribute(name) == null) {
+                target.removeAttribute(name, false);
             }
+        }
 
-        });
+        Object fingerprint = latest.getNote(FINGERPRINT_NOTE);
+        session.setNote(FINGERPRINT_NOTE,
+                fingerprint != null ? fingerprint : configuration.sessionSerializationUtils.fingerprint(latest));
+        if (latest.getNote(PATCHES_NOTE) != null) {
+            setPatches(session, (Integer) latest.getNote(PATCHES_NOTE), (Long) latest.getNote(PATCH_BYTES_NOTE));
+        }
     }
 
-    @Override
-    protected void startInternal() {
-        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
+    /**
+     * Returns the version a session must still have in Redis for a save to be written, which is the version it was
+     * loaded or last saved with
+     */
+    private long expectedVersion(Session session) {
+        if (!this.configuration.optimisticConcurrency) {
+            return JedisClient.ANY_VERSION;
+        }
 
-            @Override
-            public Void invoke() {
-                if (RedisStore.this.jedisClient != null) {
-                    try {
-                        RedisStore.this.jedisClient.close();
-                    } catch (IOException e) {
-                        RedisStore.this.logger.error("Error closing previous template", e);
-                    }
-                }
-                JedisPoolConfig poolConfig = new JedisPoolConfig();
-                poolConfig.setMaxTotal(RedisStore.this.connectionPoolSize);
-                poolConfig.setTestOnBorrow(true);
-                poolConfig.setTestOnReturn(true);
-                poolConfig.setTestWhileIdle(true);
+        Long version = (Long) session.getNote(VERSION_NOTE);
+        return version == null ? 0 : version;
+    }
 
-                if (cluster) {
-                    Set<HostAndPort> jedisClusterNodes = new HashSet<>();
-                    for (String host : RedisStore.this.host.split(";")) {
-                        jedisClusterNodes.add(HostAndPort.parseString(host));
-                    }
+    /**
+     * Records the version a session was loaded with, if saves are conditional
+     */
+    private Session loaded(Session session, Long version) {
+        if (this.configuration.optimisticConcurrency) {
+            session.setNote(VERSION_NOTE, version == null ? 0 : version);
+        }
+        return session;
+    }
 
-                    JedisCluster jedisCluster = new JedisCluster(jedisClusterNodes, RedisStore.this.timeout, DEFAULT_SO_TIMEOUT,
-                            DEFAULT_MAX_ATTEMPTS, RedisStore.this.password, poolConfig);
-                    RedisStore.this.jedisClient = new JedisClusterClient(jedisCluster);
-                } else {
-                    JedisPool jedisPool = new JedisPool(poolConfig, RedisStore.this.host, RedisStore.this.port,
-                            RedisStore.this.timeout, RedisStore.this.password, RedisStore.this.database);
-                    RedisStore.this.jedisClient = new JedisNodeClient(jedisPool);
-                }
+    /**
+     * Refreshes the expiry of, or skips, a session that has not changed since it was last saved.  A session that never
+     * expires has no expiry to refresh, and is skipped.
+     *
+     * @return {@code true} if the session is unchanged and must not be saved, otherwise {@code false}
+     */
+    private boolean skipUnchanged(Session session, SessionFingerprint fingerprint)
+            throws UnsupportedEncodingException {
+        StoreConfiguration configuration = this.configuration;
+        if (!isUnchanged(session, fingerprint)) {
+            return false;
+        }
 
-                RedisStore.this.jmxSupport.register(getObjectName(), RedisStore.this);
+        String key = getRedisSessionId(session);
+        if (configuration.touchUnchanged && session.getMaxInactiveInterval() > 0) {
+            this.logger.debug("Session {} unchanged, refreshing expiry", key);
+            if (!this.jedisClient.touch(key, configuration.keyLayout.getIndexKey(key),
+                    session.getMaxInactiveInterval())) {
+                this.logger.debug("Session {} no longer stored, writing it in full", key);
+                session.removeNote(FINGERPRINT_NOTE);
+                return false;
+            }
+        } else {
+            this.logger.debug("Session {} unchanged, skipping save", key);
+        }
+        return true;
+    }
 
-                return null;
+    /**
+     * Records a save in the session's notes and the near cache, and announces it to other nodes.  A queued save is only
+     * recorded in the session's notes once it has been written, so that a save that is dropped or fails is retried by
+     * the next save of the session rather than skipped as unchanged.
+     */
+    private void saved(Session session, String key, long version, SessionFingerprint fingerprint)
+            throws IOException {
+        if (version != QUEUED) {
+            written(session, fingerprint);
+            if (this.configuration.optimisticConcurrency) {
+                session.setNote(VERSION_NOTE, version);
             }
+        }
 
-        });
+        NearCache sessionCache = this.sessionCache;
+        if (sessionCache != null && version > 0 && session.isValid()) {
+            sessionCache.put(key, version, snapshot(session));
+        } else if (sessionCache != null) {
+            sessionCache.remove(key);
+        }
+        if (version > 0) {
+            publishInvalidation(InvalidationSubscriber.message(key, version));
+        }
+    }
+
+    /**
+     * Records the fingerprint of a session that has been written
+     */
+    private void written(Session session, SessionFingerprint fingerprint) {
+        if (fingerprint != null) {
+            session.setNote(FINGERPRINT_NOTE, fingerprint);
+            session.setNote(SAVED_AT_NOTE, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Acquires the lock of a session, retrying with exponential backoff until the lock is acquired or the wait for it
+     * times out.  A retry is never delayed beyond the remaining lease of the holder.  The session is read along with
+     * the lock, and the lock is remembered for the current thread so that the session can be loaded without another
+     * round trip.
+     */
+    private RedisSessionLock acquire(StoreConfiguration configuration, String key) {
+        String read = readCommand(configuration);
+        int timeout = getSessionTimeout(configuration);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(configuration.sessionLockWait);
+
+        for (long backoff = MIN_LOCK_BACKOFF; ; backoff = Math.min(backoff * 2, MAX_LOCK_BACKOFF)) {
+            RedisSessionLock lock = this.jedisClient.lock(key, configuration.sessionLockLease, timeout, read);
+            long now = System.nanoTime();
+
+            if (lock.isAcquired()) {
+                this.lockStatistics.acquired(now - start);
+                this.heldLocks.set(lock);
+                return lock;
+            }
+
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - now);
+            if (remaining <= 0) {
+                this.logger.warn("Timed out waiting for the lock of session {}", key);
+                this.lockStatistics.timedOut();
+                return lock;
+            }
+
+            long delay = Math.min(backoff, remaining);
+            if (lock.getRemainingLease() > 0) {
+                delay = Math.min(delay, lock.getRemainingLease());
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.lockStatistics.timedOut();
+                return lock;
+            }
+        }
+    }
+
+    /**
+     * Returns the timeout of new sessions in seconds, for which the fencing token counter of a session that has not
+     * been saved yet is kept, or {@code 0} if it is not known
+     */
+    private static int getSessionTimeout(StoreConfiguration configuration) {
+        Manager manager = configuration.manager;
+        return manager == null || manager.getContext() == null ? 0 : manager.getContext().getSessionTimeout() * 60;
+    }
+
+    /**
+     * Returns whether the current thread holds the lock of a session and has not loaded the session read with it yet
+     */
+    private boolean isLockedWith(String key) {
+        RedisSessionLock lock = this.heldLocks.get();
+        return lock != null && lock.isAcquired() && lock.getKey().equals(key);
     }
 
-    
     /**
+     * Returns the lock that the current thread holds on a session, which saves of the session are fenced by
      *
-     * @param session
-     * @return The session Id + the session prefix
+     * @return the lock, or {@code null} if the current thread does not hold the lock of the session
      */
-    private String getRedisSessionId(final Session session) {
-        return  getSessionKeyPrefix() + session.getId() ;
+    private RedisSessionLock heldLock(Session session) {
+        RedisSessionLock lock = this.heldLocks.get();
+        if (lock == null || !lock.isAcquired()) {
+            return null;
+        }
+        return lock.getKey().equals(this.configuration.keyLayout.resolveKey(session.getId())) ? lock : null;
     }
-    
-    @Override
-    protected void stopInternal() {
-        this.lockTemplate.withWriteLock(new LockTemplate.LockedOperation<Void>() {
 
-            @Override
-            public Void invoke() throws IOException {
-                if (RedisStore.this.jedisClient != null) {
-                    RedisStore.this.logger.info("Closing connection to Redis Server");
-                    RedisStore.this.jedisClient.close();
-                }
+    /**
+     * Drops a save that a later holder of the session's lock has fenced off, since the later holder's saves take
+     * precedence
+     *
+     * @return {@code true}, since the save must not be retried
+     */
+    private boolean fenced(String key) {
+        this.logger.warn("Lock of session {} was taken over by another holder, discarding the save", key);
+        return true;
+    }
 
-                RedisStore.this.jmxSupport.unregister(getObjectName());
+    /**
+     * Reads a session from Redis, or takes the session read when its lock was acquired.  The version is read along
+     * with the session if it is asked for, and otherwise not read.
+     */
+    private StoredSession read(String key, boolean versioned) throws UnsupportedEncodingException {
+        StoreConfiguration configuration = this.configuration;
+        RedisSessionLock lock = this.heldLocks.get();
+        if (lock != null && lock.claimSession(key)) {
+            StoredSession session = lock.getSession();
+            if (!versioned || session.isVersionRead()) {
+                return session;
+            }
+            return session.withVersion(this.jedisClient.getVersion(key));
+        }
+
+        String read = readCommand(configuration);
+        try {
+            if (versioned) {
+                return this.jedisClient.getWithVersion(key, read);
+            }
+            if (configuration.hashStorage) {
+                return new StoredSession(this.jedisClient.getHash(key), false, null);
+            }
+            if (configuration.deltaStorage) {
+                return new StoredSession(this.jedisClient.getDelta(key), false, null);
+            }
+            return new StoredSession(this.jedisClient.get(key), false, null);
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith(WRONG_TYPE)) {
+                throw e;
+            }
+            StoredSession session = new StoredSession(StoredSession.OTHER_TYPE, false, null);
+            return versioned ? session.withVersion(this.jedisClient.getVersion(key)) : session;
+        }
+    }
+
+    /**
+     * Deserializes a session as it was read from Redis
+     *
+     * @return the session, or {@code null} if there is no such session
+     */
+    private Session fetch(String key, StoredSession stored) throws ClassNotFoundException, IOException {
+        StoreConfiguration configuration = this.configuration;
+
+        if (stored.isOtherType()) {
+            this.logger.debug("Session {} stored as a single value, reading it as one", key);
+            return deserialize(this.jedisClient.get(key), false);
+        }
 
+        if (configuration.hashStorage) {
+            Map<String, byte[]> fields = stored.getHash();
+            byte[] metadata = fields.get(SessionHash.METADATA_FIELD);
+            return metadata == null ? null : restore(metadata, SessionHash.getAttributes(fields));
+        }
+
+        if (configuration.deltaStorage) {
+            SessionDelta delta = SessionDelta.merge(stored.getDelta());
+            if (delta == null) {
                 return null;
             }
 
-        });
+            Session session = restore(delta.getMetadata(), delta.getAttributes());
+            setPatches(session, delta.getPatches(), delta.getPatchBytes());
+            return session;
+        }
+
+        return deserialize(stored.getValue(), configuration.optimisticConcurrency);
     }
 
-    private String getContext() {
-        String name = this.manager.getContext().getName();
-        return name.startsWith("/") ? name : String.format("/%s", name);
+    /**
+     * Returns the command that reads a session in the configured storage
+     */
+    private static String readCommand(StoreConfiguration configuration) {
+        return configuration.hashStorage ? RedisSessionLock.READ_HASH :
+                configuration.deltaStorage ? RedisSessionLock.READ_DELTA : RedisSessionLock.READ_VALUE;
     }
 
-    private String getObjectName() {
-        String contextPath = getContext();
-        String hostName = this.manager.getContext().getParent().getName();
+    /**
+     * Deserializes a session stored as a single value.  A session stored before hash or delta storage was switched on
+     * is deserialized without a record of its stored attributes, so that its next save replaces it in the current
+     * storage.
+     */
+    private Session deserialize(byte[] serialized, boolean fingerprint) throws ClassNotFoundException, IOException {
+        if (serialized == null) {
+            return null;
+        }
 
-        return String.format("Catalina:type=Store,context=%s,host=%s,name=%s", contextPath, hostName,
-                getClass().getSimpleName());
+        StoreConfiguration configuration = this.configuration;
+        Session session = configuration.sessionSerializationUtils.deserialize(serialized);
+        if (fingerprint) {
+            session.setNote(FINGERPRINT_NOTE, configuration.sessionSerializationUtils.fingerprint(session));
+        }
+        return session;
     }
 
-    private String getUserInfo() {
-        String candidate = RedisStore.this.password;
-        return candidate == null ? "" : String.format(":%s@", candidate);
+    /**
+     * Deserializes a session stored with its attributes serialized individually, and records the stored attributes so
+     * that the next save can be partial
+     */
+    private Session restore(byte[] metadata, Map<String, byte[]> attributes)
+            throws ClassNotFoundException, IOException {
+        StoreConfiguration configuration = this.configuration;
+        Session session = configuration.sessionSerializationUtils.deserialize(metadata, attributes,
+                configuration.lazyAttributes);
+        session.setNote(FINGERPRINT_NOTE, configuration.sessionSerializationUtils.fingerprint(session, attributes));
+        return session;
+    }
+
+    /**
+     * Takes a snapshot of a session for the near cache.  The snapshot holds the session's attributes in serialized
+     * form, so that changes made to the session afterwards do not reach the cache, and each hit deserializes a copy of
+     * its own with {@link #copy(Session)}.
+     */
+    private Session snapshot(Session session) throws IOException {
+        return copyNotes(session, this.configuration.sessionSerializationUtils.snapshot(session));
+    }
+
+    /**
+     * Copies a session out of the near cache, so that the cached snapshot is never handed to a request
+     */
+    private Session copy(Session session) throws ClassNotFoundException, IOException {
+        StoreConfiguration configuration = this.configuration;
+        return copyNotes(session, configuration.sessionSerializationUtils.copy(session, configuration.lazyAttributes));
+    }
+
+    /**
+     * Sessions stored as hashes or deltas keep the record of their stored attributes when copied to or from the near
+     * cache, so that the next save of the copy stays partial, as do sessions saved with optimistic concurrency, so that
+     * a conflicting save of the copy can be merged.
+     */
+    private Session copyNotes(Session session, Session copy) {
+        StoreConfiguration configuration = this.configuration;
+
+        Object fingerprint = session.getNote(FINGERPRINT_NOTE);
+        if ((configuration.hashStorage || configuration.deltaStorage || configuration.optimisticConcurrency) &&
+                fingerprint != null) {
+            copy.setNote(FINGERPRINT_NOTE, fingerprint);
+        }
+        if (configuration.deltaStorage && session.getNote(PATCHES_NOTE) != null) {
+            setPatches(copy, (Integer) session.getNote(PATCHES_NOTE), (Long) session.getNote(PATCH_BYTES_NOTE));
+        }
+
+        return copy;
+    }
+
+    /**
+     * A session is unchanged if its fingerprint matches the one taken when it was last persisted.  An unchanged session
+     * is still rewritten once half of its inactive interval has passed since it was last persisted.  This refreshes its
+     * expiry in Redis when it is not being touched, and keeps the persisted access times recent enough that another
+     * node loading the session does not consider it expired.
+     */
+    private boolean isUnchanged(Session session, SessionFingerprint fingerprint) {
+        if (!fingerprint.equals(session.getNote(FINGERPRINT_NOTE))) {
+            return false;
+        }
+
+        int maxInactiveInterval = session.getMaxInactiveInterval();
+        if (maxInactiveInterval <= 0) {
+            return true;
+        }
+
+        Long savedAt = (Long) session.getNote(SAVED_AT_NOTE);
+        return savedAt != null && System.currentTimeMillis() - savedAt < maxInactiveInterval * 500L;
+    }
+
+    /**
+     * Returns the new version of the session, {@code 0} if versions are not tracked, {@link #QUEUED} if the save was
+     * queued, {@link JedisClient#CONFLICT} if the save conflicted or {@link JedisClient#FENCED} if it was fenced off.
+     * Conditional and fenced saves are never queued, since a conflict must be resolved before the request completes
+     * and the fence must be checked while the lock is held.  A save that the queue turns away is written
+     * synchronously once any in-flight write of the same session has completed, so that the older state cannot land
+     * last.
+     */
+    private long persist(Session session, SessionFingerprint fingerprint, String key, String sessionsKey,
+                         byte[] serialized, long expectedVersion) throws UnsupportedEncodingException {
+        int timeout = session.getMaxInactiveInterval();
+        WriteBehindQueue queue = this.writeBehindQueue;
+        RedisSessionLock lock = heldLock(session);
+
+        if (queue != null && expectedVersion == JedisClient.ANY_VERSION && lock == null) {
+            if (queue.offer(new WriteBehindQueue.PendingSave(key, sessionsKey, serialized, timeout, session,
+                    fingerprint))) {
+                return QUEUED;
+            }
+            queue.cancel(key);
+        }
+
+        return this.jedisClient.set(key, sessionsKey, serialized, timeout, expectedVersion, lock);
+    }
+
+    /**
+     * Loads a session through the near cache.  The version is read before the session, so that a concurrent save can
+     * only cause a newer session to be cached or loaded under an older version, which is detected on the next load or
+     * save.
+     */
+    private Session loadCached(NearCache sessionCache, String id, String key)
+            throws ClassNotFoundException, IOException {
+        InvalidationSubscriber invalidationSubscriber = this.invalidationSubscriber;
+        if (invalidationSubscriber != null && invalidationSubscriber.isSubscribed()) {
+            NearCache.Entry entry = sessionCache.get(key);
+            if (entry != null) {
+                this.logger.debug("Session {} loaded from near cache without version check", key);
+                return loaded(copy(entry.session), entry.version);
+            }
+        }
+
+        Long version = this.jedisClient.getVersion(key);
+
+        NearCache.Entry entry = sessionCache.get(key);
+        if (entry != null && version != null && entry.version == version) {
+            this.logger.debug("Session {} loaded from near cache", key);
+            return loaded(copy(entry.session), entry.version);
+        }
+
+        Session session = fetch(key, read(key, false));
+        if (session == null) {
+            sessionCache.remove(key);
+            return this.configuration.manager.createSession(id);
+        }
+
+        if (version != null) {
+            sessionCache.put(key, version, snapshot(session));
+        } else {
+            sessionCache.remove(key);
+        }
+        return loaded(session, version);
+    }
+
+    /**
+     * Saves that share an index and a timeout are written with a single {@link JedisClient#setAll} call.  The sessions
+     * of saves that were written are recorded as saved.
+     */
+    private void persistAll(List<WriteBehindQueue.PendingSave> saves) {
+        Map<String, Map<Integer, Map<String, byte[]>>> groups = new LinkedHashMap<>();
+        Map<String, WriteBehindQueue.PendingSave> byKey = new HashMap<>();
+
+        for (WriteBehindQueue.PendingSave save : saves) {
+            byKey.put(save.key, save);
+
+            Map<Integer, Map<String, byte[]>> byTimeout = groups.get(save.sessionsKey);
+            if (byTimeout == null) {
+                byTimeout = new LinkedHashMap<>();
+                groups.put(save.sessionsKey, byTimeout);
+            }
+
+            Map<String, byte[]> sessions = byTimeout.get(save.timeout);
+            if (sessions == null) {
+                sessions = new LinkedHashMap<>();
+                byTimeout.put(save.timeout, sessions);
+            }
+
+            sessions.put(save.key, save.session);
+        }
+
+        for (Map.Entry<String, Map<Integer, Map<String, byte[]>>> byTimeout : groups.entrySet()) {
+            for (Map.Entry<Integer, Map<String, byte[]>> sessions : byTimeout.getValue().entrySet()) {
+                try {
+                    this.jedisClient.setAll(sessions.getValue(), byTimeout.getKey(), sessions.getKey());
+                    for (String key : sessions.getValue().keySet()) {
+                        WriteBehindQueue.PendingSave save = byKey.get(key);
+                        if (save.source != null) {
+                            written(save.source, save.fingerprint);
+                        }
+                        publishInvalidation(InvalidationSubscriber.message(key, 0));
+                    }
+                } catch (JedisConnectionException e) {
+                    this.logger.error("Unable to persist sessions {}", sessions.getValue().keySet(), e);
+                } catch (UnsupportedEncodingException e) {
+                    this.logger.error("Unable to save sessions {}", sessions.getValue().keySet(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes an invalidation to other nodes, if invalidations are enabled.  A lost invalidation only leaves other
+     * nodes with a stale cache until their subscription is re-established, so failures are logged rather than thrown.
+     */
+    private void publishInvalidation(String message) {
+        if (this.invalidationSubscriber != null) {
+            try {
+                this.jedisClient.publish(this.configuration.keyLayout.getInvalidationChannel(), message);
+            } catch (JedisConnectionException e) {
+                this.logger.error("Unable to publish invalidation {}", message, e);
+            }
+        }
+    }
+
+    private SessionSerializer createSerializer(String serializer) {
+        if ("jdk".equalsIgnoreCase(serializer)) {
+            return new JdkSessionSerializer();
+        }
+        if ("compact".equalsIgnoreCase(serializer)) {
+            return new CompactSessionSerializer();
+        }
+
+        try {
+            return Class.forName(serializer, true, RedisStore.class.getClassLoader())
+                    .asSubclass(SessionSerializer.class).newInstance();
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException(String.format("Unknown session serializer %s", serializer), e);
+        } catch (ClassCastException e) {
+            throw new IllegalArgumentException(String.format("%s is not a SessionSerializer", serializer), e);
+        } catch (InstantiationException e) {
+            throw new IllegalArgumentException(String.format("Unable to create session serializer %s", serializer), e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(String.format("Unable to create session serializer %s", serializer), e);
+        }
     }
 
     private Session logAndCreateEmptySession(String id, Exception e) {
         RedisStore.this.logger.error("Unable to load session {}. Empty session created.", id, e);
-        return RedisStore.this.manager.createSession(id);
+        return RedisStore.this.configuration.manager.createSession(id);
     }
 
     private int parseDatabase(URI uri) {
@@ -653,4 +2439,17 @@ public final class RedisStore extends AbstractLifecycle implements RedisStoreMan
 
         return userInfo.split(":", 2)[1];
     }
+
+    /**
+     * A change to a property of the configuration
+     *
+     * @param <T> the type the property is reported to listeners as
+     */
+    private abstract static class ConfigurationChange<T> {
+
+        abstract T get(StoreConfiguration configuration);
+
+        abstract void set(StoreConfiguration configuration);
+
+    }
 }
@@ -24,6 +24,27 @@ import javax.management.MXBean;
 @MXBean
 public interface RedisStoreManagement {
 
+    /**
+     * Returns the codec that serialized sessions are compressed with
+     *
+     * @return the codec that serialized sessions are compressed with
+     */
+    String getCompression();
+
+    /**
+     * Returns the size from which serialized sessions are compressed
+     *
+     * @return the size, in bytes, from which serialized sessions are compressed
+     */
+    int getCompressionThreshold();
+
+    /**
+     * Returns how long a replaced Redis client is kept open for requests that are still using it, in milliseconds
+     *
+     * @return how long a replaced client is kept open
+     */
+    long getClientDrainPeriod();
+
     /**
      * Returns the Redis connection pool size;
      *
@@ -39,6 +60,27 @@ public interface RedisStoreManagement {
      */
     int getDatabase();
 
+    /**
+     * Returns whether sessions that have not changed since they were last persisted are skipped when saving
+     *
+     * @return whether unchanged sessions are skipped when saving
+     */
+    boolean getDirtyTracking();
+
+    /**
+     * Returns whether the sessions index is a sorted set scored by expiry time
+     *
+     * @return whether the sessions index is an expiring sorted set
+     */
+    boolean getExpiringIndex();
+
+    /**
+     * Returns the serializer that sessions are written and read with
+     *
+     * @return the session serializer
+     */
+    String getSerializer();
+
     /**
      * Returns the Redis sessions key prefix
      * Allows to configure a prefix that's added to the session id when a session is stored in Redis.
@@ -48,6 +90,139 @@ public interface RedisStoreManagement {
      */
     String getSessionKeyPrefix();
     
+    /**
+     * Returns the number of hash-tagged shards the sessions index is split into
+     *
+     * @return the number of index shards
+     */
+    int getIndexShards();
+
+    /**
+     * Returns how often expired sessions are pruned from an expiring sessions index, in seconds
+     *
+     * @return how often expired sessions are pruned
+     */
+    int getIndexPruneInterval();
+
+    /**
+     * Returns whether sessions are stored as Redis hashes with a field per attribute
+     *
+     * @return whether sessions are stored as hashes
+     */
+    boolean getHashStorage();
+
+    /**
+     * Returns whether the attributes of sessions stored as hashes are only deserialized when they are first read
+     *
+     * @return whether attributes are deserialized lazily
+     */
+    boolean getLazyAttributes();
+
+    /**
+     * Returns whether sessions are stored as a base snapshot followed by a log of patches
+     *
+     * @return whether sessions are stored as deltas
+     */
+    boolean getDeltaStorage();
+
+    /**
+     * Returns the number of patches a session stored as a delta may accumulate before it is compacted
+     *
+     * @return the maximum number of patches
+     */
+    int getDeltaMaxPatches();
+
+    /**
+     * Returns the total size of the patches a session stored as a delta may accumulate before it is compacted
+     *
+     * @return the maximum size of the patches, in bytes
+     */
+    int getDeltaMaxPatchBytes();
+
+    /**
+     * Returns whether sessions are only saved if no other node saved them since they were loaded
+     *
+     * @return whether saves are conditional on the version of the session
+     */
+    boolean getOptimisticConcurrency();
+
+    /**
+     * Returns what happens when a session cannot be saved because another node saved it since it was loaded
+     *
+     * @return the conflict policy
+     */
+    String getConflictPolicy();
+
+    /**
+     * Returns the number of times a session is merged and saved again before a conflicting save is given up
+     *
+     * @return the maximum number of merges per save
+     */
+    int getConflictRetries();
+
+    /**
+     * Returns whether requested sessions are locked while a request is processed
+     *
+     * @return whether requested sessions are locked
+     */
+    boolean getSessionLocking();
+
+    /**
+     * Returns how long a session lock is held before it expires, if it is not released
+     *
+     * @return the lease of a session lock, in milliseconds
+     */
+    int getSessionLockLease();
+
+    /**
+     * Returns how long a request waits for the lock of its session before it is rejected
+     *
+     * @return the maximum time to wait for a session lock, in milliseconds
+     */
+    int getSessionLockWait();
+
+    /**
+     * Returns the number of session locks acquired
+     *
+     * @return the number of session locks acquired
+     */
+    long getSessionLockAcquisitions();
+
+    /**
+     * Returns the number of requests that timed out waiting for the lock of their session
+     *
+     * @return the number of session lock timeouts
+     */
+    long getSessionLockTimeouts();
+
+    /**
+     * Returns the average time acquired session locks were waited for
+     *
+     * @return the average wait time, in milliseconds
+     */
+    double getSessionLockAverageWaitTime();
+
+    /**
+     * Returns the longest time an acquired session lock was waited for
+     *
+     * @return the maximum wait time, in milliseconds
+     */
+    long getSessionLockMaxWaitTime();
+
+    /**
+     * Returns the average time session locks were held for
+     *
+     * @return the average hold time, in milliseconds
+     */
+    double getSessionLockAverageHoldTime();
+
+    /**
+     * Returns the longest time a session lock was held for
+     *
+     * @return the maximum hold time, in milliseconds
+     */
+    long getSessionLockMaxHoldTime();
+
     /**
      * Returns the Redis connection host
      * In case of cluster must follow this pattern:
@@ -60,6 +235,42 @@ public interface RedisStoreManagement {
      */
     String getHost();
 
+    /**
+     * Returns whether recently saved and loaded sessions are cached locally
+     *
+     * @return whether sessions are cached locally
+     */
+    boolean getNearCache();
+
+    /**
+     * Returns whether saves are published to other nodes, so that cached sessions can be used without checking their
+     * version
+     *
+     * @return whether saves are published to other nodes
+     */
+    boolean getNearCacheInvalidation();
+
+    /**
+     * Returns the maximum number of sessions to cache locally
+     *
+     * @return the maximum number of sessions to cache locally
+     */
+    int getNearCacheSize();
+
+    /**
+     * Returns the maximum time (in seconds) to cache a session locally
+     *
+     * @return the maximum time to cache a session locally
+     */
+    int getNearCacheTtl();
+
+    /**
+     * Returns whether serialized sessions are wrapped in a versioned envelope with a checksum
+     *
+     * @return whether serialized sessions are wrapped in an envelope
+     */
+    boolean getPayloadEnvelope();
+
     /**
      * Returns the Redis connection password
      *
@@ -82,6 +293,13 @@ public interface RedisStoreManagement {
      */
     int getTimeout();
 
+    /**
+     * Returns whether the expiry of sessions that are skipped by dirty tracking is still refreshed in Redis
+     *
+     * @return whether the expiry of unchanged sessions is refreshed
+     */
+    boolean getTouchUnchanged();
+
     /**
      * Returns the Redis connection uri
      *
@@ -94,4 +312,46 @@ public interface RedisStoreManagement {
      * @return redis cluster indication
      */
     boolean getCluster();
+
+    /**
+     * Returns whether sessions are written to Redis asynchronously
+     *
+     * @return whether sessions are written asynchronously
+     */
+    boolean getWriteBehind();
+
+    /**
+     * Returns how long a write-behind flusher waits for a full batch of sessions to accumulate, in milliseconds
+     *
+     * @return how long to wait for a full batch
+     */
+    long getWriteBehindBatchDelay();
+
+    /**
+     * Returns the maximum number of sessions written to Redis in a single round trip
+     *
+     * @return the maximum number of sessions written in a single round trip
+     */
+    int getWriteBehindBatchSize();
+
+    /**
+     * Returns what happens when a session is saved while the write-behind queue is full
+     *
+     * @return the write-behind overflow policy
+     */
+    String getWriteBehindOverflowPolicy();
+
+    /**
+     * Returns the maximum number of sessions waiting to be written asynchronously
+     *
+     * @return the maximum number of sessions waiting to be written
+     */
+    int getWriteBehindQueueSize();
+
+    /**
+     * Returns the number of threads writing sessions asynchronously
+     *
+     * @return the number of threads writing sessions
+     */
+    int getWriteBehindThreads();
 }
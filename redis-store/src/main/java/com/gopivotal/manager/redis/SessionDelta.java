@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import redis.clients.jedis.Protocol;
+import redis.clients.util.SafeEncoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Utilities for sessions stored as deltas.  A session delta is a Redis list whose first entry is a base snapshot of the
+ * session and whose remaining entries are patches appended by later saves.  Each entry holds the session's metadata,
+ * the attributes that were set and the names of the attributes that were removed, so a base is simply an entry that
+ * sets every attribute.
+ */
+final class SessionDelta {
+
+    private static final int VERSION = 1;
+
+    private final byte[] metadata;
+
+    private final Map<String, byte[]> attributes;
+
+    private final int patches;
+
+    private final long patchBytes;
+
+    private SessionDelta(byte[] metadata, Map<String, byte[]> attributes, int patches, long patchBytes) {
+        this.metadata = metadata;
+        this.attributes = attributes;
+        this.patches = patches;
+        this.patchBytes = patchBytes;
+    }
+
+    /**
+     * Returns the metadata of the latest entry
+     *
+     * @return the metadata of the latest entry
+     */
+    byte[] getMetadata() {
+        return this.metadata;
+    }
+
+    /**
+     * Returns the attributes of the session after all entries have been applied
+     *
+     * @return the serialized attribute values, keyed by attribute name
+     */
+    Map<String, byte[]> getAttributes() {
+        return this.attributes;
+    }
+
+    /**
+     * Returns the number of patches that follow the base
+     *
+     * @return the number of patches
+     */
+    int getPatches() {
+        return this.patches;
+    }
+
+    /**
+     * Returns the total size of the patches that follow the base
+     *
+     * @return the total size of the patches, in bytes
+     */
+    long getPatchBytes() {
+        return this.patchBytes;
+    }
+
+    /**
+     * Merges the entries of a session delta.  Only the final value of each attribute is kept, so that no attribute is
+     * deserialized more than once however many patches have replaced it.
+     *
+     * @param entries the entries of the session delta, base first
+     * @return the merged session delta, or {@code null} if there are no entries
+     * @throws IOException if an entry is malformed
+     */
+    static SessionDelta merge(List<byte[]> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return null;
+        }
+
+        byte[] metadata = null;
+        Map<String, byte[]> attributes = new HashMap<>();
+        long patchBytes = 0;
+
+        for (int i = 0; i < entries.size(); i++) {
+            byte[] entry = entries.get(i);
+            if (i > 0) {
+                patchBytes += entry.length;
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+            if (in.readUnsignedByte() != VERSION) {
+                throw new IOException("Unsupported session delta entry version");
+            }
+
+            metadata = new byte[in.readInt()];
+            in.readFully(metadata);
+
+            for (int removed = in.readInt(); removed > 0; removed--) {
+                attributes.remove(in.readUTF());
+            }
+
+            for (int set = in.readInt(); set > 0; set--) {
+                String name = in.readUTF();
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                attributes.put(name, value);
+            }
+        }
+
+        return new SessionDelta(metadata, attributes, entries.size() - 1, patchBytes);
+    }
+
+    /**
+     * Encodes an entry of a session delta
+     *
+     * @param metadata          the metadata of the session
+     * @param attributes        the serialized values of the attributes that were set
+     * @param removedAttributes the names of the attributes that were removed
+     * @return the encoded entry
+     * @throws IOException
+     */
+    static byte[] encode(byte[] metadata, Map<String, byte[]> attributes, Set<String> removedAttributes)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeByte(VERSION);
+        out.writeInt(metadata.length);
+        out.write(metadata);
+
+        out.writeInt(removedAttributes.size());
+        for (String name : removedAttributes) {
+            out.writeUTF(name);
+        }
+
+        out.writeInt(attributes.size());
+        for (Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+            out.writeUTF(attribute.getKey());
+            out.writeInt(attribute.getValue().length);
+            out.write(attribute.getValue());
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encodes a base entry, which sets every attribute of the session
+     *
+     * @param metadata   the metadata of the session
+     * @param attributes the serialized values of all attributes of the session
+     * @return the encoded entry
+     * @throws IOException
+     */
+    static byte[] encode(byte[] metadata, Map<String, byte[]> attributes) throws IOException {
+        return encode(metadata, attributes, Collections.<String>emptySet());
+    }
+
+    /**
+     * Returns the arguments of {@link RedisScript#SET_DELTA}
+     *
+     * @param entry         the entry to write
+     * @param base          whether the entry is a base that replaces the session delta
+     * @param timeout       the timeout of the session, in seconds
+     * @param expiringIndex whether the sessions index is an expiring index
+     * @return the arguments of the script
+     */
+    static List<byte[]> arguments(byte[] entry, boolean base, int timeout, boolean expiringIndex) {
+        return Arrays.asList(
+                Protocol.toByteArray(timeout),
+                Protocol.toByteArray(expiringIndex ? ExpiringIndex.expiresAt(timeout) : 0),
+                SafeEncoder.encode(expiringIndex ? "ZADD" : "SADD"),
+                Protocol.toByteArray(base ? 1 : 0),
+                entry);
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import redis.clients.jedis.Protocol;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Utilities for sessions stored as Redis hashes.  A session hash holds the session's metadata in a {@code metadata}
+ * field and each attribute in an {@code attribute:<name>} field, so that attributes can be updated independently.
+ */
+final class SessionHash {
+
+    static final String METADATA_FIELD = "metadata";
+
+    private static final String ATTRIBUTE_PREFIX = "attribute:";
+
+    private SessionHash() {
+    }
+
+    /**
+     * Returns the field an attribute is stored in
+     *
+     * @param name the name of the attribute
+     * @return the field the attribute is stored in
+     */
+    static String getAttributeField(String name) {
+        return ATTRIBUTE_PREFIX + name;
+    }
+
+    /**
+     * Returns the attributes held by the fields of a session hash
+     *
+     * @param fields the fields of the session hash
+     * @return the serialized attribute values, keyed by attribute name
+     */
+    static Map<String, byte[]> getAttributes(Map<String, byte[]> fields) {
+        Map<String, byte[]> attributes = new HashMap<>();
+
+        for (Map.Entry<String, byte[]> field : fields.entrySet()) {
+            if (field.getKey().startsWith(ATTRIBUTE_PREFIX)) {
+                attributes.put(field.getKey().substring(ATTRIBUTE_PREFIX.length()), field.getValue());
+            }
+        }
+
+        return attributes;
+    }
+
+    /**
+     * Decodes the fields returned by {@code HGETALL}
+     *
+     * @param fields the binary fields
+     * @return the fields, keyed by name
+     */
+    static Map<String, byte[]> decode(Map<byte[], byte[]> fields) {
+        Map<String, byte[]> decoded = new HashMap<>();
+
+        for (Map.Entry<byte[], byte[]> field : fields.entrySet()) {
+            decoded.put(SafeEncoder.encode(field.getKey()), field.getValue());
+        }
+
+        return decoded;
+    }
+
+    /**
+     * Returns the arguments of {@link RedisScript#SET_HASH}
+     *
+     * @param fields        the fields to set
+     * @param removedFields the fields to delete
+     * @param replace       whether to delete the hash before updating it
+     * @param timeout       the timeout of the session, in seconds
+     * @param expiringIndex whether the sessions index is an expiring index
+     * @return the arguments of the script
+     */
+    static List<byte[]> arguments(Map<String, byte[]> fields, Set<String> removedFields, boolean replace, int timeout,
+                                  boolean expiringIndex) {
+        List<byte[]> arguments = new ArrayList<>(5 + fields.size() * 2 + removedFields.size());
+
+        arguments.add(Protocol.toByteArray(timeout));
+        arguments.add(Protocol.toByteArray(expiringIndex ? ExpiringIndex.expiresAt(timeout) : 0));
+        arguments.add(SafeEncoder.encode(expiringIndex ? "ZADD" : "SADD"));
+        arguments.add(Protocol.toByteArray(replace ? 1 : 0));
+        arguments.add(Protocol.toByteArray(fields.size()));
+
+        for (Map.Entry<String, byte[]> field : fields.entrySet()) {
+            arguments.add(SafeEncoder.encode(field.getKey()));
+            arguments.add(field.getValue());
+        }
+        for (String field : removedFields) {
+            arguments.add(SafeEncoder.encode(field));
+        }
+
+        return arguments;
+    }
+
+    /**
+     * Encodes fields for {@code HMSET}
+     *
+     * @param fields the fields
+     * @return the binary fields
+     */
+    static Map<byte[], byte[]> encode(Map<String, byte[]> fields) {
+        Map<byte[], byte[]> encoded = new HashMap<>();
+
+        for (Map.Entry<String, byte[]> field : fields.entrySet()) {
+            encoded.put(SafeEncoder.encode(field.getKey()), field.getValue());
+        }
+
+        return encoded;
+    }
+
+    /**
+     * Encodes field names for {@code HDEL}
+     *
+     * @param fields the field names
+     * @return the binary field names
+     */
+    static byte[][] encode(Set<String> fields) {
+        byte[][] encoded = new byte[fields.size()][];
+
+        int i = 0;
+        for (String field : fields) {
+            encoded[i++] = SafeEncoder.encode(field);
+        }
+
+        return encoded;
+    }
+
+}
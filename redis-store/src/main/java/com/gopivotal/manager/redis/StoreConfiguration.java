@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import com.gopivotal.manager.JdkSessionSerializer;
+import com.gopivotal.manager.SessionCompression;
+import com.gopivotal.manager.SessionSerializationUtils;
+import com.gopivotal.manager.SessionSerializer;
+import org.apache.catalina.Manager;
+import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
+import redis.clients.jedis.Protocol;
+
+import static redis.clients.jedis.Protocol.DEFAULT_TIMEOUT;
+
+/**
+ * A snapshot of the configuration of a {@link RedisStore}.  The fields are mutable so that a {@link #copy()} of the
+ * current snapshot can be changed before the store publishes it with a single volatile write.  A snapshot must not be
+ * changed once it has been published, so that the request path reads a consistent configuration without taking a
+ * lock.
+ */
+final class StoreConfiguration implements Cloneable {
+
+    Manager manager;
+
+    SessionCompression compression = SessionCompression.NONE;
+
+    int compressionThreshold = 1024;
+
+    long clientDrainPeriod = 30000;
+
+    int connectionPoolSize = GenericKeyedObjectPoolConfig.DEFAULT_MAX_TOTAL;
+
+    int database = Protocol.DEFAULT_DATABASE;
+
+    boolean dirtyTracking = false;
+
+    boolean expiringIndex = false;
+
+    int indexPruneInterval = 60;
+
+    String serializer = "jdk";
+
+    SessionSerializer sessionSerializer = new JdkSessionSerializer();
+
+    String sessionKeyPrefix = "sessions";
+
+    int indexShards = 0;
+
+    KeyLayout keyLayout = new KeyLayout(this.sessionKeyPrefix, this.indexShards);
+
+    boolean hashStorage = false;
+
+    boolean lazyAttributes = false;
+
+    boolean deltaStorage = false;
+
+    int deltaMaxPatches = 16;
+
+    int deltaMaxPatchBytes = 65536;
+
+    boolean optimisticConcurrency = false;
+
+    ConflictPolicy conflictPolicy = ConflictPolicy.MERGE;
+
+    int conflictRetries = 3;
+
+    boolean sessionLocking = false;
+
+    int sessionLockLease = 10000;
+
+    int sessionLockWait = 2000;
+
+    String host = "localhost";
+
+    boolean nearCache = false;
+
+    boolean nearCacheInvalidation = false;
+
+    int nearCacheSize = 1000;
+
+    int nearCacheTtl = 60;
+
+    boolean cluster = false;
+
+    String password;
+
+    boolean payloadEnvelope = false;
+
+    int port = Protocol.DEFAULT_PORT;
+
+    int timeout = DEFAULT_TIMEOUT;
+
+    boolean touchUnchanged = false;
+
+    boolean writeBehind = false;
+
+    long writeBehindBatchDelay = 0;
+
+    int writeBehindBatchSize = 100;
+
+    int writeBehindQueueSize = 10000;
+
+    int writeBehindThreads = 2;
+
+    WriteBehindQueue.OverflowPolicy writeBehindOverflowPolicy = WriteBehindQueue.OverflowPolicy.SYNCHRONOUS;
+
+    SessionSerializationUtils sessionSerializationUtils;
+
+    /**
+     * Returns a copy of this snapshot that can be changed until it is published
+     *
+     * @return a copy of this snapshot
+     */
+    StoreConfiguration copy() {
+        try {
+            return (StoreConfiguration) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Recreates the serialization utilities after the manager or a serialization setting changed
+     */
+    void updateSessionSerializationUtils() {
+        if (this.manager != null) {
+            this.sessionSerializationUtils = new SessionSerializationUtils(this.manager, this.sessionSerializer,
+                    this.compression, this.compressionThreshold, this.payloadEnvelope);
+        }
+    }
+
+}
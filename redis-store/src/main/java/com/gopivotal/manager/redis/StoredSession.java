@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import redis.clients.util.SafeEncoder;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A session as it was read from Redis, in the form it is stored in, along with its version if the version was read in
+ * the same round trip.
+ */
+final class StoredSession {
+
+    /**
+     * Read in place of a session that is stored as another type than it was read as
+     */
+    static final Long OTHER_TYPE = -1L;
+
+    private final Object session;
+
+    private final boolean versionRead;
+
+    private final Long version;
+
+    /**
+     * Creates a new instance
+     *
+     * @param session     the session as read by {@link RedisSessionLock#READ_VALUE}, {@link RedisSessionLock#READ_HASH}
+     *                    or {@link RedisSessionLock#READ_DELTA}, or {@code -1} if it is stored as another type
+     * @param versionRead whether the version was read along with the session
+     * @param version     the version of the session, or {@code null} if there is no version key
+     */
+    StoredSession(Object session, boolean versionRead, Long version) {
+        this.session = session;
+        this.versionRead = versionRead;
+        this.version = version;
+    }
+
+    /**
+     * Parses a session and, if present, its version from a script reply
+     *
+     * @param values the reply of the script
+     * @param index  the index of the session in the reply, which is followed by the version if it was read
+     * @return the session
+     */
+    static StoredSession parse(List<?> values, int index) {
+        Object session = values.size() > index ? values.get(index) : null;
+        if (values.size() <= index + 1) {
+            return new StoredSession(session, false, null);
+        }
+
+        byte[] version = (byte[]) values.get(index + 1);
+        return new StoredSession(session, true, version == null ? null : Long.valueOf(SafeEncoder.encode(version)));
+    }
+
+    /**
+     * Returns this session along with a version that was read separately
+     *
+     * @param version the version of the session, or {@code null} if there is no version key
+     * @return the session with its version
+     */
+    StoredSession withVersion(Long version) {
+        return new StoredSession(this.session, true, version);
+    }
+
+    /**
+     * Returns whether the session is stored as another type than it was read as, and was therefore not read
+     *
+     * @return {@code true} if the session is stored as another type, otherwise {@code false}
+     */
+    boolean isOtherType() {
+        return OTHER_TYPE.equals(this.session);
+    }
+
+    /**
+     * Returns whether the version of the session was read along with it
+     *
+     * @return {@code true} if the version was read, otherwise {@code false}
+     */
+    boolean isVersionRead() {
+        return this.versionRead;
+    }
+
+    /**
+     * Returns the version of the session, if it was read along with it
+     *
+     * @return the version of the session, or {@code null} if there is no version key or it was not read
+     */
+    Long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Returns the session read with {@link RedisSessionLock#READ_VALUE}
+     *
+     * @return the serialized session, or {@code null} if there is no such session
+     */
+    byte[] getValue() {
+        return this.session instanceof byte[] ? (byte[]) this.session : null;
+    }
+
+    /**
+     * Returns the session read with {@link RedisSessionLock#READ_HASH}
+     *
+     * @return the fields of the session hash, keyed by name
+     */
+    @SuppressWarnings("unchecked")
+    Map<String, byte[]> getHash() {
+        if (this.session instanceof Map) {
+            return (Map<String, byte[]>) this.session;
+        }
+
+        Map<String, byte[]> fields = new HashMap<>();
+
+        List<byte[]> values = getList();
+        for (int i = 0; i + 1 < values.size(); i += 2) {
+            fields.put(SafeEncoder.encode(values.get(i)), values.get(i + 1));
+        }
+
+        return fields;
+    }
+
+    /**
+     * Returns the session read with {@link RedisSessionLock#READ_DELTA}
+     *
+     * @return the entries of the session delta
+     */
+    List<byte[]> getDelta() {
+        return getList();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<byte[]> getList() {
+        return this.session instanceof List ? (List<byte[]>) this.session : Collections.<byte[]>emptyList();
+    }
+
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import com.gopivotal.manager.SessionFingerprint;
+import org.apache.catalina.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of pending session saves that are written to Redis by a small pool of flusher threads.  Repeated
+ * saves of a session that has not been flushed yet are coalesced so that only its latest state is written, and a
+ * session is never written by more than one flusher at a time.  Flushers take saves in batches, so that saves from
+ * concurrent requests can be written in a single round trip.
+ */
+final class WriteBehindQueue {
+
+    private final Logger logger = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    private final int capacity;
+
+    private final int batchSize;
+
+    private final long batchDelay;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final Writer writer;
+
+    private final ExecutorService executor;
+
+    private final Lock lock = new ReentrantLock();
+
+    private final Condition available = this.lock.newCondition();
+
+    private final Condition space = this.lock.newCondition();
+
+    private final Condition completed = this.lock.newCondition();
+
+    private final LinkedHashMap<String, PendingSave> pending = new LinkedHashMap<>();
+
+    private final Set<String> inFlight = new HashSet<>();
+
+    private int availableCount = 0;
+
+    private boolean closed = false;
+
+    WriteBehindQueue(int capacity, int threads, int batchSize, long batchDelay, OverflowPolicy overflowPolicy,
+                     Writer writer) {
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.batchDelay = batchDelay;
+        this.overflowPolicy = overflowPolicy;
+        this.writer = writer;
+        this.executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("redis-store-write-behind"));
+
+        for (int i = 0; i < threads; i++) {
+            this.executor.execute(new Flusher());
+        }
+    }
+
+    /**
+     * Queues a save.  If a save for the same key is already queued, it is replaced.
+     *
+     * @param save the save to queue
+     * @return {@code true} if the save was queued, {@code false} if the caller must write it synchronously
+     */
+    boolean offer(PendingSave save) {
+        this.lock.lock();
+
+        try {
+            if (this.closed) {
+                return false;
+            }
+
+            if (this.pending.containsKey(save.key)) {
+                this.pending.put(save.key, save);
+                return true;
+            }
+
+            while (this.pending.size() >= this.capacity) {
+                switch (this.overflowPolicy) {
+                    case BLOCK:
+                        this.space.await();
+                        if (this.closed) {
+                            return false;
+                        }
+                        if (this.pending.containsKey(save.key)) {
+                            this.pending.put(save.key, save);
+                            return true;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        Iterator<PendingSave> oldest = this.pending.values().iterator();
+                        String key = oldest.next().key;
+                        this.logger.warn("Write-behind queue full, dropping save of session {}", key);
+                        oldest.remove();
+                        removed(key);
+                        break;
+                    default:
+                        return false;
+                }
+            }
+
+            this.pending.put(save.key, save);
+            if (!this.inFlight.contains(save.key)) {
+                this.availableCount++;
+                this.available.signal();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Discards any queued save for a key and waits for an in-flight save of the key to complete
+     *
+     * @param key the key
+     */
+    void cancel(String key) {
+        this.lock.lock();
+
+        try {
+            if (this.pending.remove(key) != null) {
+                removed(key);
+                this.space.signal();
+            }
+
+            while (this.inFlight.contains(key)) {
+                this.completed.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Discards all queued saves and waits for in-flight saves to complete
+     */
+    void cancelAll() {
+        this.lock.lock();
+
+        try {
+            this.pending.clear();
+            this.availableCount = 0;
+            this.space.signalAll();
+
+            while (!this.inFlight.isEmpty()) {
+                this.completed.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting saves and waits for all queued saves to be written
+     *
+     * @param timeout the maximum time to wait, in milliseconds
+     */
+    void close(long timeout) {
+        this.lock.lock();
+
+        try {
+            this.closed = true;
+            this.available.signalAll();
+            this.space.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+
+        this.executor.shutdown();
+
+        try {
+            if (!this.executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                this.logger.warn("Timed out flushing write-behind queue, {} saves discarded", size());
+                this.executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the number of queued saves
+     *
+     * @return the number of queued saves
+     */
+    int size() {
+        this.lock.lock();
+
+        try {
+            return this.pending.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next batch of saves to write.  Once a save is available, waits up to the batch delay for a full batch
+     * to accumulate.
+     */
+    private List<PendingSave> take() throws InterruptedException {
+        this.lock.lock();
+
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(this.batchDelay);
+
+            while (true) {
+                if (this.availableCount > 0 &&
+                        (this.availableCount >= this.batchSize || remaining <= 0 || this.closed)) {
+                    return drain();
+                }
+
+                if (this.availableCount == 0) {
+                    if (this.closed && this.pending.isEmpty()) {
+                        return null;
+                    }
+                    this.available.await();
+                } else {
+                    remaining = this.available.awaitNanos(remaining);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Takes up to a batch of saves whose keys are not in flight.  Saves that are skipped because their key is in flight
+     * are bounded by the number of in-flight saves, so taking a batch does not scan the whole queue.
+     */
+    private List<PendingSave> drain() {
+        List<PendingSave> batch = new ArrayList<>();
+
+        for (Iterator<PendingSave> i = this.pending.values().iterator(); i.hasNext() && batch.size() < this.batchSize; ) {
+            PendingSave save = i.next();
+            if (!this.inFlight.contains(save.key)) {
+                i.remove();
+                this.inFlight.add(save.key);
+                batch.add(save);
+            }
+        }
+
+        this.availableCount -= batch.size();
+        if (this.availableCount > 0) {
+            this.available.signal();
+        }
+        this.space.signalAll();
+        return batch;
+    }
+
+    private void complete(List<PendingSave> batch) {
+        this.lock.lock();
+
+        try {
+            for (PendingSave save : batch) {
+                this.inFlight.remove(save.key);
+                if (this.pending.containsKey(save.key)) {
+                    this.availableCount++;
+                }
+            }
+
+            if (this.closed) {
+                this.available.signalAll();
+            } else if (this.availableCount > 0) {
+                this.available.signal();
+            }
+            this.completed.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Accounts for a queued save that was removed without being taken
+     */
+    private void removed(String key) {
+        if (!this.inFlight.contains(key)) {
+            this.availableCount--;
+        }
+    }
+
+    /**
+     * What to do when a save is offered to a full queue
+     */
+    enum OverflowPolicy {
+
+        /**
+         * Block the caller until there is room in the queue
+         */
+        BLOCK,
+
+        /**
+         * Discard the oldest queued save to make room
+         */
+        DROP_OLDEST,
+
+        /**
+         * Have the caller write the save synchronously
+         */
+        SYNCHRONOUS
+
+    }
+
+    /**
+     * Writes saves to Redis
+     */
+    interface Writer {
+
+        /**
+         * Write a batch of saves to Redis
+         *
+         * @param saves the saves to write
+         */
+        void write(List<PendingSave> saves);
+
+    }
+
+    /**
+     * A serialized session waiting to be written, along with the session it was serialized from and its fingerprint,
+     * which are recorded as saved once the write is acknowledged
+     */
+    static final class PendingSave {
+
+        final String key;
+
+        final String sessionsKey;
+
+        final byte[] session;
+
+        final int timeout;
+
+        final Session source;
+
+        final SessionFingerprint fingerprint;
+
+        PendingSave(String key, String sessionsKey, byte[] session, int timeout) {
+            this(key, sessionsKey, session, timeout, null, null);
+        }
+
+        PendingSave(String key, String sessionsKey, byte[] session, int timeout, Session source,
+                    SessionFingerprint fingerprint) {
+            this.key = key;
+            this.sessionsKey = sessionsKey;
+            this.session = session;
+            this.timeout = timeout;
+            this.source = source;
+            this.fingerprint = fingerprint;
+        }
+
+    }
+
+    private final class Flusher implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                for (List<PendingSave> batch = take(); batch != null; batch = take()) {
+                    try {
+                        WriteBehindQueue.this.writer.write(batch);
+                    } catch (RuntimeException e) {
+                        WriteBehindQueue.this.logger.error("Unable to write {} sessions", batch.size(), e);
+                    } finally {
+                        complete(batch);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+}
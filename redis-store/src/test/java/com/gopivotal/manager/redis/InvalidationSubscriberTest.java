@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import org.apache.catalina.Session;
+import org.apache.catalina.session.StandardSession;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public final class InvalidationSubscriberTest {
+
+    private static final String CHANNEL = "sessions:invalidations";
+
+    private final JedisClient jedisClient = mock(JedisClient.class);
+
+    private final NearCache nearCache = new NearCache(10, 60000);
+
+    private final Session session = new StandardSession(null);
+
+    private final InvalidationSubscriber subscriber = new InvalidationSubscriber(this.jedisClient, CHANNEL,
+            this.nearCache, 10);
+
+    @Test
+    public void message() {
+        assertEquals("3:{sessions:0}test-id", InvalidationSubscriber.message("{sessions:0}test-id", 3));
+    }
+
+    @Test
+    public void onMessage() {
+        this.nearCache.put("{sessions:0}key-1", 3, this.session);
+        this.nearCache.put("{sessions:0}key-2", 3, this.session);
+        this.nearCache.put("{sessions:0}key-3", 3, this.session);
+
+        this.subscriber.onMessage(InvalidationSubscriber.message("{sessions:0}key-1", 3));
+        this.subscriber.onMessage(InvalidationSubscriber.message("{sessions:0}key-2", 4));
+        this.subscriber.onMessage(InvalidationSubscriber.message("{sessions:0}key-3", 0));
+
+        assertNotNull(this.nearCache.get("{sessions:0}key-1"));
+        assertNull(this.nearCache.get("{sessions:0}key-2"));
+        assertNull(this.nearCache.get("{sessions:0}key-3"));
+    }
+
+    @Test
+    public void onMessageClear() {
+        this.nearCache.put("key", 3, this.session);
+
+        this.subscriber.onMessage(InvalidationSubscriber.CLEAR);
+
+        assertEquals(0, this.nearCache.size());
+    }
+
+    @Test
+    public void onMessageMalformed() {
+        this.nearCache.put("key", 3, this.session);
+
+        this.subscriber.onMessage("malformed");
+
+        assertEquals(1, this.nearCache.size());
+    }
+
+    @Test
+    public void subscribe() throws InterruptedException {
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((JedisPubSub) invocation.getArguments()[0]).onSubscribe(CHANNEL, 1);
+                subscribed.countDown();
+                released.await();
+                return null;
+            }
+
+        }).when(this.jedisClient).subscribe(any(JedisPubSub.class), eq(CHANNEL));
+        this.nearCache.put("key", 3, this.session);
+
+        this.subscriber.start();
+        assertTrue(subscribed.await(1, TimeUnit.SECONDS));
+
+        assertTrue(this.subscriber.isSubscribed());
+        assertEquals(0, this.nearCache.size());
+
+        this.subscriber.close();
+        released.countDown();
+    }
+
+    @Test
+    public void resubscribe() {
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                throw new JedisConnectionException("test-message");
+            }
+
+        }).when(this.jedisClient).subscribe(any(JedisPubSub.class), eq(CHANNEL));
+
+        this.subscriber.start();
+
+        verify(this.jedisClient, timeout(1000).atLeast(2)).subscribe(any(JedisPubSub.class), eq(CHANNEL));
+        assertFalse(this.subscriber.isSubscribed());
+        this.subscriber.close();
+    }
+
+}
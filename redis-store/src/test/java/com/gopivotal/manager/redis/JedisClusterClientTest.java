@@ -17,17 +17,37 @@
 package com.gopivotal.manager.redis;
 
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
 import redis.clients.jedis.Protocol;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.SafeEncoder;
 
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -41,13 +61,25 @@ public final class JedisClusterClientTest {
 
     @Test
     public void getSessions() {
-        Set<String> sessions = new HashSet<String>(Arrays.asList("s1"));
-        when(this.jedisCluster.smembers(SESSIONS_KEY)).thenReturn(sessions);
+        when(this.jedisCluster.sscan(SESSIONS_KEY, "0", IndexScanner.SCAN_PARAMS))
+                .thenReturn(new ScanResult<>("7", Collections.singletonList("s1")));
+        when(this.jedisCluster.sscan(SESSIONS_KEY, "7", IndexScanner.SCAN_PARAMS))
+                .thenReturn(new ScanResult<>("0", Collections.singletonList("s2")));
 
-        Set<String> result = this.jedisPoolTemplate.getSessions(SESSIONS_KEY);
+        Iterator<String> result = this.jedisPoolTemplate.getSessions(SESSIONS_KEY);
 
-        assertEquals(1, result.size());
-        assertTrue(result.contains("s1"));
+        assertEquals(Arrays.asList("s1", "s2"), JedisNodeClientTest.toList(result));
+    }
+
+    @Test
+    public void getSessionsExpiringIndex() {
+        long now = System.currentTimeMillis();
+        when(this.jedisCluster.zscan(SESSIONS_KEY, "0", IndexScanner.SCAN_PARAMS)).thenReturn(new ScanResult<>("0",
+                Arrays.asList(new Tuple("expired", (double) now - 1000), new Tuple("live", (double) now + 60000))));
+
+        Iterator<String> result = new JedisClusterClient(this.jedisCluster, true).getSessions(SESSIONS_KEY);
+
+        assertEquals(Collections.singletonList("live"), JedisNodeClientTest.toList(result));
     }
 
     @Test
@@ -58,6 +90,16 @@ public final class JedisClusterClientTest {
         verify(this.jedisCluster, times(1)).del("key");
     }
 
+    @Test
+    public void delSameSlot() {
+        this.jedisPoolTemplate.del("{sessions}", "{sessions}key");
+
+        ArgumentCaptor<List<byte[]>> keys = JedisNodeClientTest.bytesCaptor();
+        verify(this.jedisCluster, times(1)).evalsha(eq(RedisScript.DEL.getSha1()), keys.capture(),
+                anyListOf(byte[].class));
+        JedisNodeClientTest.assertBytes(keys.getValue(), "{sessions}key", "{sessions}");
+    }
+
     @Test
     public void count() {
         when(this.jedisCluster.scard(SESSIONS_KEY)).thenReturn(10L);
@@ -82,21 +124,385 @@ public final class JedisClusterClientTest {
     @Test
     public void set() throws UnsupportedEncodingException {
         byte[] session = "session".getBytes();
-        this.jedisPoolTemplate.set("key", SESSIONS_KEY, session, timeout);
+        this.jedisPoolTemplate.set("key", SESSIONS_KEY, session, timeout, JedisClient.ANY_VERSION, null);
+
+        verify(this.jedisCluster, times(1)).setex("key".getBytes(Protocol.CHARSET), timeout, session);
+        verify(this.jedisCluster, times(1)).sadd(SESSIONS_KEY, "key");
+    }
+
+    @Test
+    public void getHash() throws UnsupportedEncodingException {
+        when(this.jedisCluster.hgetAll("key".getBytes(Protocol.CHARSET))).thenReturn(
+                Collections.singletonMap("metadata".getBytes(Protocol.CHARSET), "value".getBytes()));
+
+        Map<String, byte[]> result = this.jedisPoolTemplate.getHash("key");
+
+        assertEquals(Collections.singleton("metadata"), result.keySet());
+    }
+
+    @Test
+    public void setFenced() throws UnsupportedEncodingException {
+        when(this.jedisCluster.get("{key}:fence")).thenReturn("9");
+        RedisSessionLock lock = RedisSessionLock.parse("key", Arrays.<Object>asList(7L, null));
+
+        long version = this.jedisPoolTemplate.set("key", SESSIONS_KEY, "session".getBytes(), timeout,
+                JedisClient.ANY_VERSION, lock);
+
+        assertEquals(JedisClient.FENCED, version);
+        verify(this.jedisCluster, never()).setex(any(byte[].class), anyInt(), any(byte[].class));
+    }
+
+    @Test
+    public void setFencedCurrent() throws UnsupportedEncodingException {
+        when(this.jedisCluster.get("{key}:fence")).thenReturn("7");
+        RedisSessionLock lock = RedisSessionLock.parse("key", Arrays.<Object>asList(7L, null));
+
+        this.jedisPoolTemplate.set("key", SESSIONS_KEY, "session".getBytes(), timeout, JedisClient.ANY_VERSION, lock);
+
+        verify(this.jedisCluster, times(1)).expire("{key}:fence", timeout);
+        verify(this.jedisCluster, times(1)).setex("key".getBytes(Protocol.CHARSET), timeout, "session".getBytes());
+    }
+
+    @Test
+    public void setFencedNeverExpires() throws UnsupportedEncodingException {
+        RedisSessionLock lock = RedisSessionLock.parse("key", Arrays.<Object>asList(7L, null));
+
+        this.jedisPoolTemplate.set("key", SESSIONS_KEY, "session".getBytes(), -1, JedisClient.ANY_VERSION, lock);
+
+        verify(this.jedisCluster, times(1)).set("{key}:fence", "7");
+        verify(this.jedisCluster, never()).expire(eq("{key}:fence"), anyInt());
+        verify(this.jedisCluster, times(1)).persist("{key}:fence");
+    }
+
+    @Test
+    public void setHash() throws UnsupportedEncodingException {
+        byte[] key = "key".getBytes(Protocol.CHARSET);
+
+        this.jedisPoolTemplate.setHash("key", SESSIONS_KEY, Collections.singletonMap("metadata", "value".getBytes()),
+                Collections.singleton("attribute:removed"), true, timeout,
+                JedisClient.ANY_VERSION, null);
+
+        verify(this.jedisCluster, times(1)).del(key);
+        verify(this.jedisCluster, times(1)).hmset(eq(key), anyMapOf(byte[].class, byte[].class));
+        verify(this.jedisCluster, times(1)).hdel(eq(key), (byte[]) anyVararg());
+        verify(this.jedisCluster, times(1)).expire(key, timeout);
+        verify(this.jedisCluster, times(1)).sadd(SESSIONS_KEY, "key");
+    }
+
+    @Test
+    public void setHashNeverExpires() throws UnsupportedEncodingException {
+        byte[] key = "key".getBytes(Protocol.CHARSET);
+
+        this.jedisPoolTemplate.setHash("key", SESSIONS_KEY, Collections.singletonMap("metadata", "value".getBytes()),
+                Collections.<String>emptySet(), true, -1, JedisClient.ANY_VERSION, null);
+
+        verify(this.jedisCluster, never()).expire(eq(key), anyInt());
+        verify(this.jedisCluster, times(1)).persist(key);
+    }
+
+    @Test
+    public void setHashUpdateMissing() throws UnsupportedEncodingException {
+        byte[] key = "key".getBytes(Protocol.CHARSET);
+        when(this.jedisCluster.exists(key)).thenReturn(false);
+
+        long version = this.jedisPoolTemplate.setHash("key", SESSIONS_KEY,
+                Collections.singletonMap("metadata", "value".getBytes()), Collections.<String>emptySet(), false,
+                timeout, JedisClient.ANY_VERSION, null);
+
+        assertEquals(-1, version);
+        verify(this.jedisCluster, never()).hmset(eq(key), anyMapOf(byte[].class, byte[].class));
+    }
+
+    @Test
+    public void setHashSameSlot() throws UnsupportedEncodingException {
+        this.jedisPoolTemplate.setHash("{sessions}key", "{sessions}",
+                Collections.singletonMap("metadata", "value".getBytes()), Collections.<String>emptySet(), false,
+                timeout, JedisClient.ANY_VERSION, null);
+
+        verify(this.jedisCluster, times(1)).evalsha(eq(RedisScript.SET_HASH.getSha1()), anyListOf(byte[].class),
+                anyListOf(byte[].class));
+    }
+
+    @Test
+    public void getWithVersionSameSlot() throws UnsupportedEncodingException {
+        when(this.jedisCluster.evalsha(eq(RedisScript.READ.getSha1()), anyListOf(byte[].class),
+                anyListOf(byte[].class))).thenReturn(Arrays.<Object>asList("session".getBytes(), "3".getBytes()));
+
+        StoredSession result = this.jedisPoolTemplate.getWithVersion("{sessions}key", RedisSessionLock.READ_VALUE);
+
+        assertEquals("session", new String(result.getValue()));
+        assertEquals(Long.valueOf(3), result.getVersion());
+    }
+
+    @Test
+    public void getWithVersionDifferentSlots() throws UnsupportedEncodingException {
+        when(this.jedisCluster.get("key:version")).thenReturn("3");
+        when(this.jedisCluster.get("key".getBytes(Protocol.CHARSET))).thenReturn("session".getBytes());
+
+        StoredSession result = this.jedisPoolTemplate.getWithVersion("key", RedisSessionLock.READ_VALUE);
+
+        assertEquals("session", new String(result.getValue()));
+        assertEquals(Long.valueOf(3), result.getVersion());
+        verify(this.jedisCluster, never()).evalsha(any(byte[].class), anyListOf(byte[].class),
+                anyListOf(byte[].class));
+    }
+
+    @Test
+    public void getDelta() throws UnsupportedEncodingException {
+        byte[] entry = "entry".getBytes();
+        when(this.jedisCluster.lrange("key".getBytes(Protocol.CHARSET), 0, -1))
+                .thenReturn(Collections.singletonList(entry));
+
+        List<byte[]> result = this.jedisPoolTemplate.getDelta("key");
+
+        assertEquals(Collections.singletonList(entry), result);
+    }
+
+    @Test
+    public void setDeltaBase() throws UnsupportedEncodingException {
+        byte[] key = "key".getBytes(Protocol.CHARSET);
+        byte[] entry = "entry".getBytes();
+
+        this.jedisPoolTemplate.setDelta("key", SESSIONS_KEY, entry, true, timeout, JedisClient.ANY_VERSION, null);
+
+        verify(this.jedisCluster, times(1)).del(key);
+        verify(this.jedisCluster, times(1)).rpush(key, entry);
+        verify(this.jedisCluster, times(1)).expire(key, timeout);
+        verify(this.jedisCluster, times(1)).sadd(SESSIONS_KEY, "key");
+    }
+
+    @Test
+    public void setDeltaBaseNeverExpires() throws UnsupportedEncodingException {
+        byte[] key = "key".getBytes(Protocol.CHARSET);
+
+        this.jedisPoolTemplate.setDelta("key", SESSIONS_KEY, "entry".getBytes(), true, -1, JedisClient.ANY_VERSION,
+                null);
+
+        verify(this.jedisCluster, never()).expire(eq(key), anyInt());
+        verify(this.jedisCluster, times(1)).persist(key);
+    }
+
+    @Test
+    public void setDeltaPatchMissing() throws UnsupportedEncodingException {
+        byte[] key = "key".getBytes(Protocol.CHARSET);
+        when(this.jedisCluster.exists(key)).thenReturn(false);
+
+        long version = this.jedisPoolTemplate.setDelta("key", SESSIONS_KEY, "entry".getBytes(), false, timeout,
+                JedisClient.ANY_VERSION, null);
+
+        assertEquals(-1, version);
+        verify(this.jedisCluster, never()).rpush(eq(key), (byte[]) anyVararg());
+    }
+
+    @Test
+    public void setDeltaSameSlot() throws UnsupportedEncodingException {
+        this.jedisPoolTemplate.setDelta("{sessions}key", "{sessions}", "entry".getBytes(), false, timeout,
+                JedisClient.ANY_VERSION, null);
+
+        verify(this.jedisCluster, times(1)).evalsha(eq(RedisScript.SET_DELTA.getSha1()), anyListOf(byte[].class),
+                anyListOf(byte[].class));
+    }
+
+    @Test
+    public void setVersioned() throws UnsupportedEncodingException {
+        when(this.jedisCluster.incr("key:version")).thenReturn(4L);
+
+        long version = new JedisClusterClient(this.jedisCluster, false, true).set("key", SESSIONS_KEY,
+                "session".getBytes(), timeout, JedisClient.ANY_VERSION, null);
+
+        assertEquals(4, version);
+        verify(this.jedisCluster, times(1)).expire("key:version", timeout);
+    }
+
+    @Test
+    public void setIfVersionConflict() throws UnsupportedEncodingException {
+        when(this.jedisCluster.get("key:version")).thenReturn("5");
+
+        long version = new JedisClusterClient(this.jedisCluster, false, true).set("key", SESSIONS_KEY,
+                "session".getBytes(), timeout, 4, null);
+
+        assertEquals(JedisClient.CONFLICT, version);
+        verify(this.jedisCluster, never()).setex(any(byte[].class), anyInt(), any(byte[].class));
+    }
+
+    @Test
+    public void lockHash() {
+        when(this.jedisCluster.evalsha(eq(RedisScript.LOCK.getSha1()), anyListOf(byte[].class),
+                anyListOf(byte[].class)))
+                .thenReturn(Arrays.<Object>asList(3L, Arrays.asList("metadata".getBytes(), "m".getBytes())));
+
+        RedisSessionLock lock = this.jedisPoolTemplate.lock("{sessions}key", 1000, 1800, RedisSessionLock.READ_HASH);
+
+        assertEquals(3, lock.getFencingToken());
+        assertEquals("m", new String(lock.getSession().getHash().get("metadata")));
+        ArgumentCaptor<List<byte[]>> keys = JedisNodeClientTest.bytesCaptor();
+        verify(this.jedisCluster, times(1)).evalsha(eq(RedisScript.LOCK.getSha1()), keys.capture(),
+                anyListOf(byte[].class));
+        JedisNodeClientTest.assertBytes(keys.getValue(), "{sessions}key:lock", "{sessions}key:fence",
+                "{sessions}key");
+    }
+
+    @Test
+    public void unlockExpired() {
+        when(this.jedisCluster.evalsha(eq(RedisScript.UNLOCK.getSha1()), anyListOf(byte[].class),
+                anyListOf(byte[].class))).thenReturn(0L);
+
+        assertFalse(this.jedisPoolTemplate.unlock("{sessions}key", 3));
+    }
+
+    @Test
+    public void setIfVersionSameSlot() throws UnsupportedEncodingException {
+        new JedisClusterClient(this.jedisCluster, false, true).set("{sessions}key", "{sessions}",
+                "session".getBytes(), timeout, 4, null);
+
+        verify(this.jedisCluster, times(1)).evalsha(eq(RedisScript.SET.ifVersion().getSha1()), anyListOf(byte[].class),
+                anyListOf(byte[].class));
+    }
+
+    @Test
+    public void setVersionedSameSlot() throws UnsupportedEncodingException {
+        when(this.jedisCluster.evalsha(eq(RedisScript.SET.getSha1()), anyListOf(byte[].class),
+                anyListOf(byte[].class))).thenReturn(2L);
+
+        long version = new JedisClusterClient(this.jedisCluster, false, true).set("{sessions}key", "{sessions}",
+                "session".getBytes(), timeout, JedisClient.ANY_VERSION, null);
+
+        assertEquals(2, version);
+        ArgumentCaptor<List<byte[]>> keys = JedisNodeClientTest.bytesCaptor();
+        verify(this.jedisCluster, times(1)).evalsha(eq(RedisScript.SET.getSha1()), keys.capture(),
+                anyListOf(byte[].class));
+        JedisNodeClientTest.assertBytes(keys.getValue(), "{sessions}key", "{sessions}", "{sessions}key:version");
+    }
+
+    @Test
+    public void delVersioned() {
+        new JedisClusterClient(this.jedisCluster, false, true).del(SESSIONS_KEY, "key");
+
+        verify(this.jedisCluster, times(1)).del("key");
+        verify(this.jedisCluster, times(1)).del("key:version");
+    }
+
+    @Test
+    public void setSameSlot() throws UnsupportedEncodingException {
+        this.jedisPoolTemplate.set("{sessions}key", "{sessions}", "session".getBytes(), timeout,
+                JedisClient.ANY_VERSION, null);
+
+        ArgumentCaptor<List<byte[]>> keys = JedisNodeClientTest.bytesCaptor();
+        ArgumentCaptor<List<byte[]>> args = JedisNodeClientTest.bytesCaptor();
+        verify(this.jedisCluster, times(1)).evalsha(eq(RedisScript.SET.getSha1()), keys.capture(), args.capture());
+        JedisNodeClientTest.assertBytes(keys.getValue(), "{sessions}key", "{sessions}");
+        JedisNodeClientTest.assertBytes(args.getValue(), String.valueOf(timeout), "session");
+    }
+
+    @Test
+    public void setAll() throws UnsupportedEncodingException {
+        byte[] session = "session".getBytes();
+        this.jedisPoolTemplate.setAll(Collections.singletonMap("key", session), SESSIONS_KEY, timeout);
 
         verify(this.jedisCluster, times(1)).setex("key".getBytes(Protocol.CHARSET), timeout, session);
         verify(this.jedisCluster, times(1)).sadd(SESSIONS_KEY, "key");
     }
 
+    @Test
+    public void touch() throws UnsupportedEncodingException {
+        when(this.jedisCluster.expire("key".getBytes(Protocol.CHARSET), timeout)).thenReturn(1L);
+
+        assertTrue(this.jedisPoolTemplate.touch("key", SESSIONS_KEY, timeout));
+
+        verify(this.jedisCluster, times(1)).expire("key".getBytes(Protocol.CHARSET), timeout);
+    }
+
+    @Test
+    public void touchMissing() throws UnsupportedEncodingException {
+        when(this.jedisCluster.expire("key".getBytes(Protocol.CHARSET), timeout)).thenReturn(0L);
+
+        assertFalse(new JedisClusterClient(this.jedisCluster, true).touch("key", SESSIONS_KEY, timeout));
+
+        verify(this.jedisCluster, never()).zadd(eq(SESSIONS_KEY), anyDouble(), eq("key"));
+    }
+
+    @Test
+    public void touchExpiringIndex() throws UnsupportedEncodingException {
+        when(this.jedisCluster.expire("key".getBytes(Protocol.CHARSET), timeout)).thenReturn(1L);
+
+        assertTrue(new JedisClusterClient(this.jedisCluster, true).touch("key", SESSIONS_KEY, timeout));
+
+        verify(this.jedisCluster, times(1)).expire("key".getBytes(Protocol.CHARSET), timeout);
+        verify(this.jedisCluster, times(1)).zadd(eq(SESSIONS_KEY), anyDouble(), eq("key"));
+    }
+
+    @Test
+    public void setExpiringIndex() throws UnsupportedEncodingException {
+        byte[] session = "session".getBytes();
+        new JedisClusterClient(this.jedisCluster, true).set("key", SESSIONS_KEY, session, timeout,
+                JedisClient.ANY_VERSION, null);
+
+        verify(this.jedisCluster, times(1)).setex("key".getBytes(Protocol.CHARSET), timeout, session);
+        verify(this.jedisCluster, times(1)).zadd(eq(SESSIONS_KEY), anyDouble(), eq("key"));
+    }
+
+    @Test
+    public void prune() {
+        when(this.jedisCluster.evalsha(eq(RedisScript.PRUNE.getSha1()), anyListOf(byte[].class),
+                anyListOf(byte[].class))).thenReturn(5L);
+
+        assertEquals(5, new JedisClusterClient(this.jedisCluster, true).prune(SESSIONS_KEY, 100));
+    }
+
     @Test
     public void clean() throws UnsupportedEncodingException {
-        HashSet<String> sessions = new HashSet<String>(Arrays.asList("key"));
-        String[] sessionsArray = sessions.toArray(new String[sessions.size()]);
-        when(this.jedisCluster.smembers(SESSIONS_KEY)).thenReturn(sessions);
+        when(this.jedisCluster.sscan(SESSIONS_KEY, "0", IndexScanner.SCAN_PARAMS))
+                .thenReturn(new ScanResult<>("0", Arrays.asList("{a}1", "{b}1", "{a}2")));
 
         this.jedisPoolTemplate.clean(SESSIONS_KEY);
 
-        verify(this.jedisCluster, times(1)).srem(SESSIONS_KEY, sessionsArray);
-        verify(this.jedisCluster, times(1)).del(sessionsArray);
+        verify(this.jedisCluster, times(1)).srem(SESSIONS_KEY, "{a}1", "{b}1", "{a}2");
+        ArgumentCaptor<List<byte[]>> keys = JedisNodeClientTest.bytesCaptor();
+        verify(this.jedisCluster, times(2)).evalsha(eq(RedisScript.UNLINK.getSha1()), keys.capture(),
+                anyListOf(byte[].class));
+        Set<String> unlinked = new HashSet<>();
+        for (List<?> slot : keys.getAllValues()) {
+            StringBuilder builder = new StringBuilder();
+            for (Object key : slot) {
+                builder.append(SafeEncoder.encode((byte[]) key));
+            }
+            unlinked.add(builder.toString());
+        }
+        assertEquals(new HashSet<>(Arrays.asList("{a}1{a}2", "{b}1")), unlinked);
+    }
+
+    @Test
+    public void cleanSameSlot() throws UnsupportedEncodingException {
+        when(this.jedisCluster.zscan("{s:0}", "0", IndexScanner.SCAN_PARAMS)).thenReturn(new ScanResult<>("0",
+                Arrays.asList(new Tuple("{s:0}1", 1d), new Tuple("{s:0}2", 2d))));
+
+        new JedisClusterClient(this.jedisCluster, true).clean("{s:0}");
+
+        ArgumentCaptor<List<byte[]>> keys = JedisNodeClientTest.bytesCaptor();
+        ArgumentCaptor<List<byte[]>> args = JedisNodeClientTest.bytesCaptor();
+        verify(this.jedisCluster, times(1)).evalsha(eq(RedisScript.CLEAN.getSha1()), keys.capture(), args.capture());
+        JedisNodeClientTest.assertBytes(keys.getValue(), "{s:0}", "{s:0}1", "{s:0}2");
+        JedisNodeClientTest.assertBytes(args.getValue(), "ZREM");
+    }
+
+    @Test
+    public void subscribeOutsidePool() {
+        when(this.jedisCluster.getClusterNodes()).thenReturn(Collections.singletonMap("localhost:1",
+                mock(JedisPool.class)));
+
+        try {
+            this.jedisPoolTemplate.subscribe(mock(JedisPubSub.class), "test-channel");
+        } catch (JedisConnectionException e) {
+            // no server listens on the cluster node's port
+        }
+
+        verify(this.jedisCluster, never()).subscribe(any(JedisPubSub.class), (String) anyVararg());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void subscribeWithoutNodes() {
+        when(this.jedisCluster.getClusterNodes()).thenReturn(Collections.<String, JedisPool>emptyMap());
+
+        this.jedisPoolTemplate.subscribe(mock(JedisPubSub.class), "test-channel");
     }
 }
@@ -18,22 +18,40 @@ package com.gopivotal.manager.redis;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Protocol;
 import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanResult;
 import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.util.SafeEncoder;
 
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -60,25 +78,36 @@ public final class JedisNodeClientTest {
     @Test(expected = JedisConnectionException.class)
     public void returnResourceOnGetSessionsFail() throws Exception {
         JedisConnectionException expected = new JedisConnectionException("test-message");
-        when(this.jedis.smembers(SESSIONS_KEY)).thenThrow(expected);
+        when(this.jedis.sscan(SESSIONS_KEY, "0", IndexScanner.SCAN_PARAMS)).thenThrow(expected);
         doThrow(new JedisConnectionException("test-message")).when(this.jedis).close();
 
-        this.jedisNodeClient.getSessions(SESSIONS_KEY);
+        this.jedisNodeClient.getSessions(SESSIONS_KEY).hasNext();
 
         verify(this.jedis, times(1)).close();
     }
 
     @Test
     public void getSessions() {
-        Set<String> sessions = new HashSet<String>(Arrays.asList("s1"));
-        when(this.jedis.smembers(SESSIONS_KEY)).thenReturn(sessions);
+        when(this.jedis.sscan(SESSIONS_KEY, "0", IndexScanner.SCAN_PARAMS))
+                .thenReturn(new ScanResult<>("7", Arrays.asList("s1", "s2")));
+        when(this.jedis.sscan(SESSIONS_KEY, "7", IndexScanner.SCAN_PARAMS))
+                .thenReturn(new ScanResult<>("0", Collections.singletonList("s3")));
 
-        Set<String> result = this.jedisNodeClient.getSessions(SESSIONS_KEY);
+        Iterator<String> result = this.jedisNodeClient.getSessions(SESSIONS_KEY);
 
-        assertEquals(1, result.size());
-        assertTrue(result.contains("s1"));
+        assertEquals(Arrays.asList("s1", "s2", "s3"), toList(result));
+        verify(this.jedis, times(2)).close();
+    }
 
-        verify(this.jedis, times(1)).close();
+    @Test
+    public void getSessionsExpiringIndex() {
+        long now = System.currentTimeMillis();
+        when(this.jedis.zscan(SESSIONS_KEY, "0", IndexScanner.SCAN_PARAMS)).thenReturn(new ScanResult<>("0",
+                Arrays.asList(new Tuple("expired", (double) now - 1000), new Tuple("live", (double) now + 60000))));
+
+        Iterator<String> result = new JedisNodeClient(this.jedisPool, true).getSessions(SESSIONS_KEY);
+
+        assertEquals(Collections.singletonList("live"), toList(result));
     }
 
     @Test(expected = JedisConnectionException.class)
@@ -94,9 +123,9 @@ public final class JedisNodeClientTest {
     public void del() {
         this.jedisNodeClient.del(SESSIONS_KEY, "key");
 
-        verify(this.transaction, times(1)).srem(SESSIONS_KEY, "key");
-        verify(this.transaction, times(1)).del("key");
-        verify(this.transaction, times(1)).exec();
+        ArgumentCaptor<List<byte[]>> keys = bytesCaptor();
+        verify(this.jedis, times(1)).evalsha(eq(RedisScript.DEL.getSha1()), keys.capture(), anyListOf(byte[].class));
+        assertBytes(keys.getValue(), "key", SESSIONS_KEY);
 
         verify(this.jedis, times(1)).close();
     }
@@ -153,7 +182,7 @@ public final class JedisNodeClientTest {
         when(this.transaction.set("key".getBytes(Protocol.CHARSET), session)).thenThrow(expected);
         doThrow(new JedisConnectionException("test-message")).when(this.jedis).close();
 
-        this.jedisNodeClient.set("key", SESSIONS_KEY, session, timeout);
+        this.jedisNodeClient.set("key", SESSIONS_KEY, session, timeout, JedisClient.ANY_VERSION, null);
 
         verify(this.jedis, times(1)).close();
     }
@@ -161,21 +190,356 @@ public final class JedisNodeClientTest {
     @Test
     public void set() throws UnsupportedEncodingException {
         byte[] session = "session".getBytes();
-        this.jedisNodeClient.set("key", SESSIONS_KEY, session, timeout);
+        this.jedisNodeClient.set("key", SESSIONS_KEY, session, timeout, JedisClient.ANY_VERSION, null);
+
+        ArgumentCaptor<List<byte[]>> keys = bytesCaptor();
+        ArgumentCaptor<List<byte[]>> args = bytesCaptor();
+        verify(this.jedis, times(1)).evalsha(eq(RedisScript.SET.getSha1()), keys.capture(), args.capture());
+        assertBytes(keys.getValue(), "key", SESSIONS_KEY);
+        assertBytes(args.getValue(), String.valueOf(timeout), "session");
+
+        verify(this.jedis, times(1)).close();
+    }
+
+    @Test
+    public void setFenced() throws UnsupportedEncodingException {
+        RedisScript script = RedisScript.SET.ifVersion().ifFenced();
+        when(this.jedis.evalsha(eq(script.getSha1()), anyListOf(byte[].class), anyListOf(byte[].class)))
+                .thenReturn(JedisClient.FENCED);
+        RedisSessionLock lock = RedisSessionLock.parse("{key}", Arrays.<Object>asList(7L, null));
+
+        long version = this.jedisNodeClient.set("key", SESSIONS_KEY, "session".getBytes(), timeout, 3, lock);
+
+        assertEquals(JedisClient.FENCED, version);
+        ArgumentCaptor<List<byte[]>> keys = bytesCaptor();
+        ArgumentCaptor<List<byte[]>> args = bytesCaptor();
+        verify(this.jedis, times(1)).evalsha(eq(script.getSha1()), keys.capture(), args.capture());
+        assertBytes(keys.getValue(), "key", SESSIONS_KEY, "{key}:fence");
+        assertBytes(args.getValue(), String.valueOf(timeout), "session", "3", "7");
+    }
+
+    @Test
+    public void setNoScript() throws UnsupportedEncodingException {
+        when(this.jedis.evalsha(eq(RedisScript.SET.getSha1()), anyListOf(byte[].class), anyListOf(byte[].class)))
+                .thenThrow(new JedisNoScriptException("NOSCRIPT"));
+
+        this.jedisNodeClient.set("key", SESSIONS_KEY, "session".getBytes(), timeout, JedisClient.ANY_VERSION, null);
+
+        verify(this.jedis, times(1)).eval(eq(RedisScript.SET.getSource()), anyListOf(byte[].class),
+                anyListOf(byte[].class));
+        verify(this.jedis, times(1)).close();
+    }
+
+    @Test
+    public void getHash() throws UnsupportedEncodingException {
+        when(this.jedis.hgetAll("key".getBytes(Protocol.CHARSET))).thenReturn(
+                Collections.singletonMap("metadata".getBytes(Protocol.CHARSET), "value".getBytes()));
+
+        Map<String, byte[]> result = this.jedisNodeClient.getHash("key");
+
+        assertEquals(Collections.singleton("metadata"), result.keySet());
+        verify(this.jedis, times(1)).close();
+    }
+
+    @Test
+    public void setHash() throws UnsupportedEncodingException {
+        this.jedisNodeClient.setHash("key", SESSIONS_KEY, Collections.singletonMap("metadata", "value".getBytes()),
+                Collections.singleton("attribute:removed"), true, timeout,
+                JedisClient.ANY_VERSION, null);
+
+        ArgumentCaptor<List<byte[]>> keys = bytesCaptor();
+        ArgumentCaptor<List<byte[]>> args = bytesCaptor();
+        verify(this.jedis, times(1)).evalsha(eq(RedisScript.SET_HASH.getSha1()), keys.capture(), args.capture());
+        assertBytes(keys.getValue(), "key", SESSIONS_KEY);
+        assertBytes(args.getValue(), String.valueOf(timeout), "0", "SADD", "1", "1", "metadata", "value",
+                "attribute:removed");
+
+        verify(this.jedis, times(1)).close();
+    }
+
+    @Test
+    public void getDelta() throws UnsupportedEncodingException {
+        byte[] entry = "entry".getBytes();
+        when(this.jedis.lrange("key".getBytes(Protocol.CHARSET), 0, -1)).thenReturn(Collections.singletonList(entry));
+
+        List<byte[]> result = this.jedisNodeClient.getDelta("key");
+
+        assertEquals(Collections.singletonList(entry), result);
+        verify(this.jedis, times(1)).close();
+    }
+
+    @Test
+    public void setDelta() throws UnsupportedEncodingException {
+        this.jedisNodeClient.setDelta("key", SESSIONS_KEY, "entry".getBytes(), false, timeout, JedisClient.ANY_VERSION,
+                null);
+
+        ArgumentCaptor<List<byte[]>> keys = bytesCaptor();
+        ArgumentCaptor<List<byte[]>> args = bytesCaptor();
+        verify(this.jedis, times(1)).evalsha(eq(RedisScript.SET_DELTA.getSha1()), keys.capture(), args.capture());
+        assertBytes(keys.getValue(), "key", SESSIONS_KEY);
+        assertBytes(args.getValue(), String.valueOf(timeout), "0", "SADD", "0", "entry");
+
+        verify(this.jedis, times(1)).close();
+    }
+
+    @Test
+    public void setAll() throws UnsupportedEncodingException {
+        Pipeline pipeline = mock(Pipeline.class);
+        when(this.jedis.pipelined()).thenReturn(pipeline);
+        byte[] session = "session".getBytes();
 
-        verify(this.transaction, times(1)).setex("key".getBytes(Protocol.CHARSET), timeout, session);
-        verify(this.transaction, times(1)).sadd(SESSIONS_KEY,"key");
-        verify(this.transaction, times(1)).exec();
+        this.jedisNodeClient.setAll(Collections.singletonMap("key", session), SESSIONS_KEY, timeout);
+
+        verify(pipeline, times(1)).setex("key".getBytes(Protocol.CHARSET), timeout, session);
+        verify(pipeline, times(1)).sadd(SESSIONS_KEY, "key");
+        verify(pipeline, times(1)).sync();
 
         verify(this.jedis, times(1)).close();
     }
 
+    @Test
+    public void setVersioned() throws UnsupportedEncodingException {
+        when(this.jedis.evalsha(eq(RedisScript.SET.getSha1()), anyListOf(byte[].class), anyListOf(byte[].class)))
+                .thenReturn(3L);
+
+        long version = new JedisNodeClient(this.jedisPool, false, true).set("key", SESSIONS_KEY,
+                "session".getBytes(), timeout, JedisClient.ANY_VERSION, null);
+
+        assertEquals(3, version);
+        ArgumentCaptor<List<byte[]>> keys = bytesCaptor();
+        verify(this.jedis, times(1)).evalsha(eq(RedisScript.SET.getSha1()), keys.capture(), anyListOf(byte[].class));
+        assertBytes(keys.getValue(), "key", SESSIONS_KEY, "key:version");
+    }
+
+    @Test
+    public void getWithVersion() throws UnsupportedEncodingException {
+        when(this.jedis.evalsha(eq(RedisScript.READ.getSha1()), anyListOf(byte[].class), anyListOf(byte[].class)))
+                .thenReturn(Arrays.<Object>asList("session".getBytes(), "3".getBytes()));
+
+        StoredSession result = this.jedisNodeClient.getWithVersion("key", RedisSessionLock.READ_VALUE);
+
+        assertEquals("session", new String(result.getValue()));
+        assertEquals(Long.valueOf(3), result.getVersion());
+        ArgumentCaptor<List<byte[]>> keys = bytesCaptor();
+        ArgumentCaptor<List<byte[]>> args = bytesCaptor();
+        verify(this.jedis, times(1)).evalsha(eq(RedisScript.READ.getSha1()), keys.capture(), args.capture());
+        assertBytes(keys.getValue(), "key", "key:version");
+        assertBytes(args.getValue(), "GET");
+    }
+
+    @Test
+    public void getWithVersionUnversioned() throws UnsupportedEncodingException {
+        when(this.jedis.evalsha(eq(RedisScript.READ.getSha1()), anyListOf(byte[].class), anyListOf(byte[].class)))
+                .thenReturn(Arrays.<Object>asList(null, null));
+
+        StoredSession result = this.jedisNodeClient.getWithVersion("key", RedisSessionLock.READ_HASH);
+
+        assertTrue(result.isVersionRead());
+        assertNull(result.getVersion());
+        assertTrue(result.getHash().isEmpty());
+    }
+
+    @Test
+    public void setIfVersion() throws UnsupportedEncodingException {
+        when(this.jedis.evalsha(eq(RedisScript.SET.ifVersion().getSha1()), anyListOf(byte[].class),
+                anyListOf(byte[].class)))
+                .thenReturn(JedisClient.CONFLICT);
+
+        long version = new JedisNodeClient(this.jedisPool, false, true).set("key", SESSIONS_KEY,
+                "session".getBytes(), timeout, 3, null);
+
+        assertEquals(JedisClient.CONFLICT, version);
+        ArgumentCaptor<List<byte[]>> args = bytesCaptor();
+        verify(this.jedis, times(1)).evalsha(eq(RedisScript.SET.ifVersion().getSha1()), anyListOf(byte[].class),
+                args.capture());
+        assertBytes(args.getValue(), String.valueOf(timeout), "session", "3");
+    }
+
+    @Test
+    public void lock() {
+        when(this.jedis.evalsha(eq(RedisScript.LOCK.getSha1()), anyListOf(byte[].class), anyListOf(byte[].class)))
+                .thenReturn(Arrays.<Object>asList(7L, "session".getBytes()));
+
+        RedisSessionLock lock = this.jedisNodeClient.lock("key", 1000, 1800, RedisSessionLock.READ_VALUE);
+
+        assertTrue(lock.isAcquired());
+        assertEquals(7, lock.getFencingToken());
+        assertTrue(lock.claimSession("key"));
+        assertEquals("session", new String(lock.getSession().getValue()));
+        ArgumentCaptor<List<byte[]>> keys = bytesCaptor();
+        ArgumentCaptor<List<byte[]>> args = bytesCaptor();
+        verify(this.jedis, times(1)).evalsha(eq(RedisScript.LOCK.getSha1()), keys.capture(), args.capture());
+        assertBytes(keys.getValue(), "{key}:lock", "{key}:fence", "key");
+        assertBytes(args.getValue(), "1000", "GET", "1800");
+    }
+
+    @Test
+    public void lockVersioned() {
+        when(this.jedis.evalsha(eq(RedisScript.LOCK.getSha1()), anyListOf(byte[].class), anyListOf(byte[].class)))
+                .thenReturn(Arrays.<Object>asList(7L, "session".getBytes(), "3".getBytes()));
+
+        RedisSessionLock lock = new JedisNodeClient(this.jedisPool, false, true).lock("key", 1000, 1800,
+                RedisSessionLock.READ_VALUE);
+
+        assertTrue(lock.getSession().isVersionRead());
+        assertEquals(Long.valueOf(3), lock.getSession().getVersion());
+        ArgumentCaptor<List<byte[]>> keys = bytesCaptor();
+        verify(this.jedis, times(1)).evalsha(eq(RedisScript.LOCK.getSha1()), keys.capture(), anyListOf(byte[].class));
+        assertBytes(keys.getValue(), "{key}:lock", "{key}:fence", "key", "key:version");
+    }
+
+    @Test
+    public void lockStoredAsOtherType() {
+        when(this.jedis.evalsha(eq(RedisScript.LOCK.getSha1()), anyListOf(byte[].class), anyListOf(byte[].class)))
+                .thenReturn(Arrays.<Object>asList(7L, -1L));
+
+        RedisSessionLock lock = this.jedisNodeClient.lock("key", 1000, 1800, RedisSessionLock.READ_HASH);
+
+        assertTrue(lock.isAcquired());
+        assertEquals(7, lock.getFencingToken());
+        assertFalse(lock.claimSession("key"));
+    }
+
+    @Test
+    public void lockHeld() {
+        when(this.jedis.evalsha(eq(RedisScript.LOCK.getSha1()), anyListOf(byte[].class), anyListOf(byte[].class)))
+                .thenReturn(Arrays.<Object>asList(0L, 250L));
+
+        RedisSessionLock lock = this.jedisNodeClient.lock("key", 1000, 1800, RedisSessionLock.READ_HASH);
+
+        assertFalse(lock.isAcquired());
+        assertEquals(250, lock.getRemainingLease());
+        assertFalse(lock.claimSession("key"));
+    }
+
+    @Test
+    public void unlock() {
+        when(this.jedis.evalsha(eq(RedisScript.UNLOCK.getSha1()), anyListOf(byte[].class), anyListOf(byte[].class)))
+                .thenReturn(1L);
+
+        assertTrue(this.jedisNodeClient.unlock("key", 7));
+
+        ArgumentCaptor<List<byte[]>> keys = bytesCaptor();
+        ArgumentCaptor<List<byte[]>> args = bytesCaptor();
+        verify(this.jedis, times(1)).evalsha(eq(RedisScript.UNLOCK.getSha1()), keys.capture(), args.capture());
+        assertBytes(keys.getValue(), "{key}:lock");
+        assertBytes(args.getValue(), "7");
+    }
+
+    @Test
+    public void setAllVersioned() throws UnsupportedEncodingException {
+        Pipeline pipeline = mock(Pipeline.class);
+        when(this.jedis.pipelined()).thenReturn(pipeline);
+
+        new JedisNodeClient(this.jedisPool, false, true).setAll(Collections.singletonMap("key",
+                "session".getBytes()), SESSIONS_KEY, timeout);
+
+        verify(pipeline, times(1)).incr("key:version");
+        verify(pipeline, times(1)).expire("key:version", timeout);
+        verify(pipeline, times(1)).sync();
+    }
+
+    @Test
+    public void touchVersioned() throws UnsupportedEncodingException {
+        Pipeline pipeline = mock(Pipeline.class);
+        @SuppressWarnings("unchecked")
+        Response<Long> touched = mock(Response.class);
+        when(this.jedis.pipelined()).thenReturn(pipeline);
+        when(pipeline.expire("key".getBytes(Protocol.CHARSET), timeout)).thenReturn(touched);
+        when(touched.get()).thenReturn(1L);
+
+        assertTrue(new JedisNodeClient(this.jedisPool, false, true).touch("key", SESSIONS_KEY, timeout));
+
+        verify(pipeline, times(1)).expire("key".getBytes(Protocol.CHARSET), timeout);
+        verify(pipeline, times(1)).expire("key:version", timeout);
+        verify(pipeline, times(1)).sync();
+    }
+
+    @Test
+    public void getVersion() {
+        when(this.jedis.get("key:version")).thenReturn("7");
+
+        assertEquals(Long.valueOf(7), this.jedisNodeClient.getVersion("key"));
+        assertNull(this.jedisNodeClient.getVersion("other-key"));
+        verify(this.jedis, times(2)).close();
+    }
+
+    @Test
+    public void touch() throws UnsupportedEncodingException {
+        when(this.jedis.expire("key".getBytes(Protocol.CHARSET), timeout)).thenReturn(1L);
+
+        assertTrue(this.jedisNodeClient.touch("key", SESSIONS_KEY, timeout));
+
+        verify(this.jedis, times(1)).expire("key".getBytes(Protocol.CHARSET), timeout);
+        verify(this.jedis, times(1)).close();
+    }
+
+    @Test
+    public void touchMissing() throws UnsupportedEncodingException {
+        when(this.jedis.expire("key".getBytes(Protocol.CHARSET), timeout)).thenReturn(0L);
+
+        assertFalse(this.jedisNodeClient.touch("key", SESSIONS_KEY, timeout));
+    }
+
+    @Test
+    public void touchExpiringIndex() throws UnsupportedEncodingException {
+        assertFalse(new JedisNodeClient(this.jedisPool, true).touch("key", SESSIONS_KEY, timeout));
+
+        ArgumentCaptor<List<byte[]>> keys = bytesCaptor();
+        verify(this.jedis, times(1)).evalsha(eq(RedisScript.TOUCH_EXPIRING.getSha1()), keys.capture(),
+                anyListOf(byte[].class));
+        assertBytes(keys.getValue(), "key", SESSIONS_KEY);
+        verify(this.jedis, times(1)).close();
+    }
+
+    @Test
+    public void setExpiringIndex() throws UnsupportedEncodingException {
+        long now = System.currentTimeMillis();
+        new JedisNodeClient(this.jedisPool, true).set("key", SESSIONS_KEY, "session".getBytes(), timeout,
+                JedisClient.ANY_VERSION, null);
+
+        ArgumentCaptor<List<byte[]>> args = bytesCaptor();
+        verify(this.jedis, times(1)).evalsha(eq(RedisScript.SET_EXPIRING.getSha1()), anyListOf(byte[].class),
+                args.capture());
+        long score = Long.parseLong(SafeEncoder.encode(args.getValue().get(2)));
+        assertTrue(score >= now + timeout * 1000L);
+        verify(this.jedis, times(1)).close();
+    }
+
+    @Test
+    public void countExpiringIndex() {
+        when(this.jedis.zcount(eq(SESSIONS_KEY), anyString(), eq("+inf"))).thenReturn(10L);
+
+        Integer result = new JedisNodeClient(this.jedisPool, true).count(SESSIONS_KEY);
+
+        assertEquals(10, result.intValue());
+        verify(this.jedis, times(1)).close();
+    }
+
+    @Test
+    public void prune() {
+        when(this.jedis.evalsha(eq(RedisScript.PRUNE.getSha1()), anyListOf(byte[].class), anyListOf(byte[].class)))
+                .thenReturn(5L);
+
+        int result = new JedisNodeClient(this.jedisPool, true).prune(SESSIONS_KEY, 100);
+
+        assertEquals(5, result);
+        verify(this.jedis, times(1)).close();
+    }
+
+    @Test
+    public void pruneNotExpiringIndex() {
+        assertEquals(0, this.jedisNodeClient.prune(SESSIONS_KEY, 100));
+    }
+
     @Test(expected = JedisConnectionException.class)
     public void returnResourceOnCleanFail() throws Exception {
         JedisConnectionException expected = new JedisConnectionException("test-message");
-        when(this.transaction.del(new String[]{"key"})).thenThrow(expected);
+        when(this.jedis.sscan(SESSIONS_KEY, "0", IndexScanner.SCAN_PARAMS))
+                .thenReturn(new ScanResult<>("0", Collections.singletonList("key")));
+        when(this.jedis.evalsha(eq(RedisScript.CLEAN.getSha1()), anyListOf(byte[].class), anyListOf(byte[].class)))
+                .thenThrow(expected);
         doThrow(new JedisConnectionException("test-message")).when(this.jedis).close();
-        when(this.jedis.smembers(SESSIONS_KEY)).thenReturn(new HashSet<String>(Arrays.asList("key")));
 
         this.jedisNodeClient.clean(SESSIONS_KEY);
 
@@ -184,17 +548,87 @@ public final class JedisNodeClientTest {
 
     @Test
     public void clean() throws UnsupportedEncodingException {
-        HashSet<String> sessions = new HashSet<String>(Arrays.asList("key"));
-        String[] sessionsArray = sessions.toArray(new String[sessions.size()]);
-        when(this.jedis.smembers(SESSIONS_KEY)).thenReturn(sessions);
+        when(this.jedis.sscan(SESSIONS_KEY, "0", IndexScanner.SCAN_PARAMS))
+                .thenReturn(new ScanResult<>("7", Arrays.asList("s1", "s2")));
+        when(this.jedis.sscan(SESSIONS_KEY, "7", IndexScanner.SCAN_PARAMS))
+                .thenReturn(new ScanResult<>("3", Collections.<String>emptyList()));
+        when(this.jedis.sscan(SESSIONS_KEY, "3", IndexScanner.SCAN_PARAMS))
+                .thenReturn(new ScanResult<>("0", Collections.singletonList("s3")));
 
-        this.jedisNodeClient.clean( SESSIONS_KEY);
+        this.jedisNodeClient.clean(SESSIONS_KEY);
 
-        verify(this.transaction, times(1)).srem(SESSIONS_KEY, sessionsArray);
-        verify(this.transaction, times(1)).del(sessionsArray);
-        verify(this.transaction, times(1)).exec();
+        ArgumentCaptor<List<byte[]>> keys = bytesCaptor();
+        ArgumentCaptor<List<byte[]>> args = bytesCaptor();
+        verify(this.jedis, times(2)).evalsha(eq(RedisScript.CLEAN.getSha1()), keys.capture(), args.capture());
+        assertBytes(keys.getAllValues().get(0), SESSIONS_KEY, "s1", "s2");
+        assertBytes(keys.getAllValues().get(1), SESSIONS_KEY, "s3");
+        assertBytes(args.getValue(), "SREM");
+    }
 
-        verify(this.jedis, times(1)).close();
+    @Test
+    public void cleanExpiringIndex() throws UnsupportedEncodingException {
+        long now = System.currentTimeMillis();
+        when(this.jedis.zscan(SESSIONS_KEY, "0", IndexScanner.SCAN_PARAMS)).thenReturn(new ScanResult<>("0",
+                Arrays.asList(new Tuple("expired", (double) now - 1000), new Tuple("live", (double) now + 60000))));
+
+        new JedisNodeClient(this.jedisPool, true).clean(SESSIONS_KEY);
+
+        ArgumentCaptor<List<byte[]>> keys = bytesCaptor();
+        ArgumentCaptor<List<byte[]>> args = bytesCaptor();
+        verify(this.jedis, times(1)).evalsha(eq(RedisScript.CLEAN.getSha1()), keys.capture(), args.capture());
+        assertBytes(keys.getValue(), SESSIONS_KEY, "expired", "live");
+        assertBytes(args.getValue(), "ZREM");
+    }
+
+    @Test
+    public void cleanFallsBackToEval() {
+        when(this.jedis.sscan(SESSIONS_KEY, "0", IndexScanner.SCAN_PARAMS))
+                .thenReturn(new ScanResult<>("0", Collections.singletonList("s1")));
+        when(this.jedis.evalsha(eq(RedisScript.CLEAN.getSha1()), anyListOf(byte[].class), anyListOf(byte[].class)))
+                .thenThrow(new JedisNoScriptException("NOSCRIPT"));
+
+        this.jedisNodeClient.clean(SESSIONS_KEY);
+
+        verify(this.jedis, times(1)).eval(eq(RedisScript.CLEAN.getSource()), anyListOf(byte[].class),
+                anyListOf(byte[].class));
+    }
+
+    @Test
+    public void subscribeOutsidePool() {
+        JedisNodeClient client = new JedisNodeClient(this.jedisPool, false, false, new JedisShardInfo("localhost", 1));
+
+        try {
+            client.subscribe(mock(JedisPubSub.class), "test-channel");
+        } catch (JedisConnectionException e) {
+            // no server listens on the subscriber connection's port
+        }
+
+        verify(this.jedisPool, never()).getResource();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void subscribeWithoutServer() {
+        this.jedisNodeClient.subscribe(mock(JedisPubSub.class), "test-channel");
+    }
+
+    static List<String> toList(Iterator<String> iterator) {
+        List<String> list = new ArrayList<>();
+        while (iterator.hasNext()) {
+            list.add(iterator.next());
+        }
+        return list;
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    static ArgumentCaptor<List<byte[]>> bytesCaptor() {
+        return (ArgumentCaptor) ArgumentCaptor.forClass(List.class);
+    }
+
+    static void assertBytes(List<?> actual, String... expected) {
+        assertEquals(expected.length, actual.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], SafeEncoder.encode((byte[]) actual.get(i)));
+        }
     }
 
     private static class StubTransaction extends Transaction {
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import org.junit.Test;
+import redis.clients.util.JedisClusterCRC16;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class KeyLayoutTest {
+
+    private final KeyLayout unsharded = new KeyLayout("sessions", 0);
+
+    private final KeyLayout sharded = new KeyLayout("sessions", 4);
+
+    @Test
+    public void unsharded() {
+        assertEquals("sessionstest-id", this.unsharded.getSessionKey("test-id"));
+        assertEquals("test-id", this.unsharded.resolveKey("test-id"));
+        assertEquals("sessions", this.unsharded.getIndexKey("sessionstest-id"));
+        assertEquals(Collections.singletonList("sessions"), this.unsharded.getIndexKeys());
+    }
+
+    @Test
+    public void versionKeyAndInvalidationChannel() {
+        assertEquals("{sessions:0}test-id:version", KeyLayout.getVersionKey("{sessions:0}test-id"));
+        assertEquals("sessions:invalidations", this.sharded.getInvalidationChannel());
+    }
+
+    @Test
+    public void lockKeys() {
+        assertEquals("{sessionstest-id}:lock", KeyLayout.getLockKey("sessionstest-id"));
+        assertEquals("{sessionstest-id}:fence", KeyLayout.getFenceKey("sessionstest-id"));
+        assertEquals("{sessions:0}test-id:lock", KeyLayout.getLockKey("{sessions:0}test-id"));
+        assertEquals("{sessions:0}test-id:fence", KeyLayout.getFenceKey("{sessions:0}test-id"));
+    }
+
+    @Test
+    public void lockKeysSameSlot() {
+        for (String key : Arrays.asList("sessionstest-id", this.sharded.getSessionKey("test-id"))) {
+            assertEquals(JedisClusterCRC16.getSlot(key), JedisClusterCRC16.getSlot(KeyLayout.getLockKey(key)));
+            assertEquals(JedisClusterCRC16.getSlot(key), JedisClusterCRC16.getSlot(KeyLayout.getFenceKey(key)));
+        }
+    }
+
+    @Test
+    public void sharded() {
+        String key = this.sharded.getSessionKey("test-id");
+
+        assertTrue(key.matches("\\{sessions:[0-3]\\}test-id"));
+        assertEquals(key, this.sharded.getSessionKey(key));
+        assertEquals(key, this.sharded.resolveKey("test-id"));
+        assertEquals(key, this.sharded.resolveKey(key));
+        assertEquals(Arrays.asList("{sessions:0}", "{sessions:1}", "{sessions:2}", "{sessions:3}"),
+                this.sharded.getIndexKeys());
+    }
+
+    @Test
+    public void shardedSameSlot() {
+        String key = this.sharded.getSessionKey("test-id");
+
+        assertEquals(JedisClusterCRC16.getSlot(key), JedisClusterCRC16.getSlot(this.sharded.getIndexKey(key)));
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import org.apache.catalina.Session;
+import org.apache.catalina.session.StandardSession;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class NearCacheTest {
+
+    private final Session session = new StandardSession(null);
+
+    @Test
+    public void get() {
+        NearCache cache = new NearCache(10, 60000);
+        cache.put("key", 3, this.session);
+
+        NearCache.Entry entry = cache.get("key");
+
+        assertEquals(3, entry.version);
+        assertSame(this.session, entry.session);
+        assertNull(cache.get("other-key"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        NearCache cache = new NearCache(2, 60000);
+        cache.put("key-1", 1, this.session);
+        cache.put("key-2", 1, this.session);
+        cache.get("key-1");
+        cache.put("key-3", 1, this.session);
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get("key-2"));
+        assertSame(this.session, cache.get("key-1").session);
+    }
+
+    @Test
+    public void expires() throws InterruptedException {
+        NearCache cache = new NearCache(10, 10);
+        cache.put("key", 1, this.session);
+
+        Thread.sleep(50);
+
+        assertNull(cache.get("key"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void invalidate() {
+        NearCache cache = new NearCache(10, 60000);
+        cache.put("key-1", 1, this.session);
+        cache.put("key-2", 1, this.session);
+        cache.put("key-3", 1, this.session);
+
+        cache.invalidate("key-1", 1);
+        cache.invalidate("key-2", 2);
+        cache.invalidate("key-3", 0);
+
+        assertSame(this.session, cache.get("key-1").session);
+        assertNull(cache.get("key-2"));
+        assertNull(cache.get("key-3"));
+    }
+
+    @Test
+    public void invalidateBeforePut() {
+        NearCache cache = new NearCache(10, 60000);
+
+        cache.invalidate("key-1", 3);
+        cache.invalidate("key-1", 2);
+        cache.invalidate("key-2", 0);
+
+        assertFalse(cache.put("key-1", 2, this.session));
+        assertNull(cache.get("key-1"));
+        assertTrue(cache.put("key-1", 3, this.session));
+        assertFalse(cache.put("key-2", 5, this.session));
+        assertNull(cache.get("key-2"));
+    }
+
+    @Test
+    public void invalidateExpires() throws InterruptedException {
+        NearCache cache = new NearCache(10, 10);
+        cache.invalidate("key", 0);
+
+        Thread.sleep(50);
+
+        assertTrue(cache.put("key", 1, this.session));
+    }
+
+    @Test
+    public void putOlderVersion() {
+        Session other = new StandardSession(null);
+        NearCache cache = new NearCache(10, 60000);
+        cache.put("key", 3, this.session);
+
+        assertFalse(cache.put("key", 2, other));
+        assertSame(this.session, cache.get("key").session);
+        assertTrue(cache.put("key", 4, other));
+        assertSame(other, cache.get("key").session);
+    }
+
+    @Test
+    public void remove() {
+        NearCache cache = new NearCache(10, 60000);
+        cache.put("key-1", 1, this.session);
+        cache.put("key-2", 1, this.session);
+
+        cache.remove("key-1");
+        assertNull(cache.get("key-1"));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public final class SessionDeltaTest {
+
+    @Test
+    public void mergeBase() throws IOException {
+        Map<String, byte[]> attributes = new HashMap<>();
+        attributes.put("test-key", bytes("test-value"));
+        attributes.put("test-key-2", bytes("test-value-2"));
+
+        SessionDelta delta = SessionDelta.merge(Collections.singletonList(
+                SessionDelta.encode(bytes("metadata"), attributes)));
+
+        assertArrayEquals(bytes("metadata"), delta.getMetadata());
+        assertEquals(attributes.keySet(), delta.getAttributes().keySet());
+        assertArrayEquals(bytes("test-value"), delta.getAttributes().get("test-key"));
+        assertEquals(0, delta.getPatches());
+        assertEquals(0, delta.getPatchBytes());
+    }
+
+    @Test
+    public void mergePatches() throws IOException {
+        Map<String, byte[]> attributes = new HashMap<>();
+        attributes.put("test-key", bytes("test-value"));
+        attributes.put("test-key-2", bytes("test-value-2"));
+
+        byte[] base = SessionDelta.encode(bytes("metadata-1"), attributes);
+        byte[] patch1 = SessionDelta.encode(bytes("metadata-2"),
+                Collections.singletonMap("test-key", bytes("other-value")), Collections.singleton("test-key-2"));
+        byte[] patch2 = SessionDelta.encode(bytes("metadata-3"),
+                Collections.singletonMap("test-key-3", bytes("test-value-3")), Collections.<String>emptySet());
+
+        SessionDelta delta = SessionDelta.merge(Arrays.asList(base, patch1, patch2));
+
+        assertArrayEquals(bytes("metadata-3"), delta.getMetadata());
+        assertEquals(2, delta.getAttributes().size());
+        assertArrayEquals(bytes("other-value"), delta.getAttributes().get("test-key"));
+        assertArrayEquals(bytes("test-value-3"), delta.getAttributes().get("test-key-3"));
+        assertEquals(2, delta.getPatches());
+        assertEquals(patch1.length + patch2.length, delta.getPatchBytes());
+    }
+
+    @Test
+    public void mergeEmpty() throws IOException {
+        assertNull(SessionDelta.merge(Collections.<byte[]>emptyList()));
+    }
+
+    @Test(expected = IOException.class)
+    public void mergeMalformed() throws IOException {
+        SessionDelta.merge(Collections.singletonList(new byte[]{0x07, 0x00}));
+    }
+
+    @Test
+    public void arguments() {
+        List<byte[]> arguments = SessionDelta.arguments(bytes("entry"), true, 30, false);
+
+        assertEquals(5, arguments.size());
+        assertArrayEquals(bytes("30"), arguments.get(0));
+        assertArrayEquals(bytes("0"), arguments.get(1));
+        assertArrayEquals(bytes("SADD"), arguments.get(2));
+        assertArrayEquals(bytes("1"), arguments.get(3));
+        assertArrayEquals(bytes("entry"), arguments.get(4));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes();
+    }
+
+}
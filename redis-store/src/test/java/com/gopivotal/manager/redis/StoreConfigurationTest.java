@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import com.gopivotal.manager.SessionCompression;
+import org.apache.catalina.session.StandardManager;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public final class StoreConfigurationTest {
+
+    private final StoreConfiguration configuration = new StoreConfiguration();
+
+    @Test
+    public void copy() {
+        StoreConfiguration copy = this.configuration.copy();
+        copy.host = "test-host";
+        copy.compression = SessionCompression.LZ;
+
+        assertNotSame(this.configuration, copy);
+        assertEquals("localhost", this.configuration.host);
+        assertEquals(SessionCompression.NONE, this.configuration.compression);
+        assertSame(this.configuration.keyLayout, copy.keyLayout);
+    }
+
+    @Test
+    public void updateSessionSerializationUtils() {
+        this.configuration.updateSessionSerializationUtils();
+        assertNull(this.configuration.sessionSerializationUtils);
+
+        this.configuration.manager = new StandardManager();
+        this.configuration.updateSessionSerializationUtils();
+        assertNotNull(this.configuration.sessionSerializationUtils);
+    }
+
+}
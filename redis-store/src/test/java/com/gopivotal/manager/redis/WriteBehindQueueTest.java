@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gopivotal.manager.redis;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class WriteBehindQueueTest {
+
+    private static final String SESSIONS_KEY = "sessions";
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+
+    private final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+
+    @Test
+    public void closeFlushesPendingSaves() {
+        WriteBehindQueue queue = new WriteBehindQueue(10, 1, 1, 0, WriteBehindQueue.OverflowPolicy.BLOCK,
+                new RecordingWriter());
+
+        assertTrue(queue.offer(save("key-1", "value-1")));
+        assertTrue(queue.offer(save("key-2", "value-2")));
+        this.release.countDown();
+        queue.close(5000);
+
+        assertEquals(Arrays.asList("key-1=value-1", "key-2=value-2"), this.written);
+    }
+
+    @Test
+    public void coalesce() throws InterruptedException {
+        WriteBehindQueue queue = new WriteBehindQueue(10, 1, 1, 0, WriteBehindQueue.OverflowPolicy.BLOCK,
+                new RecordingWriter());
+
+        queue.offer(save("blocker", "value"));
+        waitForInFlight(queue);
+        queue.offer(save("key", "value-1"));
+        queue.offer(save("key", "value-2"));
+        assertEquals(1, queue.size());
+
+        this.release.countDown();
+        queue.close(5000);
+
+        assertEquals(Arrays.asList("blocker=value", "key=value-2"), this.written);
+    }
+
+    @Test
+    public void offerAfterClose() {
+        WriteBehindQueue queue = new WriteBehindQueue(10, 1, 1, 0, WriteBehindQueue.OverflowPolicy.BLOCK,
+                new RecordingWriter());
+        queue.close(5000);
+
+        assertFalse(queue.offer(save("key", "value")));
+    }
+
+    @Test
+    public void overflowDropOldest() throws InterruptedException {
+        WriteBehindQueue queue = new WriteBehindQueue(1, 1, 1, 0, WriteBehindQueue.OverflowPolicy.DROP_OLDEST,
+                new RecordingWriter());
+
+        queue.offer(save("blocker", "value"));
+        waitForInFlight(queue);
+        assertTrue(queue.offer(save("key-1", "value-1")));
+        assertTrue(queue.offer(save("key-2", "value-2")));
+
+        this.release.countDown();
+        queue.close(5000);
+
+        assertEquals(Arrays.asList("blocker=value", "key-2=value-2"), this.written);
+    }
+
+    @Test
+    public void overflowSynchronous() throws InterruptedException {
+        WriteBehindQueue queue = new WriteBehindQueue(1, 1, 1, 0, WriteBehindQueue.OverflowPolicy.SYNCHRONOUS,
+                new RecordingWriter());
+
+        queue.offer(save("blocker", "value"));
+        waitForInFlight(queue);
+        assertTrue(queue.offer(save("key-1", "value-1")));
+        assertFalse(queue.offer(save("key-2", "value-2")));
+
+        this.release.countDown();
+        queue.close(5000);
+
+        assertEquals(Arrays.asList("blocker=value", "key-1=value-1"), this.written);
+    }
+
+    @Test
+    public void batch() throws InterruptedException {
+        WriteBehindQueue queue = new WriteBehindQueue(10, 1, 2, 0, WriteBehindQueue.OverflowPolicy.BLOCK,
+                new RecordingWriter());
+
+        queue.offer(save("blocker", "value"));
+        waitForInFlight(queue);
+        queue.offer(save("key-1", "value-1"));
+        queue.offer(save("key-2", "value-2"));
+        queue.offer(save("key-3", "value-3"));
+
+        this.release.countDown();
+        queue.close(5000);
+
+        assertEquals(Arrays.asList(1, 2, 1), this.batches);
+    }
+
+    @Test
+    public void cancel() throws InterruptedException {
+        WriteBehindQueue queue = new WriteBehindQueue(10, 1, 1, 0, WriteBehindQueue.OverflowPolicy.BLOCK,
+                new RecordingWriter());
+
+        queue.offer(save("blocker", "value"));
+        waitForInFlight(queue);
+        queue.offer(save("key", "value"));
+        queue.cancel("key");
+
+        this.release.countDown();
+        queue.close(5000);
+
+        assertEquals(Collections.singletonList("blocker=value"), this.written);
+    }
+
+    @Test
+    public void inFlightKeyNotTaken() throws InterruptedException {
+        WriteBehindQueue queue = new WriteBehindQueue(10, 2, 1, 0, WriteBehindQueue.OverflowPolicy.BLOCK,
+                new RecordingWriter());
+
+        queue.offer(save("key", "value-1"));
+        waitForInFlight(queue);
+        queue.offer(save("key", "value-2"));
+        queue.offer(save("other", "value"));
+        while (queue.size() != 1) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        assertEquals(1, queue.size());
+
+        this.release.countDown();
+        queue.close(5000);
+
+        assertEquals(Arrays.asList("key=value-1", "key=value-2"), filter(this.written, "key="));
+        assertEquals(3, this.written.size());
+    }
+
+    private WriteBehindQueue.PendingSave save(String key, String value) {
+        return new WriteBehindQueue.PendingSave(key, SESSIONS_KEY, value.getBytes(), 10);
+    }
+
+    private List<String> filter(List<String> written, String prefix) {
+        List<String> filtered = new ArrayList<>();
+        for (String entry : written) {
+            if (entry.startsWith(prefix)) {
+                filtered.add(entry);
+            }
+        }
+        return filtered;
+    }
+
+    private void waitForInFlight(WriteBehindQueue queue) throws InterruptedException {
+        while (queue.size() != 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    private final class RecordingWriter implements WriteBehindQueue.Writer {
+
+        @Override
+        public void write(List<WriteBehindQueue.PendingSave> saves) {
+            try {
+                WriteBehindQueueTest.this.release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            WriteBehindQueueTest.this.batches.add(saves.size());
+            for (WriteBehindQueue.PendingSave save : saves) {
+                WriteBehindQueueTest.this.written.add(String.format("%s=%s", save.key, new String(save.session)));
+            }
+        }
+
+    }
+
+}